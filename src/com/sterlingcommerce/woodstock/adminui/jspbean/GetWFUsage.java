@@ -1,6 +1,7 @@
 package com.sterlingcommerce.woodstock.adminui.jspbean;
 
-import com.sterlingcommerce.woodstock.ui.BaseUIGlobals;
+import com.sterlingcommerce.woodstock.workflow.WorkFlowMonitor;
+import com.sterlingcommerce.woodstock.workflow.WorkFlowStateSnapshot;
 
 import java.util.ArrayList;
 
@@ -47,14 +48,16 @@ public class GetWFUsage {
 	public String getWFUsage() {
 		StringBuffer s = new StringBuffer();
 
-		ArrayList wfarray = BaseUIGlobals.getActualWorkFlowUsage();
+		// only the number of BPs per state is shown, every session
+		// reads the counts taken in the background
+		WorkFlowStateSnapshot snapshot = WorkFlowMonitor.getStateSnapshot();
+		ArrayList wfarray = (snapshot == null) ? null : snapshot.getStateCounts();
 		if (wfarray != null) {
 			for (int i = 0; i < wfarray.size(); i++) {
 				Hashtable entry = (Hashtable) wfarray.get(i);
 				int state = ((Integer) entry.get("STATE")).intValue();
-				ArrayList al = (ArrayList) entry.get("IDS");
 
-				int numbps = al.size();
+				int numbps = ((Integer) entry.get("COUNT")).intValue();
 
 				switch (state) {
 				case 0:
@@ -87,11 +90,24 @@ public class GetWFUsage {
 				}
 
 			}
+			// the counts are taken in the background, show how old
+			s.append(" (");
+			s.append(snapshot.getAge() / 1000);
+			s.append("s ago)");
 		}
 
 		return s.toString();
 	}
 
+	/**
+	 * @return how old the counts of getWFUsage() are in seconds, -1 if
+	 * there are none.
+	 */
+	public long getWFUsageAge() {
+		WorkFlowStateSnapshot snapshot = WorkFlowMonitor.getStateSnapshot();
+		return (snapshot == null) ? -1 : snapshot.getAge() / 1000;
+	}
+
 	public ArrayList getAllIdsWithStateNew(Connection con, int num) {
 
 		ArrayList activeList = new ArrayList();
@@ -0,0 +1,390 @@
+package com.sterlingcommerce.woodstock.workflow;
+
+import java.util.*;
+
+/**
+ * Determines the state of a workflow branch from the BASIC_STATUS,
+ * WFE_STATUS, ACTIVITYINFO_ID and NEXT_AI_ID of its last
+ * WORKFLOW_CONTEXT row.
+ *
+ * The branch ladders below only ever compare the inputs for equality
+ * with a fixed set of status codes, and compare NEXT_AI_ID with DONE,
+ * NOOP and ACTIVITYINFO_ID.  The class therefore evaluates the ladders
+ * once, at load time, for every combination of
+ *
+ *   basic status  - each code the ladders test, plus "any other",
+ *   WFE status    - each code the ladders test, plus "any other",
+ *   next relation - DONE, NOOP, NOOP and same as the current
+ *                   activity, same as the current activity, other,
+ *
+ * and afterwards classifies a row with three array lookups.  NOOP and
+ * same-as-current is its own relation because the error ladder tests
+ * "same" before the other ladders test NOOP.
+ *
+ * The class is stateless after loading and safe for concurrent use.
+ */
+final class BranchStateClassifier {
+
+    /**
+     * Returned when the branch is runnable and the inactive flag of
+     * the workflow decides between HALTING and ACTIVE.
+     */
+    static final int RUNNABLE = -100;
+
+    private static final int NEXT_DONE = 0;
+    private static final int NEXT_NOOP = 1;
+    private static final int NEXT_NOOP_SAME = 2;
+    private static final int NEXT_SAME = 3;
+    private static final int NEXT_OTHER = 4;
+    private static final int NEXT_RELATIONS = 5;
+
+    //the ladder from getBranchState()
+    private static final int BRANCH_LADDER = 0;
+    //the ladder from the hinted read in getState()
+    private static final int HINTED_LADDER = 1;
+
+    private static final int[] BASIC_CODES = sortedDistinct(new int[] {
+        WorkFlowContext.WAITING,
+        WorkFlowContext.WAITING_ON_IO,
+        WorkFlowContext.WF_INTERRUPT_AUTO,
+        WorkFlowContext.WF_INTERRUPT_AUTO_OFFSET,
+        WorkFlowContext.WF_INTERRUPT_MAN,
+        WorkFlowContext.WF_INTERRUPT_MAN_OFFSET,
+        WorkFlowContext.WFE_SYSTEM_ERROR,
+        WorkFlowContext.SYSTEM_ERROR,
+        WorkFlowContext.SERVICE_CONFIG_ERROR,
+        WorkFlowContext.WARNING,
+        WorkFlowContext.ERROR,
+        WorkFlowContext.WFE_SYSTEM_ERROR_OFFSET,
+        WorkFlowContext.SYSTEM_ERROR_OFFSET,
+        WorkFlowContext.SERVICE_CONFIG_ERROR_OFFSET,
+        WorkFlowContext.ERROR_OFFSET,
+        WorkFlowContext.WF_TERMINATED,
+        WFCBase.SUCCESS
+    });
+
+    private static final int[] WFE_CODES = sortedDistinct(new int[] {
+        ActivityInfo.CHILD_DONE,
+        WorkFlowContext.WFE_DEFAULT_STATUS,
+        WFCBase.WFE_WF_INSTANCE_STOPPED,
+        WorkFlowContext.WFE_WFD_DEACTIVATED,
+        WorkFlowContext.WFE_SERVICE_DEACTIVATED,
+        WorkFlowContext.WFE_REMOTE_ERROR,
+        WorkFlowContext.WFE_CREATE_ERROR,
+        WorkFlowContext.WFE_BASIC_ERROR,
+        WorkFlowContext.WFE_NAME_ERROR,
+        WorkFlowContext.WFE_LICENSE_ERROR,
+        WorkFlowContext.WFE_JMS_ERROR
+    });
+
+    private static final int WFE_STRIDE = NEXT_RELATIONS;
+    private static final int BASIC_STRIDE = (WFE_CODES.length + 1) * WFE_STRIDE;
+
+    private static final int[] BRANCH_TABLE = buildTable(BRANCH_LADDER);
+    private static final int[] HINTED_TABLE = buildTable(HINTED_LADDER);
+
+    private BranchStateClassifier() {}
+
+    /**
+     * The state of a branch as getBranchState() determines it.
+     *
+     * @return a WorkFlowMonitor state, UNKNOWN if it cannot be
+     * determined or RUNNABLE.
+     */
+    static int classify(int basicStatus, int wfeStatus,
+                        int activityId, int nextActivityId) {
+        return BRANCH_TABLE[index(basicStatus, wfeStatus,
+                                  activityId, nextActivityId)];
+    }
+
+    /**
+     * The state of a workflow as the hinted read of getState()
+     * determines it from the last hinted row.
+     *
+     * @return a WorkFlowMonitor state, UNKNOWN if it cannot be
+     * determined or RUNNABLE.
+     */
+    static int classifyHinted(int basicStatus, int wfeStatus,
+                              int activityId, int nextActivityId) {
+        return HINTED_TABLE[index(basicStatus, wfeStatus,
+                                  activityId, nextActivityId)];
+    }
+
+    private static int index(int basicStatus, int wfeStatus,
+                             int activityId, int nextActivityId) {
+        return codeIndex(BASIC_CODES, basicStatus) * BASIC_STRIDE +
+            codeIndex(WFE_CODES, wfeStatus) * WFE_STRIDE +
+            nextRelation(activityId, nextActivityId);
+    }
+
+    /**
+     * @return the position of the code, or codes.length for a code
+     * the ladders do not test.
+     */
+    private static int codeIndex(int[] codes, int code) {
+        int pos = Arrays.binarySearch(codes, code);
+        return pos >= 0 ? pos : codes.length;
+    }
+
+    private static int nextRelation(int activityId, int nextActivityId) {
+        if (nextActivityId == ActivityInfo.DONE) {
+            return NEXT_DONE;
+        } else if (nextActivityId == ActivityInfo.NOOP) {
+            return nextActivityId == activityId ? NEXT_NOOP_SAME : NEXT_NOOP;
+        } else {
+            return nextActivityId == activityId ? NEXT_SAME : NEXT_OTHER;
+        }
+    }
+
+    private static int[] sortedDistinct(int[] codes) {
+        int[] sorted = (int[])codes.clone();
+        Arrays.sort(sorted);
+        int n = 0;
+        for (int i = 0; i < sorted.length; i++) {
+            if (n == 0 || sorted[n-1] != sorted[i]) {
+                sorted[n++] = sorted[i];
+            }
+        }
+        int[] distinct = new int[n];
+        System.arraycopy(sorted, 0, distinct, 0, n);
+        return distinct;
+    }
+
+    /**
+     * @return a value that is not one of the sorted codes, to stand in
+     * for "any other code" when the table is built.
+     */
+    private static int otherCode(int[] codes) {
+        int code = -12345;
+        while (Arrays.binarySearch(codes, code) >= 0) {
+            code--;
+        }
+        return code;
+    }
+
+    /**
+     * Evaluates the ladder for one representative row of every table
+     * cell.
+     */
+    private static int[] buildTable(int ladder) {
+        int[] table = new int[(BASIC_CODES.length + 1) * BASIC_STRIDE];
+
+        int[] reserved = sortedDistinct(new int[] {
+            ActivityInfo.DONE, ActivityInfo.NOOP });
+        int activity = otherCode(reserved);
+        int other = activity - 1;
+        while (Arrays.binarySearch(reserved, other) >= 0) {
+            other--;
+        }
+
+        for (int b = 0; b <= BASIC_CODES.length; b++) {
+            int basic = b < BASIC_CODES.length ?
+                BASIC_CODES[b] : otherCode(BASIC_CODES);
+            for (int w = 0; w <= WFE_CODES.length; w++) {
+                int wfe = w < WFE_CODES.length ?
+                    WFE_CODES[w] : otherCode(WFE_CODES);
+                for (int r = 0; r < NEXT_RELATIONS; r++) {
+                    int activityId;
+                    int nextActivityId;
+                    switch (r) {
+                    case NEXT_DONE:
+                        activityId = activity;
+                        nextActivityId = ActivityInfo.DONE;
+                        break;
+                    case NEXT_NOOP:
+                        activityId = activity;
+                        nextActivityId = ActivityInfo.NOOP;
+                        break;
+                    case NEXT_NOOP_SAME:
+                        activityId = ActivityInfo.NOOP;
+                        nextActivityId = ActivityInfo.NOOP;
+                        break;
+                    case NEXT_SAME:
+                        activityId = activity;
+                        nextActivityId = activity;
+                        break;
+                    default:
+                        activityId = activity;
+                        nextActivityId = other;
+                        break;
+                    }
+                    table[b * BASIC_STRIDE + w * WFE_STRIDE + r] =
+                        (ladder == HINTED_LADDER) ?
+                        hintedLadder(basic, wfe, activityId, nextActivityId) :
+                        branchLadder(basic, wfe, activityId, nextActivityId);
+                }
+            }
+        }
+        return table;
+    }
+
+    /**
+     * The reference ladder of getBranchState().  Only used to build
+     * BRANCH_TABLE.
+     */
+    private static int branchLadder(int basicStatus, int wfeStatus,
+                                    int activityId, int nextActivityId) {
+        int state = WorkFlowMonitor.UNKNOWN;
+
+        if (basicStatus == WorkFlowContext.WAITING) {
+            state = WorkFlowMonitor.WAITING;
+        } else if (basicStatus == WorkFlowContext.WAITING_ON_IO) {
+            state = WorkFlowMonitor.WAITING_ON_IO;
+        } else if (basicStatus == WorkFlowContext.WF_INTERRUPT_AUTO) {
+            if (nextActivityId == ActivityInfo.DONE) {
+                state = WorkFlowMonitor.COMPLETE;
+            } else {
+                state = WorkFlowMonitor.INTERRUPTED_AUTO;
+            }
+        } else if (basicStatus == WorkFlowContext.WF_INTERRUPT_AUTO_OFFSET &&
+                   nextActivityId == ActivityInfo.DONE) {
+            //Once indexing occurs complete and terminated
+            //error fields are offset to increase search performance
+            state = WorkFlowMonitor.COMPLETE;
+        } else if (basicStatus == WorkFlowContext.WF_INTERRUPT_MAN) {
+            if (nextActivityId == ActivityInfo.DONE) {
+                state = WorkFlowMonitor.COMPLETE;
+            } else {
+                state = WorkFlowMonitor.INTERRUPTED_MAN;
+            }
+        } else if (basicStatus == WorkFlowContext.WF_INTERRUPT_MAN_OFFSET &&
+                   nextActivityId == ActivityInfo.DONE) {
+            state = WorkFlowMonitor.COMPLETE;
+        } else if (basicStatus == WorkFlowContext.WFE_SYSTEM_ERROR ||
+                   basicStatus == WorkFlowContext.SYSTEM_ERROR ||
+                   basicStatus == WorkFlowContext.SERVICE_CONFIG_ERROR ||
+                   basicStatus == WorkFlowContext.WARNING ||
+                   basicStatus == WorkFlowContext.ERROR) {
+            if (nextActivityId == ActivityInfo.DONE) {
+                if (wfeStatus == ActivityInfo.CHILD_DONE) {
+                    state = WorkFlowMonitor.HALTED;
+                } else {
+                    state = WorkFlowMonitor.COMPLETE;
+                }
+            } else if (nextActivityId == activityId) {
+                state = WorkFlowMonitor.HALTED;
+                //Since when sub workflow is disabled,
+                //activity id=0, and nextacvitity id =1
+            } else if (
+                wfeStatus == WFCBase.WFE_WF_INSTANCE_STOPPED ||
+                wfeStatus == WorkFlowContext.WFE_WFD_DEACTIVATED ||
+                wfeStatus == WorkFlowContext.WFE_SERVICE_DEACTIVATED ||
+                wfeStatus == WorkFlowContext.WFE_REMOTE_ERROR ||
+                wfeStatus == WorkFlowContext.WFE_CREATE_ERROR ||
+                wfeStatus == WorkFlowContext.WFE_BASIC_ERROR ||
+                wfeStatus == WorkFlowContext.WFE_NAME_ERROR ||
+                wfeStatus == WorkFlowContext.WFE_LICENSE_ERROR ||
+                wfeStatus == WorkFlowContext.WFE_JMS_ERROR )  {
+                state = WorkFlowMonitor.HALTED;
+            } else {
+                state = WorkFlowMonitor.ACTIVE;
+            }
+        } else if (
+            ( basicStatus == WorkFlowContext.WFE_SYSTEM_ERROR_OFFSET ||
+              basicStatus == WorkFlowContext.SYSTEM_ERROR_OFFSET ||
+              basicStatus == WorkFlowContext.SERVICE_CONFIG_ERROR_OFFSET ||
+              basicStatus == WorkFlowContext.ERROR_OFFSET ) &&
+            nextActivityId == ActivityInfo.DONE) {
+            state = WorkFlowMonitor.COMPLETE;
+        } else if (basicStatus == WorkFlowContext.WF_TERMINATED) {
+            state = WorkFlowMonitor.TERMINATED;
+        } else if (wfeStatus == WorkFlowContext.WFE_DEFAULT_STATUS &&
+                   nextActivityId == ActivityInfo.DONE) {
+            state = WorkFlowMonitor.COMPLETE;
+        } else if (wfeStatus == WorkFlowContext.WFE_DEFAULT_STATUS &&
+                   nextActivityId == ActivityInfo.NOOP) {
+            state = WorkFlowMonitor.ACTIVE_WAITING; // this is a split.
+        } else if (basicStatus == WFCBase.SUCCESS &&
+                   wfeStatus == ActivityInfo.CHILD_DONE) {
+            if (nextActivityId == ActivityInfo.DONE) {
+                state = WorkFlowMonitor.COMPLETE;
+            } else {
+                state = WorkFlowMonitor.ACTIVE;
+            }
+        } else if (nextActivityId != ActivityInfo.NOOP &&
+                   nextActivityId != ActivityInfo.DONE) {
+            state = RUNNABLE;
+        }
+
+        return state;
+    }
+
+    /**
+     * The reference ladder of the hinted read in getState().  It
+     * differs from branchLadder() in WAITING_ON_IO, the indexed
+     * (_OFFSET) codes and WFE_WF_INSTANCE_STOPPED.  Only used to build
+     * HINTED_TABLE.
+     */
+    private static int hintedLadder(int basicStatus, int wfeStatus,
+                                    int activityId, int nextActivityId) {
+        int state = WorkFlowMonitor.UNKNOWN;
+
+        if (basicStatus == WorkFlowContext.WAITING) {
+            state = WorkFlowMonitor.WAITING;
+        } else if (basicStatus == WorkFlowContext.WAITING_ON_IO) {
+            if (nextActivityId == ActivityInfo.DONE) {
+                state = WorkFlowMonitor.COMPLETE;
+            } else {
+                state = WorkFlowMonitor.WAITING_ON_IO;
+            }
+        } else if (basicStatus == WorkFlowContext.WF_INTERRUPT_AUTO) {
+            if (nextActivityId == ActivityInfo.DONE) {
+                state = WorkFlowMonitor.COMPLETE;
+            } else {
+                state = WorkFlowMonitor.INTERRUPTED_AUTO;
+            }
+        } else if (basicStatus == WorkFlowContext.WF_INTERRUPT_MAN) {
+            if (nextActivityId == ActivityInfo.DONE) {
+                state = WorkFlowMonitor.COMPLETE;
+            } else {
+                state = WorkFlowMonitor.INTERRUPTED_MAN;
+            }
+        } else if (basicStatus == WorkFlowContext.WFE_SYSTEM_ERROR ||
+                   basicStatus == WorkFlowContext.SYSTEM_ERROR ||
+                   basicStatus == WorkFlowContext.SERVICE_CONFIG_ERROR ||
+                   basicStatus == WorkFlowContext.WARNING ||
+                   basicStatus == WorkFlowContext.ERROR) {
+            if (nextActivityId == ActivityInfo.DONE) {
+                if (wfeStatus == ActivityInfo.CHILD_DONE) {
+                    state = WorkFlowMonitor.HALTED;
+                } else {
+                    state = WorkFlowMonitor.COMPLETE;
+                }
+            } else if (nextActivityId == activityId) {
+                state = WorkFlowMonitor.HALTED;
+            } else if (
+                wfeStatus == WorkFlowContext.WFE_WFD_DEACTIVATED ||
+                wfeStatus == WorkFlowContext.WFE_SERVICE_DEACTIVATED ||
+                wfeStatus == WorkFlowContext.WFE_REMOTE_ERROR ||
+                wfeStatus == WorkFlowContext.WFE_CREATE_ERROR ||
+                wfeStatus == WorkFlowContext.WFE_BASIC_ERROR ||
+                wfeStatus == WorkFlowContext.WFE_NAME_ERROR ||
+                wfeStatus == WorkFlowContext.WFE_LICENSE_ERROR ||
+                wfeStatus == WorkFlowContext.WFE_JMS_ERROR )  {
+                state = WorkFlowMonitor.HALTED;
+            } else {
+                state = WorkFlowMonitor.ACTIVE;
+            }
+        } else if (basicStatus == WorkFlowContext.WF_TERMINATED) {
+            state = WorkFlowMonitor.TERMINATED;
+        } else if (wfeStatus == WorkFlowContext.WFE_DEFAULT_STATUS &&
+                   nextActivityId == ActivityInfo.DONE) {
+            state = WorkFlowMonitor.COMPLETE;
+        } else if (wfeStatus == WorkFlowContext.WFE_DEFAULT_STATUS &&
+                   nextActivityId == ActivityInfo.NOOP) {
+            state = WorkFlowMonitor.ACTIVE_WAITING; // this is a split.
+        } else if (basicStatus == WFCBase.SUCCESS &&
+                   wfeStatus == ActivityInfo.CHILD_DONE) {
+            if (nextActivityId == ActivityInfo.DONE) {
+                state = WorkFlowMonitor.COMPLETE;
+            } else {
+                state = WorkFlowMonitor.ACTIVE;
+            }
+        } else if (nextActivityId != ActivityInfo.NOOP &&
+                   nextActivityId != ActivityInfo.DONE) {
+            state = RUNNABLE;
+        }
+
+        return state;
+    }
+}
@@ -0,0 +1,158 @@
+package com.sterlingcommerce.woodstock.workflow;
+
+import java.util.*;
+
+/**
+ * Writes an id filter of the form <tt>column IN (...)</tt> for the
+ * WorkFlowMonitor searches.
+ *
+ * A literal list makes a new SQL text, and a new hard parse, for every
+ * distinct set of ids, and a long one runs into the statement length
+ * limits.  Here only tiny lists are written as literals.  Longer ones
+ * become bind parameters, padded with the last id up to the next
+ * bucket size, so all lists of a similar length share a SQL text.
+ * Lists longer than the database allows in one IN list are split into
+ * IN lists joined with OR.  A list that needs more parameters than the
+ * database allows in one statement, or has ids that are not numbers,
+ * is written as literals as before.
+ */
+final class InListBuckets {
+
+    //Lists up to this long are written as literals.
+    static final int LITERAL_MAX = 4;
+
+    private static final int[] BUCKETS = { 16, 64, 256, 1000 };
+
+    private final int maxInList;
+    private final int maxParams;
+
+    private InListBuckets(int maxInList, int maxParams) {
+        this.maxInList = maxInList;
+        this.maxParams = maxParams;
+    }
+
+    /**
+     * @param vendor - the JDBC_VENDOR of si_config, may be null.
+     */
+    static InListBuckets forVendor(String vendor) {
+        String v = (vendor == null) ? "" : vendor.trim().toLowerCase();
+        if (v.startsWith("oracle")) {
+            return new InListBuckets(1000, 30000);
+        }
+        if (v.startsWith("mssql") || v.startsWith("sqlserver")) {
+            // 2100 parameters per statement, leave room for the others
+            return new InListBuckets(1000, 2000);
+        }
+        if (v.startsWith("db2")) {
+            return new InListBuckets(1000, 30000);
+        }
+        if (v.startsWith("mysql")) {
+            return new InListBuckets(1000, 30000);
+        }
+        return new InListBuckets(1000, 2000);
+    }
+
+    /**
+     * @return the most ids that fit in one IN list of bind parameters.
+     */
+    int getMaxInList() {
+        return Math.min(maxInList, maxParams);
+    }
+
+    /**
+     * Appends the filter for <tt>values</tt> (ids as Strings or
+     * numbers) to <tt>sb</tt>.  The values of the parameters it
+     * writes are added to <tt>binds</tt>; with a null <tt>binds</tt>
+     * the filter is written as literals.
+     */
+    void append(StringBuffer sb, String column, List values, List binds) {
+        append(sb, column, values, binds, LITERAL_MAX);
+    }
+
+    /**
+     * append() writing lists of up to <tt>literalMax</tt> ids as
+     * literals, 0 to bind all of them.
+     */
+    void append(StringBuffer sb, String column, List values, List binds,
+                int literalMax) {
+        int n = values.size();
+        long[] ids = (binds == null || n <= literalMax) ? null : toLongs(values);
+        int padded = (ids == null) ? 0 : paddedSize(n);
+        if (ids == null || padded > maxParams) {
+            appendLiterals(sb, column, values);
+            return;
+        }
+
+        int groups = (padded + maxInList - 1) / maxInList;
+        if (groups > 1) {
+            sb.append(" ( ");
+        }
+        int p = 0;
+        for (int g = 0; g < groups; g++) {
+            if (g > 0) {
+                sb.append(" OR ");
+            }
+            sb.append(column);
+            sb.append(" IN ( ");
+            int end = Math.min(p + maxInList, padded);
+            for (int i = p; i < end; i++) {
+                sb.append(i == p ? "?" : ",?");
+                binds.add(new Long(ids[i < n ? i : n - 1]));
+            }
+            sb.append(" ) ");
+            p = end;
+        }
+        if (groups > 1) {
+            sb.append(" ) ");
+        }
+    }
+
+    /**
+     * @return the number of parameters a list of <tt>n</tt> ids is
+     * padded to: the next bucket, or the next multiple of the largest
+     * bucket above it.
+     */
+    static int paddedSize(int n) {
+        for (int i = 0; i < BUCKETS.length; i++) {
+            if (n <= BUCKETS[i]) {
+                return BUCKETS[i];
+            }
+        }
+        int largest = BUCKETS[BUCKETS.length - 1];
+        return (n + largest - 1) / largest * largest;
+    }
+
+    private static void appendLiterals(StringBuffer sb, String column,
+                                       List values) {
+        sb.append(" ");
+        sb.append(column);
+        sb.append(" IN ( ");
+        for (int i = 0; i < values.size(); i++) {
+            if (i > 0) {
+                sb.append(",");
+            }
+            sb.append(values.get(i));
+        }
+        sb.append(" ) ");
+    }
+
+    /**
+     * @return the ids as longs, null if one of them is not a number.
+     */
+    private static long[] toLongs(List values) {
+        long[] ids = new long[values.size()];
+        for (int i = 0; i < ids.length; i++) {
+            Object v = values.get(i);
+            if (v instanceof Number) {
+                ids[i] = ((Number)v).longValue();
+                continue;
+            }
+            try {
+                ids[i] = Long.parseLong(String.valueOf(v).trim());
+            } catch (NumberFormatException ne) {
+                return null;
+            }
+        }
+        return ids;
+    }
+}
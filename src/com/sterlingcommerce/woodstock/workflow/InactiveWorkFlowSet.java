@@ -0,0 +1,174 @@
+package com.sterlingcommerce.woodstock.workflow;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * What the WorkFlowMonitor knows about the inactive (stopped) flag of
+ * workflows, so that deciding between HALTING and ACTIVE does not need
+ * a wfm_isWFInactive query every time a branch looks runnable.
+ *
+ * The set is fed from three places:
+ *
+ *   stopWF() pushes the workflows it stops,
+ *   isWFInactive() records the workflows its queries find inactive,
+ *   a periodic reload replaces everything with the full list of
+ *   inactive workflows, when the wfm_getInactiveWFs query exists.
+ *
+ * Only inactive answers are held, and each is trusted for the reconcile
+ * interval.  While a reload is fresh any workflow not in the set is
+ * active, so a workflow stopped by another node is seen at most one
+ * interval late.  Without a fresh reload a workflow not in the set has
+ * to be queried, so an active answer is never reused.  At most
+ * MAX_ANSWERS answers are recorded; expired ones are dropped first and
+ * once the set is full nothing more is recorded.  An interval of 0 or
+ * less turns the set off.
+ */
+final class InactiveWorkFlowSet {
+
+    static final int ACTIVE = 0;
+    static final int INACTIVE = 1;
+    static final int NOT_KNOWN = -1;
+
+    //Most answers record() holds; a reload holds every inactive id.
+    static final int MAX_ANSWERS = 10000;
+
+    private final long interval;
+    private final ConcurrentHashMap answers = new ConcurrentHashMap();
+    private final AtomicBoolean reloading = new AtomicBoolean(false);
+    private volatile long reloadTime = 0;
+    private volatile long lastReloadAttempt = 0;
+    private volatile boolean reloadSupported = true;
+
+    private static final class Answer {
+        final boolean inactive;
+        final long time;
+
+        Answer(boolean inactive, long time) {
+            this.inactive = inactive;
+            this.time = time;
+        }
+    }
+
+    InactiveWorkFlowSet(long interval) {
+        this.interval = interval;
+    }
+
+    boolean isEnabled() {
+        return interval > 0;
+    }
+
+    /**
+     * @return INACTIVE or ACTIVE when there is a fresh answer for the
+     * workflow, NOT_KNOWN when it has to be queried.
+     */
+    int lookup(long workflowId) {
+        if (!isEnabled()) {
+            return NOT_KNOWN;
+        }
+        long now = System.currentTimeMillis();
+        Answer a = (Answer)answers.get(new Long(workflowId));
+        if (a != null && now - a.time < interval) {
+            return a.inactive ? INACTIVE : ACTIVE;
+        }
+        if (now - reloadTime < interval) {
+            // every inactive workflow was loaded or pushed since
+            return ACTIVE;
+        }
+        return NOT_KNOWN;
+    }
+
+    /**
+     * Records the answer of a wfm_isWFInactive query.  An active answer
+     * only drops an older inactive one.
+     */
+    void record(long workflowId, boolean inactive) {
+        if (!isEnabled()) {
+            return;
+        }
+        Long key = new Long(workflowId);
+        if (!inactive) {
+            answers.remove(key);
+            return;
+        }
+        long now = System.currentTimeMillis();
+        if (answers.size() >= MAX_ANSWERS && !answers.containsKey(key)) {
+            dropExpired(now);
+            if (answers.size() >= MAX_ANSWERS) {
+                return;
+            }
+        }
+        answers.put(key, new Answer(true, now));
+    }
+
+    private void dropExpired(long now) {
+        for (Iterator it = answers.values().iterator(); it.hasNext(); ) {
+            if (now - ((Answer)it.next()).time >= interval) {
+                it.remove();
+            }
+        }
+    }
+
+    /** Called once the workflow has been reported inactive. */
+    void markInactive(long workflowId) {
+        record(workflowId, true);
+    }
+
+    /** Forgets a workflow, e.g. one resumed or in a final state. */
+    void remove(long workflowId) {
+        if (!answers.isEmpty()) {
+            answers.remove(new Long(workflowId));
+        }
+    }
+
+    /**
+     * @return true if the caller should reload the full list.  Only
+     * one caller at a time gets true and must call endReload().
+     */
+    boolean beginReload() {
+        if (!isEnabled() || !reloadSupported) {
+            return false;
+        }
+        long now = System.currentTimeMillis();
+        if (now - reloadTime < interval || now - lastReloadAttempt < interval) {
+            return false;
+        }
+        if (!reloading.compareAndSet(false, true)) {
+            return false;
+        }
+        lastReloadAttempt = now;
+        return true;
+    }
+
+    /**
+     * Replaces the set with the inactive workflows read at
+     * <tt>started</tt>.  Answers recorded after that are kept.
+     */
+    void reloaded(Collection inactiveIds, long started) {
+        for (Iterator it = answers.entrySet().iterator(); it.hasNext(); ) {
+            Map.Entry e = (Map.Entry)it.next();
+            if (((Answer)e.getValue()).time < started) {
+                it.remove();
+            }
+        }
+        Answer loaded = new Answer(true, started);
+        for (Iterator it = inactiveIds.iterator(); it.hasNext(); ) {
+            answers.putIfAbsent(it.next(), loaded);
+        }
+        reloadTime = started;
+    }
+
+    /** Called when the full list cannot be read on this database. */
+    void reloadUnsupported() {
+        reloadSupported = false;
+    }
+
+    void endReload() {
+        reloading.set(false);
+    }
+
+    int size() {
+        return answers.size();
+    }
+}
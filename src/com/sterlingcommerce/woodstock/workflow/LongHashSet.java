@@ -0,0 +1,97 @@
+package com.sterlingcommerce.woodstock.workflow;
+
+/**
+ * An open addressing hash set of primitive longs, for de-duplicating
+ * workflow ids without boxing them.  Linear probing over a power of two
+ * table kept at most half full.  0 marks a free slot, so the value 0
+ * is tracked on its own.
+ *
+ * Not synchronized.
+ */
+final class LongHashSet {
+
+    private long[] slots;
+    private int size = 0;
+    private boolean hasZero = false;
+
+    LongHashSet() {
+        this(16);
+    }
+
+    LongHashSet(int expected) {
+        int capacity = 16;
+        while (capacity < expected * 2) {
+            capacity <<= 1;
+        }
+        slots = new long[capacity];
+    }
+
+    int size() {
+        return size;
+    }
+
+    boolean contains(long value) {
+        if (value == 0) {
+            return hasZero;
+        }
+        int mask = slots.length - 1;
+        for (int i = index(value, mask); ; i = (i + 1) & mask) {
+            long slot = slots[i];
+            if (slot == value) {
+                return true;
+            }
+            if (slot == 0) {
+                return false;
+            }
+        }
+    }
+
+    /**
+     * @return true if the value was not in the set yet.
+     */
+    boolean add(long value) {
+        if (value == 0) {
+            if (hasZero) {
+                return false;
+            }
+            hasZero = true;
+            size++;
+            return true;
+        }
+        int mask = slots.length - 1;
+        int i = index(value, mask);
+        for (; slots[i] != 0; i = (i + 1) & mask) {
+            if (slots[i] == value) {
+                return false;
+            }
+        }
+        slots[i] = value;
+        size++;
+        if (size * 2 > slots.length) {
+            rehash(slots.length * 2);
+        }
+        return true;
+    }
+
+    private void rehash(int capacity) {
+        long[] old = slots;
+        slots = new long[capacity];
+        int mask = capacity - 1;
+        for (int j = 0; j < old.length; j++) {
+            long value = old[j];
+            if (value != 0) {
+                int i = index(value, mask);
+                while (slots[i] != 0) {
+                    i = (i + 1) & mask;
+                }
+                slots[i] = value;
+            }
+        }
+    }
+
+    private static int index(long value, int mask) {
+        // the low bits of sequential ids are spread by the multiply
+        long h = value * 0x9E3779B97F4A7C15L;
+        return (int)(h ^ (h >>> 32)) & mask;
+    }
+}
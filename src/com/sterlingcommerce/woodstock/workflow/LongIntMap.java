@@ -0,0 +1,174 @@
+package com.sterlingcommerce.woodstock.workflow;
+
+import java.util.*;
+
+/**
+ * An open addressing hash map from primitive long to int, for workflow
+ * id to status lookups without a Long and an Integer per entry.
+ * Linear probing over a power of two table kept at most half full.  0
+ * marks a free key slot, so the key 0 is tracked on its own.
+ *
+ * Not synchronized.
+ */
+public final class LongIntMap {
+
+    private long[] keys;
+    private int[] values;
+    private int size = 0;
+    private boolean hasZero = false;
+    private int zeroValue = 0;
+
+    public LongIntMap() {
+        this(16);
+    }
+
+    public LongIntMap(int expected) {
+        int capacity = 16;
+        while (capacity < expected * 2) {
+            capacity <<= 1;
+        }
+        keys = new long[capacity];
+        values = new int[capacity];
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public boolean containsKey(long key) {
+        if (key == 0) {
+            return hasZero;
+        }
+        return keys[find(key)] == key;
+    }
+
+    /**
+     * @return the value of <tt>key</tt>, <tt>defaultValue</tt> if it
+     * has none.
+     */
+    public int get(long key, int defaultValue) {
+        if (key == 0) {
+            return hasZero ? zeroValue : defaultValue;
+        }
+        int i = find(key);
+        return keys[i] == key ? values[i] : defaultValue;
+    }
+
+    public void put(long key, int value) {
+        if (key == 0) {
+            if (!hasZero) {
+                hasZero = true;
+                size++;
+            }
+            zeroValue = value;
+            return;
+        }
+        int i = find(key);
+        if (keys[i] == key) {
+            values[i] = value;
+            return;
+        }
+        keys[i] = key;
+        values[i] = value;
+        size++;
+        if (size * 2 > keys.length) {
+            rehash(keys.length * 2);
+        }
+    }
+
+    public void putAll(LongIntMap other) {
+        if (other.hasZero) {
+            put(0, other.zeroValue);
+        }
+        for (int i = 0; i < other.keys.length; i++) {
+            if (other.keys[i] != 0) {
+                put(other.keys[i], other.values[i]);
+            }
+        }
+    }
+
+    /** @return the keys, in no particular order. */
+    public long[] keys() {
+        long[] all = new long[size];
+        int n = 0;
+        if (hasZero) {
+            all[n++] = 0;
+        }
+        for (int i = 0; i < keys.length; i++) {
+            if (keys[i] != 0) {
+                all[n++] = keys[i];
+            }
+        }
+        return all;
+    }
+
+    /** @return the entries as a HashMap of Long to Integer. */
+    public HashMap toHashMap() {
+        HashMap map = new HashMap(size * 2);
+        if (hasZero) {
+            map.put(new Long(0), new Integer(zeroValue));
+        }
+        for (int i = 0; i < keys.length; i++) {
+            if (keys[i] != 0) {
+                map.put(new Long(keys[i]), new Integer(values[i]));
+            }
+        }
+        return map;
+    }
+
+    public String toString() {
+        StringBuffer sb = new StringBuffer("{");
+        long[] all = keys();
+        for (int i = 0; i < all.length; i++) {
+            if (i > 0) {
+                sb.append(", ");
+            }
+            sb.append(all[i]);
+            sb.append('=');
+            sb.append(get(all[i], 0));
+        }
+        return sb.append('}').toString();
+    }
+
+    /**
+     * @return the slot of a non-zero key, or the free slot it would go
+     * in.
+     */
+    private int find(long key) {
+        int mask = keys.length - 1;
+        int i = index(key, mask);
+        while (keys[i] != 0 && keys[i] != key) {
+            i = (i + 1) & mask;
+        }
+        return i;
+    }
+
+    private void rehash(int capacity) {
+        long[] oldKeys = keys;
+        int[] oldValues = values;
+        keys = new long[capacity];
+        values = new int[capacity];
+        int mask = capacity - 1;
+        for (int j = 0; j < oldKeys.length; j++) {
+            long key = oldKeys[j];
+            if (key != 0) {
+                int i = index(key, mask);
+                while (keys[i] != 0) {
+                    i = (i + 1) & mask;
+                }
+                keys[i] = key;
+                values[i] = oldValues[j];
+            }
+        }
+    }
+
+    private static int index(long key, int mask) {
+        // the low bits of sequential ids are spread by the multiply
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int)(h ^ (h >>> 32)) & mask;
+    }
+}
@@ -0,0 +1,210 @@
+package com.sterlingcommerce.woodstock.workflow;
+
+import java.util.*;
+
+/**
+ * A growable list of primitive longs, used by the WorkFlowMonitor for
+ * lists of workflow ids.  An id costs 8 bytes here against a boxed
+ * Long or String and its list slot in an ArrayList.
+ *
+ * asLongList() and asStringList() are read-only views for code that
+ * takes a java.util.List; they box or format an id only when it is
+ * read.  toStringArrayList() and toLongArrayList() copy into the
+ * ArrayList types of the older monitor methods.
+ *
+ * Not synchronized.
+ */
+public final class LongList {
+
+    private long[] values;
+    private int size = 0;
+
+    public LongList() {
+        this(16);
+    }
+
+    public LongList(int capacity) {
+        values = new long[Math.max(capacity, 1)];
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public long get(int index) {
+        if (index >= size) {
+            throw new IndexOutOfBoundsException("index " + index +
+                                                " size " + size);
+        }
+        return values[index];
+    }
+
+    public void set(int index, long value) {
+        if (index >= size) {
+            throw new IndexOutOfBoundsException("index " + index +
+                                                " size " + size);
+        }
+        values[index] = value;
+    }
+
+    public void add(long value) {
+        if (size == values.length) {
+            values = grow(values, size + 1);
+        }
+        values[size++] = value;
+    }
+
+    public void addAll(LongList other) {
+        if (size + other.size > values.length) {
+            values = grow(values, size + other.size);
+        }
+        System.arraycopy(other.values, 0, values, size, other.size);
+        size += other.size;
+    }
+
+    public void clear() {
+        size = 0;
+    }
+
+    /** Linear search. */
+    public boolean contains(long value) {
+        for (int i = 0; i < size; i++) {
+            if (values[i] == value) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /** @return a copy of the ids. */
+    public long[] toArray() {
+        long[] copy = new long[size];
+        System.arraycopy(values, 0, copy, 0, size);
+        return copy;
+    }
+
+    /** Sorts the ids in ascending order. */
+    public void sort() {
+        Arrays.sort(values, 0, size);
+    }
+
+    /**
+     * Removes repeated ids, keeping the first of each in its place.
+     */
+    public void dedupe() {
+        if (size < 2) {
+            return;
+        }
+        if (isSorted()) {
+            int n = 1;
+            for (int i = 1; i < size; i++) {
+                if (values[i] != values[n - 1]) {
+                    values[n++] = values[i];
+                }
+            }
+            size = n;
+            return;
+        }
+        long[] sorted = toArray();
+        Arrays.sort(sorted);
+        int distinct = 1;
+        for (int i = 1; i < sorted.length; i++) {
+            if (sorted[i] != sorted[distinct - 1]) {
+                sorted[distinct++] = sorted[i];
+            }
+        }
+        boolean[] seen = new boolean[distinct];
+        int n = 0;
+        for (int i = 0; i < size; i++) {
+            int pos = Arrays.binarySearch(sorted, 0, distinct, values[i]);
+            if (!seen[pos]) {
+                seen[pos] = true;
+                values[n++] = values[i];
+            }
+        }
+        size = n;
+    }
+
+    private boolean isSorted() {
+        for (int i = 1; i < size; i++) {
+            if (values[i] < values[i - 1]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /** Releases the unused capacity. */
+    public void trimToSize() {
+        if (values.length > size) {
+            values = grow(values, size);
+        }
+    }
+
+    /** @return a read-only view of the ids as Longs. */
+    public List asLongList() {
+        return new View() {
+            public Object get(int index) {
+                return new Long(LongList.this.get(index));
+            }
+        };
+    }
+
+    /** @return a read-only view of the ids as Strings. */
+    public List asStringList() {
+        return new View() {
+            public Object get(int index) {
+                return Long.toString(LongList.this.get(index));
+            }
+        };
+    }
+
+    /** @return the ids as an ArrayList of Strings. */
+    public ArrayList toStringArrayList() {
+        ArrayList list = new ArrayList(size);
+        for (int i = 0; i < size; i++) {
+            list.add(Long.toString(values[i]));
+        }
+        return list;
+    }
+
+    /** @return the ids as an ArrayList of Longs. */
+    public ArrayList toLongArrayList() {
+        ArrayList list = new ArrayList(size);
+        for (int i = 0; i < size; i++) {
+            list.add(new Long(values[i]));
+        }
+        return list;
+    }
+
+    public String toString() {
+        StringBuffer sb = new StringBuffer("[");
+        for (int i = 0; i < size; i++) {
+            if (i > 0) {
+                sb.append(", ");
+            }
+            sb.append(values[i]);
+        }
+        return sb.append(']').toString();
+    }
+
+    private static long[] grow(long[] values, int minCapacity) {
+        int capacity = Math.max(minCapacity, values.length + (values.length >> 1));
+        if (minCapacity <= values.length) {
+            capacity = minCapacity;
+        }
+        long[] grown = new long[capacity];
+        System.arraycopy(values, 0, grown, 0, Math.min(values.length, capacity));
+        return grown;
+    }
+
+    private abstract class View extends AbstractList implements RandomAccess {
+        public int size() {
+            return size;
+        }
+    }
+}
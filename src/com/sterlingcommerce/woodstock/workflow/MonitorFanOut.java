@@ -0,0 +1,275 @@
+package com.sterlingcommerce.woodstock.workflow;
+
+import java.sql.Connection;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+import com.sterlingcommerce.woodstock.util.frame.jdbc.Conn;
+
+/**
+ * Runs the per-workflow reads of the WorkFlowMonitor over more than one
+ * pooled connection.
+ *
+ * A run splits the items 0..size-1 into ranges of <tt>grain</tt> items.
+ * The calling thread and up to parallelism-1 pool threads take ranges
+ * one at a time until none are left, each on its own connection, and
+ * write their results by index into arrays of the caller, so the order
+ * of the results is the order of the items.
+ *
+ * A pool thread gets its connection from the default pool only once it
+ * has a range to work on.  When the pool threads are busy or no
+ * connection can be had, the calling thread does the remaining ranges
+ * itself, so a run never waits for a thread or a connection that is
+ * not there.  The calling thread works on the connection it was given,
+ * or on a pooled one when it was given none.
+ *
+ * The first exception of any range stops the others from taking more
+ * ranges and is thrown by run().  An interrupted caller cancels the
+ * run the same way.  The pool threads work under the MonitorQuery of
+ * the calling thread, so cancelling it stops their statements too.  A run started from a pool thread, or with a
+ * parallelism of 1 or less, does all ranges in the calling thread.
+ */
+final class MonitorFanOut {
+
+    /**
+     * One range of a run.
+     */
+    interface Work {
+        /**
+         * Handles the items <tt>from</tt> (inclusive) to <tt>to</tt>
+         * (exclusive) on the connection.
+         */
+        void run(int from, int to, Connection conn) throws Exception;
+    }
+
+    //set while a pool thread works on a range, nested runs stay inline
+    private static final ThreadLocal inPool = new ThreadLocal();
+
+    private final int parallelism;
+    private ThreadPoolExecutor executor = null;
+
+    MonitorFanOut(int parallelism) {
+        this.parallelism = parallelism;
+    }
+
+    int getParallelism() {
+        return parallelism;
+    }
+
+    /**
+     * Runs <tt>work</tt> over the items 0..size-1.
+     *
+     * @param conn - the connection of the calling thread, a pooled one
+     * is used while running if <tt>null</tt>.
+     */
+    void run(int size, int grain, Connection conn, Work work)
+        throws Exception {
+
+        if (size <= 0) {
+            return;
+        }
+        if (grain < 1) {
+            grain = 1;
+        }
+        int ranges = (size + grain - 1) / grain;
+        int helpers = Math.min(parallelism, ranges) - 1;
+        if (helpers <= 0 || inPool.get() != null) {
+            runInline(size, conn, work);
+            return;
+        }
+
+        Run r = new Run(size, grain, work);
+        ArrayList tasks = new ArrayList(helpers);
+        ThreadPoolExecutor pool = getExecutor();
+        for (int i = 0; i < helpers; i++) {
+            Helper h = new Helper(r);
+            try {
+                h.future = pool.submit(h);
+            } catch (RejectedExecutionException re) {
+                break;
+            }
+            tasks.add(h);
+        }
+
+        try {
+            r.work(conn);
+        } catch (Exception e) {
+            // kept by the run, thrown once the helpers have stopped
+        } finally {
+            // helpers not started yet are not needed any more, the
+            // calling thread has taken every range
+            for (int i = 0; i < tasks.size(); i++) {
+                Helper h = (Helper)tasks.get(i);
+                if (h.claim()) {
+                    h.future.cancel(false);
+                }
+            }
+        }
+
+        try {
+            for (int i = 0; i < tasks.size(); i++) {
+                Helper h = (Helper)tasks.get(i);
+                if (!h.future.isCancelled()) {
+                    h.future.get();
+                }
+            }
+        } catch (InterruptedException ie) {
+            r.fail(ie);
+            for (int i = 0; i < tasks.size(); i++) {
+                ((Helper)tasks.get(i)).future.cancel(true);
+            }
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException ee) {
+            r.fail(ee.getCause());
+        }
+        r.rethrow();
+    }
+
+    private static void runInline(int size, Connection conn, Work work)
+        throws Exception {
+        Connection c = conn;
+        try {
+            if (c == null) {
+                c = Conn.getConnection();
+            }
+            work.run(0, size, c);
+        } finally {
+            if (conn == null && c != null) {
+                WorkFlowMonitor.freeConnection(c);
+            }
+        }
+    }
+
+    private synchronized ThreadPoolExecutor getExecutor() {
+        if (executor == null) {
+            final AtomicInteger count = new AtomicInteger();
+            executor = new ThreadPoolExecutor(parallelism - 1, parallelism - 1,
+                                              60, TimeUnit.SECONDS,
+                                              new LinkedBlockingQueue(),
+                                              new ThreadFactory() {
+                    public Thread newThread(Runnable task) {
+                        Thread t = new Thread(task, "WorkFlowMonitor-fanout-" +
+                                              count.incrementAndGet());
+                        t.setDaemon(true);
+                        return t;
+                    }
+                });
+            executor.allowCoreThreadTimeOut(true);
+        }
+        return executor;
+    }
+
+    /**
+     * The ranges of one run, shared by the calling thread and its
+     * helpers.
+     */
+    private static final class Run {
+        private final int size;
+        private final int grain;
+        private final Work work;
+        private final AtomicInteger next = new AtomicInteger();
+        private final AtomicReference failure = new AtomicReference();
+        //the MonitorQuery of the calling thread, for its helpers
+        private final MonitorQuery query = MonitorQuery.current();
+
+        Run(int size, int grain, Work work) {
+            this.size = size;
+            this.grain = grain;
+            this.work = work;
+        }
+
+        boolean hasMore() {
+            return failure.get() == null && next.get() < size;
+        }
+
+        /**
+         * Works on ranges until none are left.  A null connection is
+         * taken from the pool before the first range.
+         */
+        void work(Connection conn) throws Exception {
+            if (!hasMore()) {
+                return;
+            }
+            Connection c = conn;
+            try {
+                if (c == null) {
+                    c = Conn.getConnection();
+                }
+                while (failure.get() == null) {
+                    int from = next.getAndAdd(grain);
+                    if (from >= size) {
+                        break;
+                    }
+                    work.run(from, Math.min(from + grain, size), c);
+                }
+            } catch (Exception e) {
+                fail(e);
+                throw e;
+            } finally {
+                if (conn == null && c != null) {
+                    WorkFlowMonitor.freeConnection(c);
+                }
+            }
+        }
+
+        void fail(Throwable t) {
+            failure.compareAndSet(null, t);
+        }
+
+        void rethrow() throws Exception {
+            Throwable t = (Throwable)failure.get();
+            if (t == null) {
+                return;
+            }
+            if (t instanceof Exception) {
+                throw (Exception)t;
+            }
+            if (t instanceof Error) {
+                throw (Error)t;
+            }
+            throw new ExecutionException(t);
+        }
+    }
+
+    /**
+     * A pool thread's part of a run.  Either it or the calling thread
+     * claims it, whichever comes first.
+     */
+    private static final class Helper implements Callable {
+        private final Run run;
+        private final AtomicBoolean claimed = new AtomicBoolean(false);
+        Future future;
+
+        Helper(Run run) {
+            this.run = run;
+        }
+
+        boolean claim() {
+            return claimed.compareAndSet(false, true);
+        }
+
+        public Object call() throws Exception {
+            if (!claim() || !run.hasMore()) {
+                return null;
+            }
+            Connection conn = null;
+            try {
+                conn = Conn.getConnection();
+            } catch (Exception e) {
+                // no connection to spare, the calling thread goes on alone
+                return null;
+            }
+            inPool.set(Boolean.TRUE);
+            MonitorQuery before = MonitorQuery.enter(run.query);
+            try {
+                run.work(conn);
+            } finally {
+                MonitorQuery.exit(before);
+                inPool.set(null);
+                WorkFlowMonitor.freeConnection(conn);
+            }
+            return null;
+        }
+    }
+}
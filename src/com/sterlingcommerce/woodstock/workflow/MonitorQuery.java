@@ -0,0 +1,156 @@
+package com.sterlingcommerce.woodstock.workflow;
+
+import java.sql.*;
+import java.util.*;
+
+/**
+ * The statements one WorkFlowMonitorAsync query is running, so that
+ * cancelling the query can stop them with Statement.cancel() instead of
+ * interrupting its thread.  An interrupt inside the JDBC driver can
+ * leave the connection broken when it goes back to the pool, a
+ * cancelled statement just fails with an SQLException.
+ *
+ * A query is bound to the thread that runs it with enter() and exit(),
+ * and MonitorFanOut binds it to its pool threads for the ranges they
+ * take.  The statements are watched from the time they are prepared
+ * until they are closed or given back to the MonitorStatementCache.
+ * Once the query is cancelled no new statement can be prepared for it.
+ *
+ * Threads without a query are not watched, and every method is a no-op
+ * for them.
+ */
+final class MonitorQuery {
+
+    private static final ThreadLocal current = new ThreadLocal();
+
+    //by identity, a pool may wrap statements with an equals() of its own
+    private final ArrayList statements = new ArrayList();
+    private boolean cancelled = false;
+
+    /**
+     * Binds <tt>query</tt> to the calling thread.
+     *
+     * @return the query bound before, to be given to exit().
+     */
+    static MonitorQuery enter(MonitorQuery query) {
+        MonitorQuery before = (MonitorQuery)current.get();
+        current.set(query);
+        return before;
+    }
+
+    /**
+     * Binds the query that was bound before enter() again.
+     */
+    static void exit(MonitorQuery before) {
+        current.set(before);
+    }
+
+    /** @return the query of the calling thread, null if it has none. */
+    static MonitorQuery current() {
+        return (MonitorQuery)current.get();
+    }
+
+    /**
+     * @return true if the query of the calling thread has been
+     * cancelled.
+     */
+    static boolean isCancelled() {
+        MonitorQuery q = current();
+        return q != null && q.cancelledNow();
+    }
+
+    /**
+     * @throws SQLException - the query of the calling thread has been
+     * cancelled.
+     */
+    static void check() throws SQLException {
+        if (isCancelled()) {
+            throw new SQLException("WorkFlowMonitor query cancelled");
+        }
+    }
+
+    /**
+     * Prepares <tt>sql</tt> and watches the statement.  Give it back
+     * with close().
+     */
+    static PreparedStatement prepare(Connection conn, String sql)
+        throws SQLException {
+        check();
+        PreparedStatement pstmt = conn.prepareStatement(sql);
+        watch(pstmt);
+        return pstmt;
+    }
+
+    /**
+     * Stops watching a statement from prepare() and closes it.
+     */
+    static void close(Statement stmt) throws SQLException {
+        if (stmt != null) {
+            unwatch(stmt);
+            stmt.close();
+        }
+    }
+
+    /**
+     * Watches a statement for the query of the calling thread.
+     */
+    static void watch(Statement stmt) {
+        MonitorQuery q = current();
+        if (q != null) {
+            q.add(stmt);
+        }
+    }
+
+    /**
+     * Stops watching a statement, before it is closed or given to
+     * another caller.
+     */
+    static void unwatch(Statement stmt) {
+        MonitorQuery q = current();
+        if (q != null) {
+            q.remove(stmt);
+        }
+    }
+
+    private synchronized boolean cancelledNow() {
+        return cancelled;
+    }
+
+    private synchronized void add(Statement stmt) {
+        statements.add(stmt);
+        if (cancelled) {
+            // cancelled while it was being prepared
+            cancel(stmt);
+        }
+    }
+
+    private synchronized void remove(Statement stmt) {
+        // waits for a cancel() in progress, so a statement is never
+        // cancelled once another caller may have it
+        for (int i = statements.size() - 1; i >= 0; i--) {
+            if (statements.get(i) == stmt) {
+                statements.remove(i);
+                return;
+            }
+        }
+    }
+
+    /**
+     * Cancels the statements the query is running and fails the ones
+     * it would prepare next.
+     */
+    synchronized void cancel() {
+        cancelled = true;
+        for (int i = 0; i < statements.size(); i++) {
+            cancel((Statement)statements.get(i));
+        }
+    }
+
+    private static void cancel(Statement stmt) {
+        try {
+            stmt.cancel();
+        } catch (SQLException sqe) {
+            // done or closed already
+        }
+    }
+}
@@ -0,0 +1,421 @@
+package com.sterlingcommerce.woodstock.workflow;
+
+import java.util.*;
+import java.sql.Connection;
+
+import com.sterlingcommerce.woodstock.util.frame.jdbc.JDBCService;
+
+/**
+ * The named SQL of the WorkFlowMonitor, resolved at startup.
+ *
+ * getStateAndStatusSql() alone used to call JDBCService.getNamedSQL()
+ * for more than a dozen fragments per search.  Every named SQL the
+ * monitor uses is a Key constant of this class, and a registry holds
+ * the SQL of every key for one pool in an array indexed by key, so a
+ * lookup is one array read.  Keys that have no SQL for the pool's
+ * database are held as null, as getNamedSQL() would have returned,
+ * unless the key has SQL of its own to fall back on.
+ *
+ * init() resolves the pools the monitor is configured with, once, from
+ * the WorkFlowMonitor static initializer; a registry never changes
+ * afterwards.  A pool that could not be resolved then (the SQL service
+ * was not ready) or that was not configured is resolved on its first
+ * lookup.
+ *
+ * A connection passed in by a caller may come from any pool.  When the
+ * configured pools all have the same SQL, which is the case when they
+ * use the same database, its SQL is that of the pools.  Otherwise the
+ * SQL is looked up through the connection, as getNamedSQL(conn, key)
+ * does, once per key and connection.
+ *
+ * reload() resolves the configured pools again, e.g. after the jdbc SQL
+ * properties have been changed.
+ */
+final class MonitorSQLRegistry {
+
+    /**
+     * A named SQL key of the monitor, and its slot in every registry.
+     */
+    static final class Key {
+        final String name;
+        final int index;
+        //the SQL used when the jdbc SQL properties have none, or null
+        final String fallback;
+
+        private Key(String name, int index, String fallback) {
+            this.name = name;
+            this.index = index;
+            this.fallback = fallback;
+        }
+
+        public String toString() {
+            return name;
+        }
+    }
+
+    //every key, in index order, and by name
+    private static final ArrayList KEYS = new ArrayList();
+    private static final HashMap BY_NAME = new HashMap();
+
+    private static Key key(String name) {
+        return key(name, null);
+    }
+
+    private static Key key(String name, String fallback) {
+        Key k = new Key(name, KEYS.size(), fallback);
+        KEYS.add(k);
+        BY_NAME.put(name, k);
+        return k;
+    }
+
+    static final Key STATE_AND_STATUS_ARCHIVE_INFO_SUBSELECT =
+        key("getStateAndStatus_ARCHIVE_INFO_SUBSELECT");
+    static final Key STATE_AND_STATUS_BADSTATE_BADSTATUS_MIDDLE =
+        key("getStateAndStatus_BADSTATE_BADSTATUS_MIDDLE");
+    static final Key STATE_AND_STATUS_BADSTATE_BADSTATUS_MIDDLE_2 =
+        key("getStateAndStatus_BADSTATE_BADSTATUS_MIDDLE_2");
+    static final Key STATE_AND_STATUS_BADSTATE_MIDDLE =
+        key("getStateAndStatus_BADSTATE_MIDDLE");
+    static final Key STATE_AND_STATUS_BADSTATUS_END =
+        key("getStateAndStatus_BADSTATUS_END");
+    static final Key STATE_AND_STATUS_BADSTATUS_MIDDLE =
+        key("getStateAndStatus_BADSTATUS_MIDDLE");
+    static final Key STATE_AND_STATUS_COMPLETE_BADSTATE_BADSTATUS_MIDDLE =
+        key("getStateAndStatus_COMPLETE_BADSTATE_BADSTATUS_MIDDLE");
+    static final Key STATE_AND_STATUS_COMPLETE_BADSTATE_BADSTATUS_MIDDLE_2 =
+        key("getStateAndStatus_COMPLETE_BADSTATE_BADSTATUS_MIDDLE_2");
+    static final Key STATE_AND_STATUS_COMPLETE_BADSTATE_BADSTATUS_MIDDLE_2_NOTIME =
+        key("getStateAndStatus_COMPLETE_BADSTATE_BADSTATUS_MIDDLE_2_NOTIME");
+    static final Key STATE_AND_STATUS_COMPLETE_BADSTATE_MIDDLE =
+        key("getStateAndStatus_COMPLETE_BADSTATE_MIDDLE");
+    static final Key STATE_AND_STATUS_COMPLETE_BADSTATE_MIDDLE_2 =
+        key("getStateAndStatus_COMPLETE_BADSTATE_MIDDLE_2");
+    static final Key STATE_AND_STATUS_COMPLETE_BADSTATUS_MIDDLE =
+        key("getStateAndStatus_COMPLETE_BADSTATUS_MIDDLE");
+    static final Key STATE_AND_STATUS_COMPLETE_BADSTATUS_MIDDLE_NOTIME =
+        key("getStateAndStatus_COMPLETE_BADSTATUS_MIDDLE_NOTIME");
+    static final Key STATE_AND_STATUS_COMPLETE_MIDDLE =
+        key("getStateAndStatus_COMPLETE_MIDDLE");
+    static final Key STATE_AND_STATUS_DEFAULT_BEGIN =
+        key("getStateAndStatus_DEFAULT_BEGIN");
+    static final Key STATE_AND_STATUS_DEFAULT_MIDDLE =
+        key("getStateAndStatus_DEFAULT_MIDDLE");
+    static final Key STATE_AND_STATUS_DERIVED_BEGIN =
+        key("getStateAndStatus_DERIVED_BEGIN");
+    static final Key STATE_AND_STATUS_MAIN = key("getStateAndStatus_MAIN");
+    static final Key STATE_AND_STATUS_MAIN_2 = key("getStateAndStatus_MAIN_2");
+    static final Key STATE_AND_STATUS_MAIN_3 = key("getStateAndStatus_MAIN_3");
+    static final Key STATE_AND_STATUS_ORDER_BY =
+        key("getStateAndStatus_ORDER_BY");
+    static final Key STATE_AND_STATUS_ORDER_BY_DERIVED =
+        key("getStateAndStatus_ORDER_BY_DERIVED");
+    static final Key STATE_AND_STATUS_ORDER_BY_WFID =
+        key("getStateAndStatus_ORDER_BY_WFID");
+    static final Key STATE_AND_STATUS_STATE_FILTER =
+        key("getStateAndStatus_STATE_FILTER");
+    static final Key STATE_AND_STATUS_STATUS_FILTER =
+        key("getStateAndStatus_STATUS_FILTER");
+    static final Key STATE_AND_STATUS_HINT_ACTIVE =
+        key("getStateAndStatus_HINT_ACTIVE");
+    static final Key STATE_AND_STATUS_HINT_ACTIVE_WFD =
+        key("getStateAndStatus_HINT_ACTIVE_WFD");
+    static final Key STATE_AND_STATUS_HINT_ACTIVE_BADSTATUS =
+        key("getStateAndStatus_HINT_ACTIVE_BADSTATUS");
+    static final Key STATE_AND_STATUS_HINT_ACTIVE_BADSTATUS_WFD =
+        key("getStateAndStatus_HINT_ACTIVE_BADSTATUS_WFD");
+    static final Key STATE_AND_STATUS_HINT_BADSTATE =
+        key("getStateAndStatus_HINT_BADSTATE");
+    static final Key STATE_AND_STATUS_HINT_BADSTATE_WFD =
+        key("getStateAndStatus_HINT_BADSTATE_WFD");
+    static final Key STATE_AND_STATUS_HINT_BADSTATE_BADSTATUS =
+        key("getStateAndStatus_HINT_BADSTATE_BADSTATUS");
+    static final Key STATE_AND_STATUS_HINT_BADSTATE_BADSTATUS_WFD =
+        key("getStateAndStatus_HINT_BADSTATE_BADSTATUS_WFD");
+    static final Key STATE_AND_STATUS_HINT_BADSTATUS =
+        key("getStateAndStatus_HINT_BADSTATUS");
+    static final Key STATE_AND_STATUS_HINT_BADSTATUS_WFD =
+        key("getStateAndStatus_HINT_BADSTATUS_WFD");
+    static final Key STATE_AND_STATUS_HINT_COMPLETE =
+        key("getStateAndStatus_HINT_COMPLETE");
+    static final Key STATE_AND_STATUS_HINT_COMPLETE_WFD =
+        key("getStateAndStatus_HINT_COMPLETE_WFD");
+    static final Key STATE_AND_STATUS_HINT_COMPLETE_BADSTATE =
+        key("getStateAndStatus_HINT_COMPLETE_BADSTATE");
+    static final Key STATE_AND_STATUS_HINT_COMPLETE_BADSTATE_BADSTATUS =
+        key("getStateAndStatus_HINT_COMPLETE_BADSTATE_BADSTATUS");
+    static final Key STATE_AND_STATUS_HINT_COMPLETE_BADSTATE_BADSTATUS_WFD =
+        key("getStateAndStatus_HINT_COMPLETE_BADSTATE_BADSTATUS_WFD");
+    static final Key STATE_AND_STATUS_HINT_COMPLETE_BADSTATUS =
+        key("getStateAndStatus_HINT_COMPLETE_BADSTATUS");
+    static final Key STATE_AND_STATUS_HINT_COMPLETE_BADSTATUS_WFD =
+        key("getStateAndStatus_HINT_COMPLETE_BADSTATUS_WFD");
+    static final Key STATE_AND_STATUS_HINT_DEFAULT =
+        key("getStateAndStatus_HINT_DEFAULT");
+    static final Key STATE_AND_STATUS_HINT_DEFAULT_WFD =
+        key("getStateAndStatus_HINT_DEFAULT_WFD");
+    static final Key FORCETERMINATE = key("wfm_forceterminate");
+    static final Key GET_ALL_BRANCH_IDS = key("wfm_getAllBranchIds");
+    static final Key GET_ALL_CONTEXT_IDS = key("wfm_getAllContextIds");
+    static final Key GET_ALL_IDS = key("wfm_getAllIds");
+    static final Key GET_ALL_IDS_S1 = key("wfm_getAllIds_s1");
+    static final Key GET_ALL_IDS_WITH_STATE_NEW_WHERE =
+        key("wfm_getAllIdsWithStateNew_where");
+    //wfm_getAllIdsWithStateNew_where without its ORDER BY, for use
+    //inside a derived table
+    static final Key GET_ALL_IDS_WITH_STATE_NEW_WHERE_UNORDERED =
+        key("wfm_getAllIdsWithStateNew_where_unordered");
+    static final Key GET_BRANCH_STATE = key("wfm_getBranchState");
+    static final Key GET_BRANCH_STATUS = key("wfm_getBranchStatus");
+    //The last row (highest STEP_ID) of every branch, up to the
+    //comparison on the workflow id: the caller appends "= ?" or an IN
+    //list.  Portable, for the databases whose SQL properties do not
+    //define it.
+    static final Key GET_BRANCH_TIPS = key("wfm_getBranchTips",
+        "SELECT WFC.WORKFLOW_ID, WFC.BRANCH_ID, WFC.NEXT_AI_ID, "+
+        "       WFC.ACTIVITYINFO_ID, WFC.WFE_STATUS, WFC.BASIC_STATUS "+
+        "  FROM WORKFLOW_CONTEXT WFC "+
+        " WHERE WFC.STEP_ID = (SELECT MAX(LAST_WFC.STEP_ID) "+
+        "                        FROM WORKFLOW_CONTEXT LAST_WFC "+
+        "                       WHERE LAST_WFC.WORKFLOW_ID = WFC.WORKFLOW_ID "+
+        "                         AND LAST_WFC.BRANCH_ID = WFC.BRANCH_ID) "+
+        "   AND WFC.WORKFLOW_ID ");
+    //portable, for the databases whose SQL properties do not define it
+    static final Key GET_INACTIVE_WFS = key("wfm_getInactiveWFs",
+        "SELECT WF_ID FROM WF_INACTIVE WHERE REASON IS NOT NULL");
+    static final Key GET_INSTANCE_STATE = key("wfm_getInstanceState");
+    static final Key GET_INSTANCE_STATUS = key("wfm_getInstanceStatus");
+    static final Key GET_LAST_VALID_BRANCH_STEP_ID =
+        key("wfm_getLastValidBranchStepId");
+    static final Key GET_LAST_WFC_ID = key("wfm_getLastWFCId");
+    static final Key GET_MOVABLE_IDS_S = key("wfm_getMovableIds_s");
+    static final Key GET_MOVABLE_IDS_S1 = key("wfm_getMovableIds_s1");
+    static final Key GET_MOVABLE_IDS_S2 = key("wfm_getMovableIds_s2");
+    static final Key GET_MOVABLE_IDS_S3 = key("wfm_getMovableIds_s3");
+    static final Key GET_NEXT_AI_ID = key("wfm_getNextAIId");
+    static final Key GET_PERSISTENCE_LEVEL = key("wfm_getPersistenceLevel");
+    static final Key GET_PERSISTENCE_LEVEL_S1 =
+        key("wfm_getPersistenceLevel_s1");
+    static final Key GET_PERSISTENCE_LEVEL_S2 =
+        key("wfm_getPersistenceLevel_s2");
+    static final Key GET_STATE_S = key("wfm_getState_s");
+    static final Key GET_STATE_S1 = key("wfm_getState_s1");
+    static final Key GET_SYSTEM_SHUTDOWN_LIST =
+        key("wfm_getSystemShutdownList");
+    static final Key GET_SYSTEM_SHUTDOWN_LIST_S1 =
+        key("wfm_getSystemShutdownList_s1");
+    static final Key GET_WF_SUM_INFO_S = key("wfm_getWFSumInfo_s");
+    static final Key GET_WF_SUM_INFO_S1 = key("wfm_getWFSumInfo_s1");
+    static final Key GET_WF_SUM_INFO_S2 = key("wfm_getWFSumInfo_s2");
+    static final Key GET_WF_SUM_INFO_S3 = key("wfm_getWFSumInfo_s3");
+    static final Key GET_WF_SUM_INFO_S4 = key("wfm_getWFSumInfo_s4");
+    static final Key IS_WF_INACTIVE = key("wfm_isWFInactive");
+    static final Key NUM_NON_INDEXED_BPS = key("wfm_numNonIndexedBPs");
+    static final Key SIMPLEREAD_WFC = key("wfm_simpleread_wfc");
+    static final Key GET_NEXT_WFC_STATUS =
+        key("WorkFlowMonitorGetNextWfcStatus");
+
+    //stands for a key not looked up yet on a connection
+    private static final String UNRESOLVED = new String("UNRESOLVED");
+
+    private static String[] configured = new String[0];
+    private static String defaultPool = null;
+
+    //pool name -> registry, replaced as a whole when a pool is added
+    private static volatile Map registries = Collections.EMPTY_MAP;
+
+    //the registry of dbPool, read on every namedSQL() of the monitor
+    private static volatile MonitorSQLRegistry defaultRegistry = null;
+
+    //the registry every configured pool agrees with, null if they differ
+    private static volatile MonitorSQLRegistry common = null;
+
+    //connection -> String[] by key index, only while the pools differ
+    private static final WeakHashMap connections = new WeakHashMap();
+
+    private final String pool;
+    private final String[] sql;
+    private final boolean empty;
+
+    private MonitorSQLRegistry(String pool, String[] sql, boolean empty) {
+        this.pool = pool;
+        this.sql = sql;
+        this.empty = empty;
+    }
+
+    /**
+     * @return the key of a name, null if the monitor has no such key.
+     */
+    static Key forName(String name) {
+        return (Key)BY_NAME.get(name);
+    }
+
+    /**
+     * Resolves every key for the configured pools.  The first pool is
+     * the one getDefault() returns.
+     */
+    static synchronized void init(String[] pools) {
+        ArrayList names = new ArrayList();
+        for (int i = 0; i < pools.length; i++) {
+            // a null pool is the default pool of the SQL service
+            if (!names.contains(pools[i])) {
+                names.add(pools[i]);
+            }
+        }
+        configured = (String[])names.toArray(new String[names.size()]);
+        defaultPool = (configured.length > 0) ? configured[0] : null;
+        resolveConfigured();
+    }
+
+    /**
+     * Resolves the configured pools again and forgets every other
+     * registry.
+     */
+    static synchronized void reload() {
+        resolveConfigured();
+    }
+
+    //called holding the lock
+    private static void resolveConfigured() {
+        HashMap map = new HashMap();
+        for (int i = 0; i < configured.length; i++) {
+            MonitorSQLRegistry r = resolve(configured[i]);
+            if (!r.empty) {
+                map.put(configured[i], r);
+            }
+        }
+        install(map);
+    }
+
+    //called holding the lock
+    private static void install(HashMap map) {
+        MonitorSQLRegistry agreed = null;
+        boolean agree = configured.length > 0;
+        for (int i = 0; i < configured.length && agree; i++) {
+            MonitorSQLRegistry r = (MonitorSQLRegistry)map.get(configured[i]);
+            if (r == null) {
+                agree = false;
+            } else if (agreed == null) {
+                agreed = r;
+            } else if (!Arrays.equals(agreed.sql, r.sql)) {
+                agree = false;
+            }
+        }
+        registries = map;
+        defaultRegistry = (MonitorSQLRegistry)map.get(defaultPool);
+        common = agree ? agreed : null;
+        synchronized (connections) {
+            connections.clear();
+        }
+    }
+
+    /**
+     * @return the registry of the pool the monitor's own connections
+     * come from.
+     */
+    static MonitorSQLRegistry getDefault() {
+        MonitorSQLRegistry registry = defaultRegistry;
+        if (registry != null) {
+            return registry;
+        }
+        return forPool(defaultPool);
+    }
+
+    /**
+     * @return the registry of the pool.  A pool that has not been
+     * resolved yet is resolved now.
+     */
+    static MonitorSQLRegistry forPool(String pool) {
+        MonitorSQLRegistry registry = (MonitorSQLRegistry)registries.get(pool);
+        if (registry != null) {
+            return registry;
+        }
+        synchronized (MonitorSQLRegistry.class) {
+            registry = (MonitorSQLRegistry)registries.get(pool);
+            if (registry != null) {
+                return registry;
+            }
+            registry = resolve(pool);
+            if (!registry.empty) {
+                HashMap copy = new HashMap(registries);
+                copy.put(pool, registry);
+                install(copy);
+            }
+            // else the SQL service is not ready yet, try again next time
+            return registry;
+        }
+    }
+
+    /**
+     * @return the SQL of the key for the pool of the connection, as
+     * JDBCService.getNamedSQL(conn, key) returns it.
+     */
+    static String forConnection(Connection conn, Key key) {
+        MonitorSQLRegistry registry = common;
+        if (registry != null) {
+            return registry.sql[key.index];
+        }
+        return lookup(conn, key);
+    }
+
+    private static String lookup(Connection conn, Key key) {
+        synchronized (connections) {
+            String[] keys = (String[])connections.get(conn);
+            if (keys != null && keys[key.index] != UNRESOLVED) {
+                return keys[key.index];
+            }
+        }
+        String s = JDBCService.getNamedSQL(conn, key.name);
+        if (s == null) {
+            s = key.fallback;
+        }
+        synchronized (connections) {
+            String[] keys = (String[])connections.get(conn);
+            if (keys == null) {
+                keys = new String[KEYS.size()];
+                Arrays.fill(keys, UNRESOLVED);
+                connections.put(conn, keys);
+            }
+            keys[key.index] = s;
+        }
+        return s;
+    }
+
+    private static MonitorSQLRegistry resolve(String pool) {
+        String[] sql = new String[KEYS.size()];
+        boolean empty = true;
+        for (int i = 0; i < sql.length; i++) {
+            Key key = (Key)KEYS.get(i);
+            sql[i] = JDBCService.getNamedSQL(pool, key.name);
+            if (sql[i] != null) {
+                empty = false;
+            } else {
+                sql[i] = key.fallback;
+            }
+        }
+        return new MonitorSQLRegistry(pool, sql, empty);
+    }
+
+    String getPool() {
+        return pool;
+    }
+
+    /**
+     * @return the SQL of the key, null if the pool's database has
+     * none.
+     */
+    String sql(Key key) {
+        return sql[key.index];
+    }
+
+    /**
+     * @return the SQL of the key, looked up through the connection
+     * when the registry has none, as the caller did before.
+     */
+    String sql(Connection conn, Key key) {
+        String s = sql[key.index];
+        if (s == null) {
+            s = forConnection(conn, key);
+        }
+        return s;
+    }
+}
@@ -0,0 +1,319 @@
+package com.sterlingcommerce.woodstock.workflow;
+
+import java.util.*;
+import java.sql.*;
+
+import com.sterlingcommerce.woodstock.util.frame.jdbc.JDBCService;
+
+/**
+ * Keeps the WorkFlowMonitor's prepared statements open between calls
+ * on the same pooled connection while the monitor holds it, so the hot
+ * per-workflow queries of a batch are prepared once per connection
+ * instead of once per call.
+ *
+ * A statement is taken with prepare() and given back with release()
+ * instead of being closed.  If the statement for a key is still taken
+ * (a nested call on the same connection) prepare() returns a new one,
+ * which release() closes.  Each connection holds at most maxSize
+ * statements; past that the least recently used ones not taken are
+ * closed.  The statements of a connection are closed with
+ * closeConnection() before it goes back to the pool, and dropped once
+ * the connection is found closed or broken.  Connections the monitor
+ * was given by a caller are freed by the caller; their statements are
+ * dropped by the next sweep that finds them closed.
+ *
+ * A statement that threw an SQLException is given back with
+ * invalidate() instead, which closes it and drops it from the cache, so
+ * a broken statement is never handed out again.  A caller that gives a
+ * statement back before the end of its method must null its reference,
+ * so that its finally block does not release it a second time.
+ *
+ * A cache with a maxSize of 0 or less prepares and closes a statement
+ * on every call, as before.
+ *
+ * A statement is watched by the MonitorQuery of the calling thread from
+ * prepare() until it is given back, so a cancelled WorkFlowMonitorAsync
+ * query never cancels a statement another caller has taken since.
+ */
+final class MonitorStatementCache {
+
+    private final int maxSize;
+    //connection, by identity -> its statements by key, least recently
+    //used first
+    private final IdentityHashMap connections = new IdentityHashMap();
+    private long hits = 0;
+    private long misses = 0;
+    private long evictions = 0;
+    private long invalidations = 0;
+
+    private static final class CachedStatement {
+        final PreparedStatement pstmt;
+        boolean inUse = false;
+
+        CachedStatement(PreparedStatement pstmt) {
+            this.pstmt = pstmt;
+        }
+    }
+
+    MonitorStatementCache(int maxSize) {
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * Takes the statement for a named SQL key on the connection.
+     */
+    PreparedStatement prepare(Connection conn, String key)
+        throws SQLException {
+        return prepare(conn, key, null);
+    }
+
+    /**
+     * Takes the statement for <tt>sql</tt> on the connection, cached
+     * under <tt>key</tt>.  When <tt>sql</tt> is null the key is looked
+     * up with JDBCService.getNamedSQL().
+     */
+    PreparedStatement prepare(Connection conn, String key, String sql)
+        throws SQLException {
+        MonitorQuery.check();
+        if (maxSize <= 0) {
+            PreparedStatement pstmt =
+                conn.prepareStatement(sql != null ? sql :
+                                      JDBCService.getNamedSQL(conn, key));
+            MonitorQuery.watch(pstmt);
+            return pstmt;
+        }
+
+        boolean cacheable;
+        synchronized (this) {
+            LinkedHashMap statements = (LinkedHashMap)connections.get(conn);
+            CachedStatement e = (statements == null) ? null :
+                (CachedStatement)statements.get(key);
+            if (e != null && conn.isClosed()) {
+                dropConnection(conn);
+                e = null;
+            }
+            if (e != null && !e.inUse) {
+                e.inUse = true;
+                hits++;
+                MonitorQuery.watch(e.pstmt);
+                return e.pstmt;
+            }
+            misses++;
+            cacheable = (e == null);
+        }
+
+        PreparedStatement pstmt =
+            conn.prepareStatement(sql != null ? sql :
+                                  JDBCService.getNamedSQL(conn, key));
+        if (cacheable) {
+            synchronized (this) {
+                LinkedHashMap statements = (LinkedHashMap)connections.get(conn);
+                if (statements == null) {
+                    sweep();
+                    statements = new LinkedHashMap(16, 0.75f, true);
+                    connections.put(conn, statements);
+                }
+                if (!statements.containsKey(key)) {
+                    CachedStatement e = new CachedStatement(pstmt);
+                    e.inUse = true;
+                    statements.put(key, e);
+                    evict(statements);
+                }
+            }
+        }
+        MonitorQuery.watch(pstmt);
+        return pstmt;
+    }
+
+    //called holding the lock, closes the least recently used statements
+    //not taken while the connection holds more than maxSize
+    private void evict(LinkedHashMap statements) {
+        for (Iterator it = statements.values().iterator();
+             statements.size() > maxSize && it.hasNext(); ) {
+            CachedStatement e = (CachedStatement)it.next();
+            if (!e.inUse) {
+                close(e.pstmt);
+                it.remove();
+                evictions++;
+            }
+        }
+    }
+
+    //called holding the lock, drops the connections found closed,
+    //e.g. ones a caller has given back to the pool
+    private void sweep() {
+        for (Iterator it = connections.entrySet().iterator(); it.hasNext(); ) {
+            Map.Entry me = (Map.Entry)it.next();
+            if (isBroken((Connection)me.getKey())) {
+                closeAll((LinkedHashMap)me.getValue());
+                it.remove();
+            }
+        }
+    }
+
+    private static boolean isBroken(Connection conn) {
+        try {
+            return conn.isClosed();
+        } catch (SQLException sqe) {
+            return true;
+        }
+    }
+
+    /**
+     * Gives a statement from prepare() back.  The caller must have
+     * closed its result set.  A statement that is not held by the
+     * cache is closed, and so is a cached one that cannot be reset.
+     */
+    void release(Connection conn, String key, PreparedStatement pstmt)
+        throws SQLException {
+        if (pstmt == null) {
+            return;
+        }
+        MonitorQuery.unwatch(pstmt);
+        if (maxSize > 0) {
+            synchronized (this) {
+                LinkedHashMap statements = (LinkedHashMap)connections.get(conn);
+                CachedStatement e = (statements == null) ? null :
+                    (CachedStatement)statements.get(key);
+                if (e != null && e.pstmt == pstmt) {
+                    try {
+                        pstmt.clearParameters();
+                        e.inUse = false;
+                        return;
+                    } catch (SQLException sqe) {
+                        // closed or broken, the next prepare() makes a new one
+                        statements.remove(key);
+                    }
+                    close(pstmt);
+                    return;
+                }
+                if (holds(statements, pstmt)) {
+                    // cached under another key, never close it from here
+                    return;
+                }
+            }
+        }
+        pstmt.close();
+    }
+
+    /**
+     * Gives back a statement from prepare() that threw an SQLException.
+     * It is closed and no longer cached, and so is every statement of
+     * the connection if the connection is broken.  Does not throw, so
+     * it can be called from a catch block.  A null key just closes the
+     * statement.
+     */
+    void invalidate(Connection conn, String key, PreparedStatement pstmt) {
+        if (pstmt == null) {
+            return;
+        }
+        MonitorQuery.unwatch(pstmt);
+        if (maxSize > 0 && key != null) {
+            synchronized (this) {
+                LinkedHashMap statements = (LinkedHashMap)connections.get(conn);
+                CachedStatement e = (statements == null) ? null :
+                    (CachedStatement)statements.get(key);
+                if (e != null && e.pstmt == pstmt) {
+                    statements.remove(key);
+                    invalidations++;
+                    if (isBroken(conn)) {
+                        dropConnection(conn);
+                    }
+                } else if (holds(statements, pstmt)) {
+                    return;
+                }
+            }
+        }
+        close(pstmt);
+    }
+
+    /**
+     * Closes the statements of a connection before it goes back to the
+     * pool.  Statements still taken are closed by their release().
+     */
+    synchronized void closeConnection(Connection conn) {
+        if (conn != null && !connections.isEmpty()) {
+            dropConnection(conn);
+        }
+    }
+
+    //called holding the lock
+    private static boolean holds(LinkedHashMap statements,
+                                 PreparedStatement pstmt) {
+        if (statements == null) {
+            return false;
+        }
+        for (Iterator it = statements.values().iterator(); it.hasNext(); ) {
+            if (((CachedStatement)it.next()).pstmt == pstmt) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    //called holding the lock
+    private void dropConnection(Connection conn) {
+        LinkedHashMap statements = (LinkedHashMap)connections.remove(conn);
+        if (statements != null) {
+            closeAll(statements);
+        }
+    }
+
+    private static void closeAll(LinkedHashMap statements) {
+        for (Iterator it = statements.values().iterator(); it.hasNext(); ) {
+            CachedStatement e = (CachedStatement)it.next();
+            if (!e.inUse) {
+                close(e.pstmt);
+            }
+        }
+    }
+
+    /**
+     * Closes every statement not taken and forgets them all.  Taken
+     * statements are closed when they are released.
+     */
+    synchronized void clear() {
+        for (Iterator it = connections.values().iterator(); it.hasNext(); ) {
+            closeAll((LinkedHashMap)it.next());
+        }
+        connections.clear();
+    }
+
+    private static void close(PreparedStatement pstmt) {
+        try {
+            pstmt.close();
+        } catch (SQLException sqe) {
+            // the connection is gone already
+        }
+    }
+
+    synchronized long getHits() {
+        return hits;
+    }
+
+    synchronized long getMisses() {
+        return misses;
+    }
+
+    synchronized long getEvictions() {
+        return evictions;
+    }
+
+    synchronized long getInvalidations() {
+        return invalidations;
+    }
+
+    synchronized int size() {
+        int size = 0;
+        for (Iterator it = connections.values().iterator(); it.hasNext(); ) {
+            size += ((Map)it.next()).size();
+        }
+        return size;
+    }
+
+    public synchronized String toString() {
+        return "hits=" + hits + " misses=" + misses +
+            " evictions=" + evictions + " invalidations=" + invalidations +
+            " connections=" + connections.size() + " size=" + size();
+    }
+}
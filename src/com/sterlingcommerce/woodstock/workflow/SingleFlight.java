@@ -0,0 +1,120 @@
+package com.sterlingcommerce.woodstock.workflow;
+
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * Lets callers that ask for the same query at the same time share one
+ * run of it.
+ *
+ * The first caller of a key runs the query in its own thread.  Callers
+ * of the same key that come while it runs wait for it and get its
+ * result, or its exception.  A caller that comes after it is done runs
+ * the query again, so nothing is kept between runs.
+ *
+ * Callers that shared a run get a copy of the result each, made by the
+ * Copy of the call, so none of them sees another change its result.
+ * The first caller gets the result itself when nobody joined before it
+ * closed the run; a caller too late to join runs the query again.
+ */
+final class SingleFlight {
+
+    /**
+     * Copies a result for one of the callers that shared a run.
+     */
+    interface Copy {
+        Object copy(Object result);
+    }
+
+    private final ConcurrentHashMap flights = new ConcurrentHashMap();
+    private final AtomicLong executed = new AtomicLong();
+    private final AtomicLong coalesced = new AtomicLong();
+
+    /**
+     * @return the result of <tt>query</tt>, run now or by another
+     * caller of <tt>key</tt>.
+     */
+    Object run(String key, Callable query, Copy copy) throws Exception {
+        Flight mine = new Flight(query);
+        Flight flight = (Flight)flights.putIfAbsent(key, mine);
+        if (flight == null) {
+            executed.incrementAndGet();
+            try {
+                mine.task.run();
+            } finally {
+                // later callers run the query again
+                flights.remove(key, mine);
+            }
+            // closing a flight nobody joined hands the result over
+            boolean alone = mine.waiters.compareAndSet(0, Flight.CLOSED);
+            Object result = get(mine.task);
+            if (result == null || alone) {
+                return result;
+            }
+            return copy.copy(result);
+        }
+
+        if (!flight.join()) {
+            // its result has been handed over, run the query again
+            return run(key, query, copy);
+        }
+        coalesced.incrementAndGet();
+        Object result = get(flight.task);
+        return (result == null) ? null : copy.copy(result);
+    }
+
+    long getExecuted() {
+        return executed.get();
+    }
+
+    long getCoalesced() {
+        return coalesced.get();
+    }
+
+    public String toString() {
+        return "SingleFlight[executed=" + executed.get() +
+            ", coalesced=" + coalesced.get() +
+            ", inFlight=" + flights.size() + "]";
+    }
+
+    private static Object get(FutureTask task) throws Exception {
+        try {
+            return task.get();
+        } catch (ExecutionException ee) {
+            Throwable t = ee.getCause();
+            if (t instanceof Exception) {
+                throw (Exception)t;
+            }
+            if (t instanceof Error) {
+                throw (Error)t;
+            }
+            throw ee;
+        }
+    }
+
+    private static final class Flight {
+        static final int CLOSED = -1;
+
+        final FutureTask task;
+        final AtomicInteger waiters = new AtomicInteger();
+
+        Flight(Callable query) {
+            task = new FutureTask(query);
+        }
+
+        /**
+         * @return false if the flight is closed to more waiters.
+         */
+        boolean join() {
+            for (;;) {
+                int n = waiters.get();
+                if (n == CLOSED) {
+                    return false;
+                }
+                if (waiters.compareAndSet(n, n + 1)) {
+                    return true;
+                }
+            }
+        }
+    }
+}
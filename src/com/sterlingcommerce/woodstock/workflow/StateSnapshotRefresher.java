@@ -0,0 +1,142 @@
+package com.sterlingcommerce.woodstock.workflow;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Takes a WorkFlowStateSnapshot every <tt>interval</tt> ms in a
+ * background thread and hands the latest one to every reader, so the
+ * admin UI counts the live workflows once per interval however many
+ * sessions are watching.
+ *
+ * The refresher starts with the first read and stops by itself once
+ * nobody has read for IDLE_INTERVALS intervals.  A read never counts
+ * the workflows itself: it returns the latest snapshot, and a read
+ * while the refresher is stopped starts it with an immediate snapshot
+ * if the last one is older than an interval.  Until the first snapshot
+ * has been taken a read waits for it, up to FIRST_WAIT ms, and gets
+ * null only if it takes longer.  After an idle stop a read gets the
+ * last snapshot at once while a new one is taken; a snapshot that
+ * fails keeps the last good one in place.  Its age shows how old it
+ * is.
+ */
+final class StateSnapshotRefresher implements Runnable {
+
+    //Intervals without a reader before the refresher stops.
+    static final int IDLE_INTERVALS = 30;
+
+    //Longest a read waits for the first snapshot, in ms.
+    static final long FIRST_WAIT = 30000;
+
+    private static final String myClassName = "StateSnapshotRefresher";
+
+    private final long interval;
+    private final int sampleSize;
+
+    private volatile WorkFlowStateSnapshot current = null;
+    private volatile long lastRead = 0;
+    private volatile boolean running = false;
+
+    private ScheduledThreadPoolExecutor scheduler = null;
+    private ScheduledFuture task = null;
+
+    StateSnapshotRefresher(long interval, int sampleSize) {
+        this.interval = Math.max(interval, 1000);
+        this.sampleSize = sampleSize;
+    }
+
+    /**
+     * @return the latest snapshot, null if the first one could not be
+     * taken within FIRST_WAIT ms.
+     */
+    WorkFlowStateSnapshot get() {
+        lastRead = System.currentTimeMillis();
+        if (!running) {
+            synchronized (this) {
+                start();
+            }
+        }
+        WorkFlowStateSnapshot s = current;
+        if (s == null) {
+            s = awaitFirst();
+        }
+        return s;
+    }
+
+    private synchronized WorkFlowStateSnapshot awaitFirst() {
+        long until = System.currentTimeMillis() + FIRST_WAIT;
+        try {
+            while (current == null) {
+                long left = until - System.currentTimeMillis();
+                if (left <= 0) {
+                    break;
+                }
+                wait(left);
+            }
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        }
+        return current;
+    }
+
+    public void run() {
+        if (System.currentTimeMillis() - lastRead > interval * IDLE_INTERVALS) {
+            synchronized (this) {
+                if (task != null) {
+                    task.cancel(false);
+                    task = null;
+                }
+                running = false;
+            }
+            return;
+        }
+        try {
+            WorkFlowStateSnapshot taken = take();
+            if (taken != null) {
+                synchronized (this) {
+                    current = taken;
+                    notifyAll();
+                }
+            }
+        } catch (RuntimeException e) {
+            // an exception would stop the schedule, try again next time
+            WFGlobals.out.logException( WFGlobals.WORKFLOW , WFGlobals.WORKFLOW , "ERR_StateSnapshotRefresher_run" ,  new Object[]{ "" + myClassName }, e);
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * @return a new snapshot, null if the counts could not be read.
+     */
+    private WorkFlowStateSnapshot take() {
+        long start = System.currentTimeMillis();
+        ArrayList entries = new WorkFlowMonitor().getAllIdsWithStateCounts(null,
+                                                                           sampleSize);
+        if (entries == null || entries.isEmpty()) {
+            return null;
+        }
+        return new WorkFlowStateSnapshot(entries, start);
+    }
+
+    //called holding the lock
+    private void start() {
+        if (running) {
+            return;
+        }
+        if (scheduler == null) {
+            scheduler = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+                    public Thread newThread(Runnable r) {
+                        Thread t = new Thread(r, "WorkFlowMonitor-snapshot");
+                        t.setDaemon(true);
+                        return t;
+                    }
+                });
+        }
+        // a missing or old snapshot is taken right away
+        WorkFlowStateSnapshot s = current;
+        long delay = (s == null || s.getAge() > interval) ? 0 : interval;
+        task = scheduler.scheduleWithFixedDelay(this, delay, interval,
+                                                TimeUnit.MILLISECONDS);
+        running = true;
+    }
+}
@@ -0,0 +1,83 @@
+package com.sterlingcommerce.woodstock.workflow;
+
+/**
+ * How much a BASIC_STATUS of a WORKFLOW_CONTEXT row counts towards the
+ * status of its branch and workflow, in one table for every status
+ * read of the WorkFlowMonitor.
+ *
+ * The error codes, the interrupts and their *_OFFSET forms (written to
+ * BASIC_STATUS once a workflow has finished) are ERROR, WARNING is
+ * WARNING, anything else counts as a success.  The table is an array
+ * indexed by code from the lowest to the highest of these codes, so a
+ * lookup is one bounds check and one array read.
+ */
+final class StatusSeverity {
+
+    static final int SUCCESS = 0;
+    static final int WARNING = 1;
+    static final int ERROR = 2;
+
+    private static final int[] ERROR_CODES = {
+        WorkFlowContext.ERROR,
+        WorkFlowContext.ERROR_OFFSET,
+        WorkFlowContext.SYSTEM_ERROR,
+        WorkFlowContext.SYSTEM_ERROR_OFFSET,
+        WorkFlowContext.WFE_SYSTEM_ERROR,
+        WorkFlowContext.WFE_SYSTEM_ERROR_OFFSET,
+        WorkFlowContext.SERVICE_CONFIG_ERROR,
+        WorkFlowContext.SERVICE_CONFIG_ERROR_OFFSET,
+        WorkFlowContext.WF_INTERRUPT_MAN,
+        WorkFlowContext.WF_INTERRUPT_MAN_OFFSET,
+        WorkFlowContext.WF_INTERRUPT_AUTO,
+        WorkFlowContext.WF_INTERRUPT_AUTO_OFFSET
+    };
+
+    private static final int BASE;
+    private static final byte[] TABLE;
+
+    static {
+        int min = WorkFlowContext.WARNING;
+        int max = WorkFlowContext.WARNING;
+        for (int i = 0; i < ERROR_CODES.length; i++) {
+            min = Math.min(min, ERROR_CODES[i]);
+            max = Math.max(max, ERROR_CODES[i]);
+        }
+        BASE = min;
+        TABLE = new byte[max - min + 1];
+        TABLE[WorkFlowContext.WARNING - BASE] = WARNING;
+        for (int i = 0; i < ERROR_CODES.length; i++) {
+            TABLE[ERROR_CODES[i] - BASE] = ERROR;
+        }
+    }
+
+    private StatusSeverity() {}
+
+    /**
+     * @return SUCCESS, WARNING or ERROR for a BASIC_STATUS.
+     */
+    static int of(int basicStatus) {
+        int i = basicStatus - BASE;
+        return (i >= 0 && i < TABLE.length) ? TABLE[i] : SUCCESS;
+    }
+
+    /**
+     * @return the WorkFlowContext status code of a severity.
+     */
+    static int toStatus(int severity) {
+        switch (severity) {
+        case ERROR:
+            return WorkFlowContext.ERROR;
+        case WARNING:
+            return WorkFlowContext.WARNING;
+        default:
+            return WorkFlowContext.SUCCESS;
+        }
+    }
+
+    /**
+     * @return the WorkFlowContext status code a BASIC_STATUS maps to.
+     */
+    static int statusOf(int basicStatus) {
+        return toStatus(of(basicStatus));
+    }
+}
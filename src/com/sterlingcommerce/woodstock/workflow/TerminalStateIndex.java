@@ -0,0 +1,309 @@
+package com.sterlingcommerce.woodstock.workflow;
+
+import java.util.*;
+import java.util.concurrent.locks.*;
+
+/**
+ * The set of workflow ids known to be COMPLETE or TERMINATED.  Those
+ * states do not change until the workflow is moved out of the live
+ * tables, so once a workflow is found in one of them its state never
+ * has to be read from the database again.
+ *
+ * The ids are kept in two compressed bitmaps.  Each bitmap splits an
+ * id into its high 48 bits, which select a container, and its low 16
+ * bits, which are stored in the container either as a sorted char[]
+ * (up to ARRAY_MAX values) or as a 65536 bit long[] bitmap.  Workflow
+ * ids are allocated in sequence, so a container usually holds many ids
+ * and an id costs a few bits instead of a boxed Long in a hash set.
+ *
+ * Ids are removed when they become movable (see getMovableIds()), when
+ * the workflow is force terminated and when it is purged (see
+ * WorkFlowMonitor.workflowPurged()).  Once maxSize ids are held, adding
+ * an id evicts the lowest one, which is the oldest workflow and the
+ * first to be purged.
+ */
+final class TerminalStateIndex {
+
+    private final int maxSize;
+    private final Bitmap complete = new Bitmap();
+    private final Bitmap terminated = new Bitmap();
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private long evictions = 0;
+
+    /**
+     * @param maxSize - the most ids held, 0 or less for no index.
+     */
+    TerminalStateIndex(int maxSize) {
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * @return COMPLETE or TERMINATED if the workflow is held, UNKNOWN
+     * otherwise.
+     */
+    int stateOf(long workflowId) {
+        if (maxSize <= 0) {
+            return WorkFlowMonitor.UNKNOWN;
+        }
+        lock.readLock().lock();
+        try {
+            if (complete.contains(workflowId)) {
+                return WorkFlowMonitor.COMPLETE;
+            }
+            if (terminated.contains(workflowId)) {
+                return WorkFlowMonitor.TERMINATED;
+            }
+            return WorkFlowMonitor.UNKNOWN;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Records a resolved state.  Only COMPLETE and TERMINATED are
+     * held, any other state is ignored.
+     */
+    void add(long workflowId, int state) {
+        if (maxSize <= 0 ||
+            (state != WorkFlowMonitor.COMPLETE &&
+             state != WorkFlowMonitor.TERMINATED)) {
+            return;
+        }
+        lock.writeLock().lock();
+        try {
+            if (complete.size() + terminated.size() >= maxSize &&
+                !complete.contains(workflowId) &&
+                !terminated.contains(workflowId)) {
+                evictLowest();
+            }
+            if (state == WorkFlowMonitor.COMPLETE) {
+                terminated.remove(workflowId);
+                complete.add(workflowId);
+            } else {
+                complete.remove(workflowId);
+                terminated.add(workflowId);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    void remove(long workflowId) {
+        lock.writeLock().lock();
+        try {
+            complete.remove(workflowId);
+            terminated.remove(workflowId);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    int size() {
+        lock.readLock().lock();
+        try {
+            return complete.size() + terminated.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    long getEvictions() {
+        lock.readLock().lock();
+        try {
+            return evictions;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    void clear() {
+        lock.writeLock().lock();
+        try {
+            complete.clear();
+            terminated.clear();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    //called holding the write lock
+    private void evictLowest() {
+        long c = complete.first();
+        long t = terminated.first();
+        if (c == -1 && t == -1) {
+            return;
+        }
+        if (t == -1 || (c != -1 && c < t)) {
+            complete.remove(c);
+        } else {
+            terminated.remove(t);
+        }
+        evictions++;
+    }
+
+    /**
+     * A set of longs split into 65536 value containers.  Not
+     * synchronized, the index guards it.
+     */
+    private static final class Bitmap {
+
+        private final TreeMap containers = new TreeMap();
+        private int size = 0;
+
+        boolean contains(long value) {
+            Container c = (Container)containers.get(new Long(value >>> 16));
+            return c != null && c.contains((char)value);
+        }
+
+        void add(long value) {
+            Long key = new Long(value >>> 16);
+            Container c = (Container)containers.get(key);
+            if (c == null) {
+                c = new Container();
+                containers.put(key, c);
+            }
+            if (c.add((char)value)) {
+                size++;
+            }
+        }
+
+        void remove(long value) {
+            Long key = new Long(value >>> 16);
+            Container c = (Container)containers.get(key);
+            if (c != null && c.remove((char)value)) {
+                size--;
+                if (c.cardinality == 0) {
+                    containers.remove(key);
+                }
+            }
+        }
+
+        int size() {
+            return size;
+        }
+
+        /** @return the lowest value held, -1 if there is none. */
+        long first() {
+            if (containers.isEmpty()) {
+                return -1;
+            }
+            Long key = (Long)containers.firstKey();
+            Container c = (Container)containers.get(key);
+            return (key.longValue() << 16) | c.first();
+        }
+
+        void clear() {
+            containers.clear();
+            size = 0;
+        }
+    }
+
+    //A sorted array holds up to this many values, a bitmap above it.
+    private static final int ARRAY_MAX = 4096;
+
+    /**
+     * The low 16 bits of the values that share the same high bits.  A
+     * sorted array while sparse, a bitmap once more than ARRAY_MAX
+     * values are held, which is the size at which both take 8KB.
+     */
+    private static final class Container {
+
+        private char[] values = new char[4];
+        private long[] bits = null;
+        int cardinality = 0;
+
+        boolean contains(char v) {
+            if (bits != null) {
+                return (bits[v >>> 6] & (1L << v)) != 0;
+            }
+            return Arrays.binarySearch(values, 0, cardinality, v) >= 0;
+        }
+
+        /** @return the lowest value, the container is not empty. */
+        char first() {
+            if (bits != null) {
+                int w = 0;
+                while (bits[w] == 0) {
+                    w++;
+                }
+                return (char)((w << 6) + Long.numberOfTrailingZeros(bits[w]));
+            }
+            return values[0];
+        }
+
+        boolean add(char v) {
+            if (bits != null) {
+                long mask = 1L << v;
+                if ((bits[v >>> 6] & mask) != 0) {
+                    return false;
+                }
+                bits[v >>> 6] |= mask;
+                cardinality++;
+                return true;
+            }
+            int pos = Arrays.binarySearch(values, 0, cardinality, v);
+            if (pos >= 0) {
+                return false;
+            }
+            if (cardinality == ARRAY_MAX) {
+                toBitmap();
+                return add(v);
+            }
+            pos = -pos - 1;
+            if (cardinality == values.length) {
+                char[] grown = new char[Math.min(values.length * 2, ARRAY_MAX)];
+                System.arraycopy(values, 0, grown, 0, cardinality);
+                values = grown;
+            }
+            System.arraycopy(values, pos, values, pos + 1, cardinality - pos);
+            values[pos] = v;
+            cardinality++;
+            return true;
+        }
+
+        boolean remove(char v) {
+            if (bits != null) {
+                long mask = 1L << v;
+                if ((bits[v >>> 6] & mask) == 0) {
+                    return false;
+                }
+                bits[v >>> 6] &= ~mask;
+                cardinality--;
+                if (cardinality < ARRAY_MAX / 2) {
+                    toArray();
+                }
+                return true;
+            }
+            int pos = Arrays.binarySearch(values, 0, cardinality, v);
+            if (pos < 0) {
+                return false;
+            }
+            System.arraycopy(values, pos + 1, values, pos, cardinality - pos - 1);
+            cardinality--;
+            return true;
+        }
+
+        private void toBitmap() {
+            bits = new long[1024];
+            for (int i = 0; i < cardinality; i++) {
+                char v = values[i];
+                bits[v >>> 6] |= 1L << v;
+            }
+            values = null;
+        }
+
+        private void toArray() {
+            values = new char[ARRAY_MAX];
+            int n = 0;
+            for (int w = 0; w < bits.length; w++) {
+                long word = bits[w];
+                while (word != 0) {
+                    int bit = Long.numberOfTrailingZeros(word);
+                    values[n++] = (char)((w << 6) + bit);
+                    word &= word - 1;
+                }
+            }
+            bits = null;
+        }
+    }
+}
@@ -3,6 +3,7 @@ package com.sterlingcommerce.woodstock.workflow;
 import java.util.*;
 import java.sql.*;
 import java.io.*;
+import java.util.concurrent.Callable;
 import java.security.UnrecoverableKeyException;
 
 import com.sterlingcommerce.refactor.PlatformConstants;
@@ -103,31 +104,49 @@ public class WorkFlowMonitor {
 
     public transient static final int SYSTEM_SHUTDOWN = 100;
 
+    //lastWorkflowId of the first page of a keyset paged search
+    public static final long FIRST_PAGE = Long.MAX_VALUE;
 
-    //Note, the BASIC_STATUS is updated to the OFFSET's below
-    //when the process is COMPLETED or TERMINATED to speed searches
-
-    private static final String GET_STATUS_SQL_START =
-        "SELECT DISTINCT WORKFLOW_ID, "+
-        "       CASE WHEN BASIC_STATUS = "+WorkFlowContext.ERROR+" THEN "+WorkFlowContext.ERROR+" "+
-        "            WHEN BASIC_STATUS = "+WorkFlowContext.ERROR_OFFSET+" THEN "+WorkFlowContext.ERROR+" "+
-        "            WHEN BASIC_STATUS = "+WorkFlowContext.SYSTEM_ERROR+" THEN "+WorkFlowContext.ERROR+" "+
-        "            WHEN BASIC_STATUS = "+WorkFlowContext.SYSTEM_ERROR_OFFSET+" THEN "+WorkFlowContext.ERROR+" "+
-        "            WHEN BASIC_STATUS = "+WorkFlowContext.WFE_SYSTEM_ERROR+" THEN "+WorkFlowContext.ERROR+" "+
-        "            WHEN BASIC_STATUS = "+WorkFlowContext.WFE_SYSTEM_ERROR_OFFSET+" THEN "+WorkFlowContext.ERROR+" "+
-        "            WHEN BASIC_STATUS = "+WorkFlowContext.SERVICE_CONFIG_ERROR+" THEN "+WorkFlowContext.ERROR+" "+
-        "            WHEN BASIC_STATUS = "+WorkFlowContext.SERVICE_CONFIG_ERROR_OFFSET+" THEN "+WorkFlowContext.ERROR+" "+
-        "            WHEN BASIC_STATUS = "+WorkFlowContext.WF_INTERRUPT_MAN+" THEN "+WorkFlowContext.ERROR+" "+
-        "            WHEN BASIC_STATUS = "+WorkFlowContext.WF_INTERRUPT_MAN_OFFSET+" THEN "+WorkFlowContext.ERROR+" "+
-        "            WHEN BASIC_STATUS = "+WorkFlowContext.WF_INTERRUPT_AUTO+" THEN "+WorkFlowContext.ERROR+" "+
-        "            WHEN BASIC_STATUS = "+WorkFlowContext.WF_INTERRUPT_AUTO_OFFSET+" THEN "+WorkFlowContext.ERROR+" "+
-        "            WHEN BASIC_STATUS = "+WorkFlowContext.WARNING+" THEN "+WorkFlowContext.WARNING+" "+
-        "            ELSE "+WorkFlowContext.SUCCESS+" "+
-        "       END AS STATUS "+
+
+    //Note, the BASIC_STATUS is updated to the OFFSET's
+    //when the process is COMPLETED or TERMINATED to speed searches;
+    //StatusSeverity classifies both forms.
+
+    //The raw BASIC_STATUS codes of the workflows, classified by
+    //StatusSeverity, so the SQL text is the same for every status read.
+
+    private static final String GET_STATUS_SQL_SELECT =
+        "SELECT DISTINCT WORKFLOW_ID, BASIC_STATUS "+
+        "  FROM WORKFLOW_CONTEXT "+
+        " WHERE ";
+
+    //The BASIC_STATUS codes of a workflow, one row per code however
+    //many steps and branches hold it.  getStatus() takes the most
+    //severe of them.
+
+    private static final String GET_WORKFLOW_STATUS_SQL =
+        "SELECT WORKFLOW_ID, BASIC_STATUS "+
+        "  FROM WORKFLOW_CONTEXT "+
+        " WHERE WORKFLOW_ID = ? "+
+        " GROUP BY WORKFLOW_ID, BASIC_STATUS";
+
+    //GET_WORKFLOW_STATUS_SQL for a chunk of workflows, for
+    //getStateAndStatus().  Ends with GET_STATUS_CODES_SQL_END.
+
+    private static final String GET_STATUS_CODES_SQL_START =
+        "SELECT WORKFLOW_ID, BASIC_STATUS "+
         "  FROM WORKFLOW_CONTEXT "+
         " WHERE WORKFLOW_ID IN (";
 
-    private static final String GET_STATUS_SQL_END = ") ORDER BY WORKFLOW_ID, STATUS DESC";
+    private static final String GET_STATUS_CODES_SQL_END =
+        ") GROUP BY WORKFLOW_ID, BASIC_STATUS";
+
+    //Number of workflow ids resolved per getStates() query.
+    private static final int STATE_CHUNK_SIZE = 250;
+
+    //Number of branches checked per connection by
+    //getSystemShutdownList() at a time.
+    private static final int SHUTDOWN_CHUNK_SIZE = 50;
 
     private static BPRecoveryProperties bpRecoveryProps = null;
 
@@ -138,6 +157,7 @@ public class WorkFlowMonitor {
     public static boolean appentInformix = false;
     public static boolean orderByWorkFlowId = true;
     public static boolean terminatedLock = true;
+    public static boolean singleQueryState = true;
     public static String dbNoTransPool = null;
     public static String user_id = null;
     public static String serverName = null;
@@ -146,6 +166,76 @@ public class WorkFlowMonitor {
     public static int maxBPsToDisplay = 10000;
     public static final int GET_STATE_FETCH_SIZE = 10;
 
+    //Resolved states and statuses, in front of getState() and
+    //getStatus().  Sized by stateCacheSize and expired after
+    //stateCacheTTL milliseconds (workflows properties).
+    static final WorkFlowStateCache stateCache;
+    static final WorkFlowStateCache statusCache;
+
+    //Workflows found COMPLETE or TERMINATED, checked before the state
+    //cache.  Holds up to terminalStateIndexMaxSize (workflows) ids.
+    static final TerminalStateIndex terminalIndex;
+
+    //Inactive flags pushed by stopWF() and reconciled with the
+    //database every inactiveWFReconcileInterval (workflows) ms.
+    static final InactiveWorkFlowSet inactiveWFs;
+
+    //Prepared statements of the per-workflow queries, kept open per
+    //connection.  Holds monitorStatementCacheSize (workflows)
+    //statements over all connections.
+    static final MonitorStatementCache stmtCache;
+
+    //Splits the reads of long id lists over up to monitorParallelism
+    //(workflows) pooled connections.  sequential keeps them on one.
+    static final MonitorFanOut fanOut;
+    private static final MonitorFanOut sequential = new MonitorFanOut(1);
+
+    //Runs the admin UI queries on monitorAsyncThreads (workflows)
+    //threads, see getAsync().
+    private static final WorkFlowMonitorAsync async;
+
+    //The live workflow counts of the admin UI, taken every
+    //stateSnapshotInterval (workflows) ms, see getStateSnapshot().
+    private static final StateSnapshotRefresher snapshots;
+
+    //Shares one run of a summary or search query among the callers
+    //asking for it at the same time.
+    private static final SingleFlight inFlight = new SingleFlight();
+
+    //Copies a list of state Hashtables, and their IDS lists, for each
+    //caller that shared a run.
+    private static final SingleFlight.Copy COPY_STATE_LIST = new SingleFlight.Copy() {
+        public Object copy(Object result) {
+            ArrayList list = (ArrayList)result;
+            ArrayList copy = new ArrayList(list.size());
+            for (int i = 0; i < list.size(); i++) {
+                Hashtable entry = new Hashtable((Hashtable)list.get(i));
+                Object ids = entry.get("IDS");
+                if (ids instanceof ArrayList) {
+                    entry.put("IDS", new ArrayList((ArrayList)ids));
+                }
+                copy.add(entry);
+            }
+            return copy;
+        }
+    };
+
+    private static final SingleFlight.Copy COPY_LONG_LIST = new SingleFlight.Copy() {
+        public Object copy(Object result) {
+            LongList list = (LongList)result;
+            LongList copy = new LongList(list.size());
+            copy.addAll(list);
+            return copy;
+        }
+    };
+
+    //How id lists are bound in the search SQL, by JDBC_VENDOR.
+    private static InListBuckets inLists = InListBuckets.forVendor(null);
+
+    //Ids per getStatus(ArrayList) query, getStatusChunkSize (workflows),
+    //0 for the most the JDBC_VENDOR takes in one IN list.
+    private static int statusChunkSize = 0;
+
     static {
         Properties p = Manager.getProperties("jdbcService");
 	Properties workflowProperties = Manager.getProperties("workflows");
@@ -153,6 +243,90 @@ public class WorkFlowMonitor {
 	if (tLock !=null && tLock.equals("false")) {
 	    terminatedLock = false;
 	}
+	String sqState = workflowProperties.getProperty("useSingleQueryGetState");
+	if (sqState != null && sqState.trim().equalsIgnoreCase("false")) {
+	    singleQueryState = false;
+	}
+	int cacheSize = 5000;
+	long cacheTTL = 5000;
+	try {
+	    String cSize = workflowProperties.getProperty("stateCacheSize");
+	    if (cSize != null) cacheSize = Integer.parseInt(cSize.trim());
+	    String cTTL = workflowProperties.getProperty("stateCacheTTL");
+	    if (cTTL != null) cacheTTL = Long.parseLong(cTTL.trim());
+	} catch (NumberFormatException ne) {
+	    cacheSize = 5000;
+	    cacheTTL = 5000;
+	}
+	stateCache = new WorkFlowStateCache(cacheSize, cacheTTL);
+	statusCache = new WorkFlowStateCache(cacheSize, cacheTTL);
+	int terminalMax = 1000000;
+	try {
+	    String tMax = workflowProperties.getProperty("terminalStateIndexMaxSize");
+	    if (tMax != null) terminalMax = Integer.parseInt(tMax.trim());
+	} catch (NumberFormatException ne) {
+	    terminalMax = 1000000;
+	}
+	terminalIndex = new TerminalStateIndex(terminalMax);
+	long inactiveInterval = 10000;
+	try {
+	    String iInterval = workflowProperties.getProperty("inactiveWFReconcileInterval");
+	    if (iInterval != null) inactiveInterval = Long.parseLong(iInterval.trim());
+	} catch (NumberFormatException ne) {
+	    inactiveInterval = 10000;
+	}
+	inactiveWFs = new InactiveWorkFlowSet(inactiveInterval);
+	// statements held per connection
+	int stmtCacheSize = 32;
+	try {
+	    String sSize = workflowProperties.getProperty("monitorStatementCacheSize");
+	    if (sSize != null) stmtCacheSize = Integer.parseInt(sSize.trim());
+	} catch (NumberFormatException ne) {
+	    stmtCacheSize = 32;
+	}
+	stmtCache = new MonitorStatementCache(stmtCacheSize);
+	int parallelism = 4;
+	try {
+	    String mParallelism = workflowProperties.getProperty("monitorParallelism");
+	    if (mParallelism != null) parallelism = Integer.parseInt(mParallelism.trim());
+	} catch (NumberFormatException ne) {
+	    parallelism = 4;
+	}
+	fanOut = new MonitorFanOut(parallelism);
+	int asyncThreads = 8;
+	int asyncQueueSize = 64;
+	long asyncTimeout = 30000;
+	try {
+	    String aThreads = workflowProperties.getProperty("monitorAsyncThreads");
+	    if (aThreads != null) asyncThreads = Integer.parseInt(aThreads.trim());
+	    String aQueue = workflowProperties.getProperty("monitorAsyncQueueSize");
+	    if (aQueue != null) asyncQueueSize = Integer.parseInt(aQueue.trim());
+	    String aTimeout = workflowProperties.getProperty("monitorAsyncTimeout");
+	    if (aTimeout != null) asyncTimeout = Long.parseLong(aTimeout.trim());
+	} catch (NumberFormatException ne) {
+	    asyncThreads = 8;
+	    asyncQueueSize = 64;
+	    asyncTimeout = 30000;
+	}
+	async = new WorkFlowMonitorAsync(asyncThreads, asyncQueueSize, asyncTimeout);
+	long snapshotInterval = 10000;
+	int snapshotSampleSize = 0;
+	try {
+	    String sInterval = workflowProperties.getProperty("stateSnapshotInterval");
+	    if (sInterval != null) snapshotInterval = Long.parseLong(sInterval.trim());
+	    String sSample = workflowProperties.getProperty("stateSnapshotSampleSize");
+	    if (sSample != null) snapshotSampleSize = Integer.parseInt(sSample.trim());
+	} catch (NumberFormatException ne) {
+	    snapshotInterval = 10000;
+	    snapshotSampleSize = 0;
+	}
+	snapshots = new StateSnapshotRefresher(snapshotInterval, snapshotSampleSize);
+	try {
+	    String sChunk = workflowProperties.getProperty("getStatusChunkSize");
+	    if (sChunk != null) statusChunkSize = Integer.parseInt(sChunk.trim());
+	} catch (NumberFormatException ne) {
+	    statusChunkSize = 0;
+	}
 
         String value = null;
 
@@ -184,6 +358,7 @@ public class WorkFlowMonitor {
             (value.trim().equalsIgnoreCase("Informix") ) ) {
             useInformixSyntax = true;
           }
+          inLists = InListBuckets.forVendor(value);
         }
 
         if(q != null) {
@@ -213,6 +388,9 @@ public class WorkFlowMonitor {
 	serverName = Manager.getProperty("servername");
         dbPool = Manager.getProperty("dbPool");
 
+	// the pools the named SQL is read for, dbPool first
+	MonitorSQLRegistry.init(new String[] { dbPool, "dbUIPool", "local_dbPool" });
+
     }
 
 
@@ -226,12 +404,27 @@ public class WorkFlowMonitor {
      * @return the status code of the Workflow instance. -1 if does not exsist.
      */
     public int getStatus (long workflowId, Connection c) {
+        int status = statusCache.get(workflowId);
+        if (status == WorkFlowStateCache.MISS) {
+            long stamp = statusCache.stamp();
+            status = resolveStatus(workflowId, c);
+            if (status != UNKNOWN) {
+                statusCache.put(workflowId, status, stamp);
+            }
+        }
+        return status;
+    }
+
+    /**
+     * The status of a workflow, from one GET_WORKFLOW_STATUS_SQL query:
+     * the most severe StatusSeverity of its BASIC_STATUS codes, UNKNOWN
+     * if it has no rows.
+     */
+    private int resolveStatus (long workflowId, Connection c) {
         int status = UNKNOWN;
-        int branchStatus = -1;
-        ArrayList branchIdList = null;
-        String branchId = null;
         Connection conn = null;
-        String msg = null;
+        PreparedStatement pstmt = null;
+        ResultSet rs = null;
 
         try {
             if (c == null)
@@ -239,58 +432,45 @@ public class WorkFlowMonitor {
             else
                 conn = c;
 
-            branchIdList = getAllBranchIds(workflowId, conn);
-
-            for (Iterator it = branchIdList.iterator(); it.hasNext(); ) {
-                branchId = (String)it.next();
-
-                branchStatus = getBranchStatus(branchId, conn, workflowId);
-
-                switch (branchStatus) {
-                case WorkFlowContext.ERROR:
-                    status = WorkFlowContext.ERROR;
-                    break;
-
-                case WorkFlowContext.WARNING:
-                    status = WorkFlowContext.WARNING;
-                    break;
-
-                case WorkFlowContext.SUCCESS:
-                    status = WorkFlowContext.SUCCESS;
-                    break;
-
-                default:
-                    if (WFGlobals.out.debug) {
-/*                        WFGlobals.out.logDebug( "Oops found Uknown"
-                                            +" status = "+branchStatus);*/
-                        WFGlobals.out.logDebug( WFGlobals.WORKFLOW , WFGlobals.WORKFLOW , "DEB_branchStatus" ,  new Object[]{ "" + branchStatus });
-                    }
-                    break;
-                }
+            pstmt = stmtCache.prepare(conn, "GET_WORKFLOW_STATUS",
+                                      GET_WORKFLOW_STATUS_SQL);
+            pstmt.setLong(1, workflowId);
+            rs = pstmt.executeQuery();
 
-                if (status != WorkFlowContext.SUCCESS)
-                    break; //short curcuit on anything but success.
+            int severity = -1;
+            while (rs != null && rs.next()) {
+                severity = Math.max(severity, StatusSeverity.of(rs.getInt(2)));
+            }
+            if (severity != -1) {
+                status = StatusSeverity.toStatus(severity);
             }
 
         }  catch(SQLException sqe) {
+            stmtCache.invalidate(conn, "GET_WORKFLOW_STATUS", pstmt);
+            pstmt = null;
 
-            msg = myClassName + ".getBranchStatus() caught SQLException.";
-/*            WFGlobals.out.logException(msg, sqe);*/
             WFGlobals.out.logException( WFGlobals.WORKFLOW , WFGlobals.WORKFLOW , "ERR_getBranchStatus" ,  new Object[]{ "" + myClassName }, sqe);
             sqe.printStackTrace();
 
         }  catch (Exception e) {
 
-            msg = myClassName + ".getBranchStatus() caught Exception.";
-/*            WFGlobals.out.logException(msg, e);*/
             WFGlobals.out.logException( WFGlobals.WORKFLOW , WFGlobals.WORKFLOW , "ERR_getBranchStatus1" ,  new Object[]{ "" + myClassName }, e);
             e.printStackTrace();
         } finally {
+            try {
+                if (rs != null)
+                    rs.close();
+                if (pstmt != null)
+                    stmtCache.release(conn, "GET_WORKFLOW_STATUS", pstmt);
+            } catch (SQLException sqe) {
+                WFGlobals.out.logException( WFGlobals.WORKFLOW , WFGlobals.WORKFLOW , "ERR_getBranchStatus2" ,  new Object[]{ "" + myClassName }, sqe);
+                sqe.printStackTrace();
+            } finally {
                 if (conn != null && c == null)
-                    Conn.freeConnection(conn);
+                    freeConnection(conn);
+            }
         }
 
-
         return status;
     }
 
@@ -314,12 +494,14 @@ public class WorkFlowMonitor {
                 conn  =  Conn.getConnection();
             else
                 conn = c;
-            sql =JDBCService.getNamedSQL(conn,"wfm_getBranchStatus");
-            pstmt = conn.prepareStatement(sql);
+            sql =namedSQL(conn, MonitorSQLRegistry.GET_BRANCH_STATUS);
+            pstmt = stmtCache.prepare(conn, "wfm_getBranchStatus", sql);
             pstmt.setMaxRows(1);
             status = this.getBranchStatus(branchId, pstmt, workflowId);
 
         }  catch(SQLException sqe) {
+            stmtCache.invalidate(conn, "wfm_getBranchStatus", pstmt);
+            pstmt = null;
 
             msg = myClassName + ".getBranchStatus() caught SQLException.";
 /*            WFGlobals.out.logException(msg, sqe);*/
@@ -335,11 +517,7 @@ public class WorkFlowMonitor {
         } finally {
             try {
                 if (pstmt != null)
-                    pstmt.close();
-
-                if (conn != null && c == null)
-                    Conn.freeConnection(conn);
-
+                    stmtCache.release(conn, "wfm_getBranchStatus", pstmt);
             } catch (SQLException sqe) {
 
                 msg = myClassName +
@@ -348,6 +526,9 @@ public class WorkFlowMonitor {
 /*                WFGlobals.out.logException(msg, sqe);*/
                 WFGlobals.out.logException( WFGlobals.WORKFLOW , WFGlobals.WORKFLOW , "ERR_getBranchStatus2" ,  new Object[]{ "" + myClassName }, sqe);
                 sqe.printStackTrace();
+            } finally {
+                if (conn != null && c == null)
+                    freeConnection(conn);
             }
         }
 
@@ -404,23 +585,12 @@ public class WorkFlowMonitor {
             if (rs != null) {
                 while (rs.next()) {
                     basicStatus = rs.getInt("BASIC_STATUS");
-                    switch (basicStatus) {
-                    case WorkFlowContext.ERROR:
-                    case WorkFlowContext.ERROR_OFFSET:
-                    case WorkFlowContext.SYSTEM_ERROR:
-                    case WorkFlowContext.SYSTEM_ERROR_OFFSET:
-                    case WorkFlowContext.WFE_SYSTEM_ERROR:
-                    case WorkFlowContext.WFE_SYSTEM_ERROR_OFFSET:
-                    case WorkFlowContext.SERVICE_CONFIG_ERROR:
-                    case WorkFlowContext.SERVICE_CONFIG_ERROR_OFFSET:
-                    case WorkFlowContext.WF_INTERRUPT_MAN:
-                    case WorkFlowContext.WF_INTERRUPT_MAN_OFFSET:
-                    case WorkFlowContext.WF_INTERRUPT_AUTO:
-                    case WorkFlowContext.WF_INTERRUPT_AUTO_OFFSET:
+                    switch (StatusSeverity.of(basicStatus)) {
+                    case StatusSeverity.ERROR:
                         status = WorkFlowContext.ERROR;
                         break;
 
-                    case WorkFlowContext.WARNING:
+                    case StatusSeverity.WARNING:
                         status = WorkFlowContext.WARNING;
                         break;
 
@@ -489,6 +659,25 @@ public class WorkFlowMonitor {
 
         String msg = null;
 
+        long wfId = -1;
+        try {
+            wfId = Long.parseLong(workflowId);
+        } catch (NumberFormatException ne) {
+            // reported by the query below
+        }
+        if (wfId > 0) {
+            state = terminalIndex.stateOf(wfId);
+            if (state != UNKNOWN) {
+                return state;
+            }
+            state = stateCache.get(wfId);
+            if (state != WorkFlowStateCache.MISS) {
+                return state;
+            }
+            state = UNKNOWN;
+        }
+        long stamp = stateCache.stamp();
+
         try {
 
             if (c == null) {
@@ -499,7 +688,7 @@ public class WorkFlowMonitor {
 
             StringBuffer sb = new StringBuffer();
             sb.append( " SELECT ");
-            sb.append(JDBCService.getNamedSQL(dbPool, "getStateAndStatus_MAIN"));
+            sb.append(namedSQL(MonitorSQLRegistry.STATE_AND_STATUS_MAIN));
 
 
             sb.append(" WHERE WORKFLOW_ID = ? ");
@@ -520,6 +709,9 @@ public class WorkFlowMonitor {
             if(rs != null && rs.next()) {
               state = rs.getInt("STATE");
               state = reversePrecedenceOrder(state);
+              if (wfId > 0) {
+                rememberState(wfId, state, stamp);
+              }
             }
 
 
@@ -545,7 +737,7 @@ public class WorkFlowMonitor {
                     ps.close();
 
                 if (conn != null && c == null)
-                    Conn.freeConnection(conn);
+                    freeConnection(conn);
 
             } catch (SQLException sqe) {
 
@@ -599,10 +791,48 @@ public class WorkFlowMonitor {
      * @return the state code for the Branch. -1 if does not exsist.
      */
     public int getState (long wfId, Connection c) {
+        int state = terminalIndex.stateOf(wfId);
+        if (state != UNKNOWN) {
+            return state;
+        }
+        state = stateCache.get(wfId);
+        if (state == WorkFlowStateCache.MISS) {
+            long stamp = stateCache.stamp();
+            state = resolveState(wfId, c);
+            rememberState(wfId, state, stamp);
+        }
+        return state;
+    }
+
+    /**
+     * Keeps a resolved state: COMPLETE and TERMINATED in the terminal
+     * index, any other known state in the state cache.  Nothing is kept
+     * for a workflow invalidated since <tt>stamp</tt> (see
+     * WorkFlowStateCache.stamp()), it may have changed while it was read.
+     */
+    private static void rememberState(long wfId, int state, long stamp) {
+        if (state == COMPLETE || state == TERMINATED) {
+            if (!stateCache.isCurrent(wfId, stamp)) {
+                return;
+            }
+            terminalIndex.add(wfId, state);
+            inactiveWFs.remove(wfId);
+            // invalidated while it was added, forceTerminateWF() and
+            // the like remove it from the index after invalidating
+            if (!stateCache.isCurrent(wfId, stamp)) {
+                terminalIndex.remove(wfId);
+            }
+        } else if (state != UNKNOWN) {
+            stateCache.put(wfId, state, stamp);
+        }
+    }
+
+    private int resolveState (long wfId, Connection c) {
         int state = UNKNOWN;
 
         Connection conn = null;
         PreparedStatement pstmt = null;
+        String pstmtKey = null;
         String msg = null;
 
         ResultSet rs = null;
@@ -633,11 +863,12 @@ public class WorkFlowMonitor {
                 conn = c;
             }
 
-            String newRows = JDBCService.getNamedSQL(conn,"wfm_getState_s");
-            String newBranchRows =JDBCService.getNamedSQL(conn,"wfm_getState_s1");
+            String newRows = namedSQL(conn, MonitorSQLRegistry.GET_STATE_S);
+            String newBranchRows =namedSQL(conn, MonitorSQLRegistry.GET_STATE_S1);
             if (Hint.isHintsEnabled()) {
 
-                pstmt = conn.prepareStatement(newRows);
+                pstmtKey = "wfm_getState_s";
+                pstmt = stmtCache.prepare(conn, pstmtKey, newRows);
 
                 pstmt.setLong(1, wfId);
                 rs = pstmt.executeQuery();
@@ -657,88 +888,27 @@ public class WorkFlowMonitor {
                         //  " advStatus='"+advStatus+
                         //  "' nextActivityId="+nextActivityId);
                     }
-                    if (basicStatus == WorkFlowContext.WAITING) {
-                        state = WAITING;
-		    } else if (basicStatus == WorkFlowContext.WAITING_ON_IO) {
-                        if (nextActivityId == ActivityInfo.DONE) {
-                            state = COMPLETE;
-                        } else {
-                            state = WAITING_ON_IO;
-                            }
-                    } else if (basicStatus == WorkFlowContext.WF_INTERRUPT_AUTO) {
-                        if (nextActivityId == ActivityInfo.DONE) {
-                            state = COMPLETE;
-                        } else {
-                            state = INTERRUPTED_AUTO;
-                            }
-                    } else if (basicStatus == WorkFlowContext.WF_INTERRUPT_MAN) {
-                        if (nextActivityId == ActivityInfo.DONE) {
-                            state = COMPLETE;
-                        } else {
-                            state = INTERRUPTED_MAN;
-                            }
-                    } else if (basicStatus == WorkFlowContext.WFE_SYSTEM_ERROR ||
-                               basicStatus == WorkFlowContext.SYSTEM_ERROR ||
-                               basicStatus == WorkFlowContext.SERVICE_CONFIG_ERROR ||
-                               basicStatus == WorkFlowContext.WARNING ||
-                               basicStatus == WorkFlowContext.ERROR) {
-                        if (nextActivityId == ActivityInfo.DONE) {
-                            if (wfeStatus==ActivityInfo.CHILD_DONE) {
-                                state = HALTED;
-                            } else { 
-                                state = COMPLETE;
-                                }
-                        } else if (nextActivityId == activityId) {
-                            state = HALTED;
-                            //Since when sub workflow is disabled,
-                            //activity id=0, and nextacvitity id =1
-                        } else if (
-                            wfeStatus == WorkFlowContext.WFE_WFD_DEACTIVATED ||
-                            wfeStatus == WorkFlowContext.WFE_SERVICE_DEACTIVATED ||
-                            wfeStatus == WorkFlowContext.WFE_REMOTE_ERROR ||
-                            wfeStatus == WorkFlowContext.WFE_CREATE_ERROR ||
-                            wfeStatus == WorkFlowContext.WFE_BASIC_ERROR ||
-                            wfeStatus == WorkFlowContext.WFE_NAME_ERROR ||
-                            wfeStatus == WorkFlowContext.WFE_LICENSE_ERROR ||
-                            wfeStatus == WorkFlowContext.WFE_JMS_ERROR )  {
-                               state= HALTED;
-                         } else {
-                               state = ACTIVE;
-                               }
-                    } else if (basicStatus == WorkFlowContext.WF_TERMINATED) {
-                        state = TERMINATED;
-                    } else if (wfeStatus == WorkFlowContext.WFE_DEFAULT_STATUS 
-                               && nextActivityId == ActivityInfo.DONE) {
-                        state = COMPLETE;
-                    } else if (wfeStatus == WorkFlowContext.WFE_DEFAULT_STATUS 
-                               && nextActivityId == ActivityInfo.NOOP) {
-                        state = ACTIVE_WAITING; // this is a split.
-                    } else if (basicStatus ==WFCBase.SUCCESS &&
-                              wfeStatus == ActivityInfo.CHILD_DONE) {
-                        if (nextActivityId == ActivityInfo.DONE){
-                            state = COMPLETE;
-                        } else {
-                            state = ACTIVE;
-                            }
-                    } else if (nextActivityId != ActivityInfo.NOOP &&
-                               nextActivityId != ActivityInfo.DONE) {
-                        if (isWFInactive(wfId, conn)) {
-                            state = HALTING;
-                        } else {
-                            state = ACTIVE;
-                        }
-                    }
+                    state = BranchStateClassifier.classifyHinted(
+                        basicStatus, wfeStatus, activityId, nextActivityId);
                 }
 
                 if (rs != null) {
                     rs.close();
+                    rs = null;
                 }
-                if (pstmt != null) {
-                    pstmt.close();
+                stmtCache.release(conn, pstmtKey, pstmt);
+                pstmt = null;
+
+                if (state == BranchStateClassifier.RUNNABLE) {
+                    if (isWFInactive(wfId, conn)) {
+                        state = HALTING;
+                    } else {
+                        state = ACTIVE;
+                    }
                 }
 
-                pstmt = conn.prepareStatement(newBranchRows);
-                pstmt.clearParameters();
+                pstmtKey = "wfm_getState_s1";
+                pstmt = stmtCache.prepare(conn, pstmtKey, newBranchRows);
                 pstmt.setLong(1, wfId);
                 rs = pstmt.executeQuery();
 
@@ -761,7 +931,46 @@ public class WorkFlowMonitor {
                 }
             }
 
-            if (!newRowsFound && !newBranchFound) {
+            if (!newRowsFound && !newBranchFound && singleQueryState) {
+                if (rs != null) {
+                    rs.close();
+                    rs = null;
+                }
+                stmtCache.release(conn, pstmtKey, pstmt);
+                pstmt = null;
+
+                // one statement for the last row of every branch
+                // instead of getAllBranchIds() + getBranchState()
+                pstmtKey = "GET_BRANCH_TIPS_SQL";
+                pstmt = stmtCache.prepare(conn, pstmtKey,
+                    namedSQL(conn, MonitorSQLRegistry.GET_BRANCH_TIPS) + "= ?");
+                pstmt.setLong(1, wfId);
+                rs = pstmt.executeQuery();
+
+                boolean runnable = false;
+                while (rs != null && rs.next()) {
+                    bState = BranchStateClassifier.classify(
+                        rs.getInt("BASIC_STATUS"), rs.getInt("WFE_STATUS"),
+                        rs.getInt("ACTIVITYINFO_ID"), rs.getInt("NEXT_AI_ID"));
+                    if (bState == BranchStateClassifier.RUNNABLE) {
+                        runnable = true;
+                    } else if (!addBranchState(stateList, bState)) {
+                        WFGlobals.out.logError( WFGlobals.WORKFLOW , WFGlobals.WORKFLOW , "ERR_Workflow" ,  new Object[]{ "" + wfId });
+                    }
+                    count++;
+                }
+
+                // the inactive flag is per workflow, probe it once,
+                // and not while the tips are still being read
+                if (rs != null) {
+                    rs.close();
+                    rs = null;
+                }
+                if (runnable) {
+                    addBranchState(stateList,
+                                   isWFInactive(wfId, conn) ? HALTING : ACTIVE);
+                }
+            } else if (!newRowsFound && !newBranchFound) {
                 branchList = getAllBranchIds(wfId, conn);
                 //System.out.println("WfId("+workflowId+") has "+
                 //                   branchList.size()+" branch id(s)");
@@ -769,54 +978,21 @@ public class WorkFlowMonitor {
                 for (Iterator it = branchList.iterator(); it.hasNext(); ) {
                     bid = (String)it.next();
                     bState = getBranchState(bid, conn, wfId);
-                    switch (bState)  {
-                    case ACTIVE:
-                        stateList[10]=ACTIVE;
-                        break;
-                    case HALTING:
-                        stateList[9]=HALTING;
-                        break;
-                    case WAITING:
-                        stateList[8]=WAITING;
-                        break;
-                    case WAITING_ON_IO:
-                        stateList[7]=WAITING_ON_IO;
-                        break;
-                    case TERMINATED:
-                        stateList[6]=TERMINATED;
-                        break;
-                    case INTERRUPTED_MAN:
-                        stateList[5]=INTERRUPTED_MAN;
-                        break;
-                    case INTERRUPTED_AUTO:
-                        stateList[4]=INTERRUPTED_AUTO;
-                        break;
-                    case HALTED:
-                        stateList[3]=HALTED;
-                        break;
-                    case COMPLETE:
-                        stateList[2]=COMPLETE;
-                        break;
-                    case ACTIVE_WAITING:
-                        stateList[1]=ACTIVE;
-                        break;
-                    default:
-                        stateList[0]=-1;
+                    if (!addBranchState(stateList, bState)) {
 /*                        WFGlobals.out.logError("Cannot find state for this branch. Workflow ID: " + wfId);*/
                         WFGlobals.out.logError( WFGlobals.WORKFLOW , WFGlobals.WORKFLOW , "ERR_Workflow" ,  new Object[]{ "" + wfId });
-                        break;
                     }
                     count++;
                 }
             }
 
-            for (int j=stateList.length-1; j>0; j--) {
-                if (stateList[j]>-1) {
-                    state=stateList[j];
-                    break; //short cut to the final state
-                }
+            int finalState = finalBranchState(stateList);
+            if (finalState != UNKNOWN) {
+                state = finalState;
             }
         }  catch(SQLException sqe) {
+            stmtCache.invalidate(conn, pstmtKey, pstmt);
+            pstmt = null;
 
             msg = myClassName + ".getBranchStatus() caught SQLException.";
 /*            WFGlobals.out.logException(msg, sqe);*/
@@ -834,12 +1010,7 @@ public class WorkFlowMonitor {
                 if (rs != null)
                     rs.close();
 
-                if (pstmt != null)
-                    pstmt.close();
-
-                if (conn != null && c == null)
-                    Conn.freeConnection(conn);
-
+                stmtCache.release(conn, pstmtKey, pstmt);
             } catch (SQLException sqe) {
 
                 msg = myClassName +
@@ -848,45 +1019,110 @@ public class WorkFlowMonitor {
 /*                WFGlobals.out.logException(msg, sqe);*/
                 WFGlobals.out.logException( WFGlobals.WORKFLOW , WFGlobals.WORKFLOW , "ERR_getBranchStatus22" ,  new Object[]{ "" + myClassName }, sqe);
                 sqe.printStackTrace();
+            } finally {
+                if (conn != null && c == null)
+                    freeConnection(conn);
             }
         }
 
         return state;
     }
 
-    public int getBranchState (String branchId, Connection c, long wfId) {
-        return getBranchState (branchId, c, wfId, false);
+    /**
+     * Records a branch state in the precedence ladder used by
+     * getState().  The slots are ordered so that the highest filled
+     * slot is the state of the whole workflow.
+     *
+     * @return false if the branch state is not known.
+     */
+    private static boolean addBranchState(int[] stateList, int bState) {
+        switch (bState)  {
+        case ACTIVE:
+            stateList[10]=ACTIVE;
+            break;
+        case HALTING:
+            stateList[9]=HALTING;
+            break;
+        case WAITING:
+            stateList[8]=WAITING;
+            break;
+        case WAITING_ON_IO:
+            stateList[7]=WAITING_ON_IO;
+            break;
+        case TERMINATED:
+            stateList[6]=TERMINATED;
+            break;
+        case INTERRUPTED_MAN:
+            stateList[5]=INTERRUPTED_MAN;
+            break;
+        case INTERRUPTED_AUTO:
+            stateList[4]=INTERRUPTED_AUTO;
+            break;
+        case HALTED:
+            stateList[3]=HALTED;
+            break;
+        case COMPLETE:
+            stateList[2]=COMPLETE;
+            break;
+        case ACTIVE_WAITING:
+            stateList[1]=ACTIVE;
+            break;
+        default:
+            stateList[0]=-1;
+            return false;
+        }
+        return true;
     }
 
     /**
-     * Determine the state code of suggested Branch Identifier.
-     * (state precedence TBD)
+     * @return the highest state recorded by addBranchState(), UNKNOWN
+     * if no branch state was recorded.
+     */
+    private static int finalBranchState(int[] stateList) {
+        for (int j=stateList.length-1; j>0; j--) {
+            if (stateList[j]>-1) {
+                return stateList[j]; //short cut to the final state
+            }
+        }
+        return UNKNOWN;
+    }
+
+    public int[] getStates (long[] workflowIds) {
+        return getStates(workflowIds, null);
+    }
+
+    /**
+     * Determine the state codes of a batch of WorkFlow Instance
+     * Identifiers.  The states are resolved in chunks of
+     * STATE_CHUNK_SIZE ids per query instead of one getState() call
+     * per id, and follow the same branch precedence as getState().
      *
-     * @param branchId - the identifier to obtain status for.
+     * @param workflowIds - the identifiers to obtain the state for.
      * @param c - the JDBC <tt>Connection</tt> object to contact the
      * database via. If <tt>null</tt> a new is obtained from the J2EE
      * container pool.
-     * @return the state code for the Branch. -1 if does not exsist.
+     * @return the state codes, aligned with <tt>workflowIds</tt>.
+     * UNKNOWN for an id that does not exist.
      */
-    public int getBranchState (String branchId, Connection c, long wfId,
-                               boolean hints) {
-        int state = UNKNOWN;
-
-        // add WORKFLOW_ID and STEP_ID to the read so the index is used
-        // even though they are not used for the calculations.
-        String sql = null;
-        Connection conn = null;
-        PreparedStatement pstmt = null;
-        String msg = null;
+    public int[] getStates (long[] workflowIds, Connection c) {
+        return getStates(workflowIds, c, sequential);
+    }
 
-        ResultSet rs = null;
+    /**
+     * getStates() with the chunks spread over the connections of
+     * <tt>runner</tt>.  <tt>c</tt> is used by the calling thread only.
+     */
+    private int[] getStates (long[] workflowIds, Connection c,
+                             MonitorFanOut runner) {
 
-        int nextActivityId = -10;
-        int activityId = -10;
-        int wfeStatus = -10;
-        int basicStatus = -10;
-        String advStatus = null;
+        final int[] states = new int[workflowIds == null ? 0 : workflowIds.length];
+        Arrays.fill(states, UNKNOWN);
+        if (states.length == 0) {
+            return states;
+        }
 
+        Connection conn = null;
+        String msg = null;
 
         try {
             if (c == null) {
@@ -894,127 +1130,630 @@ public class WorkFlowMonitor {
             } else {
                 conn = c;
             }
-            sql=JDBCService.getNamedSQL(conn,"wfm_getBranchState");
-            pstmt = conn.prepareStatement(sql);
-            pstmt.setMaxRows(1);
-
-            pstmt.setLong(1, wfId);
-            pstmt.setString(2, branchId);
-            rs = pstmt.executeQuery();
-
-            if ((rs != null) && rs.next()) {
-
-                nextActivityId = rs.getInt("NEXT_AI_ID");
-                activityId = rs.getInt("ACTIVITYINFO_ID");
-                wfeStatus = rs.getInt("WFE_STATUS");
-                basicStatus = rs.getInt("BASIC_STATUS");
-                advStatus = rs.getString("ADV_STATUS");
-                //workflowId = rs.getLong("WORKFLOW_ID");
-                //stepId = rs.getInt("STEP_ID");
-//               System.out.println("\nbranchId("+branchId+")["+stepId+
-//                                  "] wfe_status="+wfeStatus+
-//                               " advStatus='"+advStatus+
-//                                  "' nextActivityId="+nextActivityId);
 
-                if (basicStatus == WorkFlowContext.WAITING) {
-                    state = WAITING;
-		} else if (basicStatus == WorkFlowContext.WAITING_ON_IO) {
-                    state = WAITING_ON_IO;
-                } else if (basicStatus == WorkFlowContext.WF_INTERRUPT_AUTO) {
-                    if (nextActivityId == ActivityInfo.DONE) {
-                        state = COMPLETE;
-                    } else {
-                        state = INTERRUPTED_AUTO;
-                        }
-                } else if (basicStatus == WorkFlowContext.WF_INTERRUPT_AUTO_OFFSET &&
-                    nextActivityId == ActivityInfo.DONE) {
-                  //Once indexing occurs complete and terminated
-                  //error fields are offset to increase search performance
-                  state = COMPLETE;
-                } else if (basicStatus == WorkFlowContext.WF_INTERRUPT_MAN) {
-                    if (nextActivityId == ActivityInfo.DONE) {
-                        state = COMPLETE;
-                    } else {
-                        state = INTERRUPTED_MAN;
-                        }
-                } else if (basicStatus == WorkFlowContext.WF_INTERRUPT_MAN_OFFSET &&
-                    nextActivityId == ActivityInfo.DONE) {
-                  //Once indexing occurs complete and terminated
-                  //error fields are offset to increase search performance
-                  state = COMPLETE;
-                } else if (basicStatus == WorkFlowContext.WFE_SYSTEM_ERROR ||
-                           basicStatus == WorkFlowContext.SYSTEM_ERROR ||
-                           basicStatus == WorkFlowContext.SERVICE_CONFIG_ERROR ||
-                           basicStatus == WorkFlowContext.WARNING ||
-                           basicStatus == WorkFlowContext.ERROR) {
-                    if (nextActivityId == ActivityInfo.DONE) {
-                        if (wfeStatus == ActivityInfo.CHILD_DONE) {
-                            state = HALTED;
-                        } else {
-                            state = COMPLETE;
-                            }
-                    } else if (nextActivityId == activityId) {
-                        state = HALTED;
-                        //Since when sub workflow is disabled,
-                        //activity id=0, and nextacvitity id =1
-                    } else if (
-                      wfeStatus == WFCBase.WFE_WF_INSTANCE_STOPPED ||
-                      wfeStatus == WorkFlowContext.WFE_WFD_DEACTIVATED ||
-                      wfeStatus == WorkFlowContext.WFE_SERVICE_DEACTIVATED ||
-                      wfeStatus == WorkFlowContext.WFE_REMOTE_ERROR ||
-                      wfeStatus == WorkFlowContext.WFE_CREATE_ERROR ||
-                      wfeStatus == WorkFlowContext.WFE_BASIC_ERROR ||
-                      wfeStatus == WorkFlowContext.WFE_NAME_ERROR ||
-                      wfeStatus == WorkFlowContext.WFE_LICENSE_ERROR ||
-                      wfeStatus == WorkFlowContext.WFE_JMS_ERROR )  {
-                        state= HALTED;
-                   } else {
-                        state = ACTIVE;
+            // terminal and cached states are served without a query
+            int misses = 0;
+            for (int i = 0; i < workflowIds.length; i++) {
+                if (workflowIds[i] > 0) {
+                    int cached = terminalIndex.stateOf(workflowIds[i]);
+                    if (cached == UNKNOWN) {
+                        cached = stateCache.get(workflowIds[i]);
                     }
-                } else if (
-                    ( basicStatus == WorkFlowContext.WFE_SYSTEM_ERROR_OFFSET ||
-                      basicStatus == WorkFlowContext.SYSTEM_ERROR_OFFSET ||
-                      basicStatus == WorkFlowContext.SERVICE_CONFIG_ERROR_OFFSET ||
-                      basicStatus == WorkFlowContext.ERROR_OFFSET ) &&
-                    nextActivityId == ActivityInfo.DONE) {
-                  //Once indexing occurs complete and terminated
-                  //error fields are offset to increase search performance
-                  state = COMPLETE;
-                } else if (basicStatus == WorkFlowContext.WF_TERMINATED) {
-                    state = TERMINATED;
-                } else if (wfeStatus == WorkFlowContext.WFE_DEFAULT_STATUS &&
-                           nextActivityId == ActivityInfo.DONE) {
-                    state = COMPLETE;
-                } else if (wfeStatus == WorkFlowContext.WFE_DEFAULT_STATUS &&
-                           nextActivityId == ActivityInfo.NOOP) {
-                        state = ACTIVE_WAITING; // this is a split.
-                } else if (basicStatus ==WFCBase.SUCCESS &&
-                           wfeStatus == ActivityInfo.CHILD_DONE) {
-                        if (nextActivityId == ActivityInfo.DONE){
-                            state = COMPLETE;
-                        } else {
-                            state = ACTIVE;
-                            } 
-                } else if (nextActivityId != ActivityInfo.NOOP &&
-                    nextActivityId != ActivityInfo.DONE) {
-
-                    if (isWFInactive(wfId, conn)) {
-                        state = HALTING;
+                    if (cached != WorkFlowStateCache.MISS) {
+                        states[i] = cached;
                     } else {
-                        state = ACTIVE;
+                        misses++;
                     }
                 }
             }
+            if (misses == 0) {
+                return states;
+            }
 
-
-            if (hints) {
-                Hint hint = new Hint(wfId, branchId, state);
+            if (!newStateAndStatus &&
+                (Hint.isHintsEnabled() || !singleQueryState)) {
+                // the hinted and legacy reads are per workflow
+                final long[] ids = workflowIds;
+                runner.run(ids.length, STATE_CHUNK_SIZE, conn,
+                           new MonitorFanOut.Work() {
+                    public void run(int from, int to, Connection conn) {
+                        for (int i = from; i < to; i++) {
+                            if (ids[i] > 0 && states[i] == UNKNOWN) {
+                                states[i] = getState(ids[i], conn);
+                            }
+                        }
+                    }
+                });
+                return states;
+            }
+
+            StringBuffer sb = new StringBuffer();
+            if (newStateAndStatus) {
+                sb.append(" SELECT ");
+                sb.append(namedSQL(MonitorSQLRegistry.STATE_AND_STATUS_MAIN));
+                sb.append(" WHERE WORKFLOW_ID IN (");
+            } else {
+                sb.append(namedSQL(conn, MonitorSQLRegistry.GET_BRANCH_TIPS));
+                sb.append("IN (");
+            }
+            for (int i = 0; i < STATE_CHUNK_SIZE; i++) {
+                sb.append(i == 0 ? "?" : ",?");
+            }
+            if (newStateAndStatus) {
+                sb.append(") AND ACTIVITYINFO_ID = 0 AND STEP_ID = 0 ");
+            } else {
+                sb.append(") ORDER BY WFC.WORKFLOW_ID");
+            }
+            String sql = sb.toString();
+
+            if (WFGlobals.out.debug) {
+                msg = myClassName + ".getStates() query " + sql;
+                WFGlobals.out.logDebug( WFGlobals.WORKFLOW , WFGlobals.WORKFLOW , "ERR_msg4" ,  new Object[]{ "" + msg });
+            }
+
+            // the ids still to read, every chunk of them is padded to
+            // STATE_CHUNK_SIZE binds so one statement per connection is
+            // reused for the whole batch
+            final int[] pending = new int[misses];
+            int m = 0;
+            for (int i = 0; i < workflowIds.length; i++) {
+                if (workflowIds[i] > 0 && states[i] == UNKNOWN) {
+                    pending[m++] = i;
+                }
+            }
+            final long[] ids = workflowIds;
+            final String stmtKey = newStateAndStatus ? "GET_STATES_MAIN" :
+                                                       "GET_STATES_TIPS";
+            final String stmtSql = sql;
+            runner.run(pending.length, STATE_CHUNK_SIZE, conn,
+                       new MonitorFanOut.Work() {
+                public void run(int from, int to, Connection conn)
+                    throws Exception {
+                    readStateChunk(ids, pending, from, to, states,
+                                   conn, stmtKey, stmtSql);
+                }
+            });
+        }  catch(SQLException sqe) {
+
+            msg = myClassName + ".getStates() caught SQLException.";
+            WFGlobals.out.logException( WFGlobals.WORKFLOW , WFGlobals.WORKFLOW , "ERR_getBranchStatus7" ,  new Object[]{ "" + myClassName }, sqe);
+            sqe.printStackTrace();
+
+        }  catch (Exception e) {
+
+            msg = myClassName + ".getStates() caught Exception.";
+            WFGlobals.out.logException( WFGlobals.WORKFLOW , WFGlobals.WORKFLOW , "ERR_getBranchStatus14" ,  new Object[]{ "" + myClassName }, e);
+            e.printStackTrace();
+        } finally {
+            if (conn != null && c == null)
+                freeConnection(conn);
+        }
+
+        return states;
+    }
+
+    /**
+     * Reads the states of <tt>workflowIds[pending[from..to-1]]</tt>
+     * with one padded query on the connection.
+     */
+    private void readStateChunk(long[] workflowIds, int[] pending,
+                                int from, int to, int[] states,
+                                Connection conn, String stmtKey, String sql)
+        throws SQLException {
+
+        int n = to - from;
+        long[] chunk = new long[n];
+        int[] chunkStates = new int[n];
+        for (int i = 0; i < n; i++) {
+            chunk[i] = workflowIds[pending[from + i]];
+        }
+        Arrays.sort(chunk);
+        Arrays.fill(chunkStates, UNKNOWN);
+        long stamp = stateCache.stamp();
+
+        PreparedStatement pstmt = null;
+        try {
+            pstmt = stmtCache.prepare(conn, stmtKey, sql);
+            for (int i = 0; i < STATE_CHUNK_SIZE; i++) {
+                pstmt.setLong(i + 1, chunk[i < n ? i : n - 1]);
+            }
+
+            if (newStateAndStatus) {
+                readMainStates(pstmt, chunk, n, chunkStates);
+            } else {
+                readBranchTipStates(pstmt, conn, chunk, n, chunkStates);
+            }
+        } catch (SQLException sqe) {
+            stmtCache.invalidate(conn, stmtKey, pstmt);
+            pstmt = null;
+            throw sqe;
+        } finally {
+            if (pstmt != null)
+                stmtCache.release(conn, stmtKey, pstmt);
+        }
+
+        for (int i = from; i < to; i++) {
+            long wfId = workflowIds[pending[i]];
+            int pos = Arrays.binarySearch(chunk, 0, n, wfId);
+            states[pending[i]] = chunkStates[pos];
+            rememberState(wfId, states[pending[i]], stamp);
+        }
+    }
+
+    /**
+     * Reads the STATE column of the getStateAndStatus_MAIN rows for
+     * one chunk of sorted ids into <tt>chunkStates</tt>.
+     */
+    private static void readMainStates(PreparedStatement pstmt, long[] chunk,
+                                       int n, int[] chunkStates)
+        throws SQLException {
+        ResultSet rs = null;
+        try {
+            rs = pstmt.executeQuery();
+            while (rs != null && rs.next()) {
+                int pos = Arrays.binarySearch(chunk, 0, n,
+                                              rs.getLong("WORKFLOW_ID"));
+                if (pos >= 0 && chunkStates[pos] == UNKNOWN) {
+                    chunkStates[pos] = reversePrecedenceOrder(rs.getInt("STATE"));
+                }
+            }
+        } finally {
+            if (rs != null)
+                rs.close();
+        }
+    }
+
+    /**
+     * Reads the branch tips of one chunk of sorted ids and merges the
+     * branches of each workflow the same way getState() does.  The
+     * tips are read to the end before the inactive flag of any
+     * workflow is looked up, so the lookups never run on the
+     * connection while it still has the tips open.
+     */
+    private void readBranchTipStates(PreparedStatement pstmt, Connection conn,
+                                     long[] chunk, int n, int[] chunkStates)
+        throws SQLException {
+        ResultSet rs = null;
+        int[][] stateLists = new int[n][];
+        boolean[] runnable = new boolean[n];
+        try {
+            rs = pstmt.executeQuery();
+            while (rs != null && rs.next()) {
+                long wfId = rs.getLong("WORKFLOW_ID");
+                int pos = Arrays.binarySearch(chunk, 0, n, wfId);
+                if (pos < 0) {
+                    continue;
+                }
+                if (stateLists[pos] == null) {
+                    stateLists[pos] = new int[] {-1,-1,-1,-1,-1,-1,-1,-1,-1,-1,-1};
+                }
+                int bState = BranchStateClassifier.classify(
+                    rs.getInt("BASIC_STATUS"), rs.getInt("WFE_STATUS"),
+                    rs.getInt("ACTIVITYINFO_ID"), rs.getInt("NEXT_AI_ID"));
+                if (bState == BranchStateClassifier.RUNNABLE) {
+                    runnable[pos] = true;
+                } else if (!addBranchState(stateLists[pos], bState)) {
+                    WFGlobals.out.logError( WFGlobals.WORKFLOW , WFGlobals.WORKFLOW , "ERR_Workflow" ,  new Object[]{ "" + wfId });
+                }
+            }
+        } finally {
+            if (rs != null)
+                rs.close();
+        }
+
+        for (int pos = 0; pos < n; pos++) {
+            if (stateLists[pos] == null) {
+                continue;
+            }
+            if (runnable[pos]) {
+                // the inactive flag is per workflow, probe it once
+                addBranchState(stateLists[pos],
+                               isWFInactive(chunk[pos], conn) ? HALTING : ACTIVE);
+            }
+            chunkStates[pos] = finalBranchState(stateLists[pos]);
+        }
+    }
+
+    /**
+     * Converts a list of String workflow ids for getStates().  An id
+     * that cannot be parsed is passed as -1 and comes back UNKNOWN.
+     */
+    private long[] toWorkFlowIds(List list) {
+        long[] ids = new long[list.size()];
+        int i = 0;
+        for (Iterator it = list.iterator(); it.hasNext(); i++) {
+            String workflowId = (String)it.next();
+            try {
+                ids[i] = Long.parseLong(workflowId);
+            } catch (NumberFormatException ne) {
+                ids[i] = -1;
+                WFGlobals.out.logException( WFGlobals.WORKFLOW , WFGlobals.WORKFLOW , "ERR_myClassName_getState" ,  new Object[]{ "" + myClassName , "" + workflowId }, ne);
+            }
+        }
+        return ids;
+    }
+
+    //Workflow ids per getAllIds(list, states, statuses) search query.
+    private static final int FILTER_CHUNK_SIZE = 1000;
+
+    /**
+     * Finds which of the workflows are in one of the states and, if
+     * <tt>statuses</tt> is not null, one of the statuses, with the
+     * getStateAndStatusSql() search limited to FILTER_CHUNK_SIZE ids
+     * per query.
+     *
+     * @return flags aligned with <tt>workflowIds</tt>.
+     * @throws Exception if the search cannot express the filters.
+     */
+    private boolean[] matchStateAndStatus(long[] workflowIds,
+                                          final int[] states,
+                                          final int[] statuses,
+                                          Connection c) throws Exception {
+        final long[] ids = workflowIds;
+        final boolean[] matched = new boolean[ids.length];
+
+        // fail before any query if the filters are not supported
+        getStateAndStatusSql(states, statuses, null, null, null, null,
+                             null, null, -1, null);
+
+        fanOut.run(ids.length, FILTER_CHUNK_SIZE, c, new MonitorFanOut.Work() {
+            public void run(int from, int to, Connection conn)
+                throws Exception {
+                ArrayList chunk = new ArrayList(to - from);
+                for (int i = from; i < to; i++) {
+                    if (ids[i] > 0) {
+                        chunk.add(Long.toString(ids[i]));
+                    }
+                }
+                if (chunk.isEmpty()) {
+                    return;
+                }
+                // padded binds, the chunks share one SQL text
+                Object[] sqlAndBinds = getStateAndStatusSql(states, statuses,
+                                                            null, chunk,
+                                                            null, null,
+                                                            null, null,
+                                                            -1, null,
+                                                            true, false, 0);
+                LongHashSet found = new LongHashSet(chunk.size());
+                PreparedStatement stmt = null;
+                ResultSet rs = null;
+                try {
+                    stmt = conn.prepareStatement((String)sqlAndBinds[0]);
+                    bindStateAndStatusSql(stmt, sqlAndBinds);
+                    rs = stmt.executeQuery();
+                    int idColumn = -1;
+                    while (rs != null && rs.next()) {
+                        if (idColumn == -1) {
+                            idColumn = rs.findColumn("WORKFLOW_ID");
+                        }
+                        found.add(rs.getLong(idColumn));
+                    }
+                } finally {
+                    if (rs != null)
+                        rs.close();
+                    if (stmt != null)
+                        stmt.close();
+                }
+                for (int i = from; i < to; i++) {
+                    matched[i] = ids[i] > 0 && found.contains(ids[i]);
+                }
+            }
+        });
+        return matched;
+    }
+
+    /**
+     * @return the codes of a list of state or status Strings, null for
+     * a null list.
+     */
+    private static int[] toIntFilter(ArrayList codes) {
+        if (codes == null) {
+            return null;
+        }
+        int[] filter = new int[codes.size()];
+        for (int i = 0; i < filter.length; i++) {
+            filter[i] = Integer.parseInt((String)codes.get(i));
+        }
+        return filter;
+    }
+
+    private static boolean contains(int[] codes, int code) {
+        for (int i = 0; i < codes.length; i++) {
+            if (codes[i] == code) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Determine the status codes of a batch of WorkFlow Instance
+     * Identifiers with getStatus(), spread over the connections of
+     * <tt>runner</tt>.  Ids of 0 or less are skipped and come back
+     * UNKNOWN.
+     */
+    private int[] getStatuses (long[] workflowIds, Connection c,
+                               MonitorFanOut runner) throws Exception {
+        final long[] ids = workflowIds;
+        final int[] statuses = new int[ids.length];
+        Arrays.fill(statuses, UNKNOWN);
+        runner.run(ids.length, STATE_CHUNK_SIZE, c, new MonitorFanOut.Work() {
+            public void run(int from, int to, Connection conn) {
+                for (int i = from; i < to; i++) {
+                    if (ids[i] > 0) {
+                        statuses[i] = getStatus(ids[i], conn);
+                    }
+                }
+            }
+        });
+        return statuses;
+    }
+
+    /**
+     * @return <tt>state</tt> and <tt>status</tt> in one long, as
+     * returned by getStateAndStatus().
+     */
+    public static long packStateAndStatus(int state, int status) {
+        return ((long)state << 32) | (status & 0xFFFFFFFFL);
+    }
+
+    /** @return the state of a packStateAndStatus() value. */
+    public static int stateOf(long stateAndStatus) {
+        return (int)(stateAndStatus >> 32);
+    }
+
+    /** @return the status of a packStateAndStatus() value. */
+    public static int statusOf(long stateAndStatus) {
+        return (int)stateAndStatus;
+    }
+
+    /**
+     * Determine the state and the status of a batch of WorkFlow
+     * Instance Identifiers together.  The states come from getStates().
+     * The statuses that are not cached take one more query per
+     * STATE_CHUNK_SIZE workflows, GET_WORKFLOW_STATUS_SQL for the whole
+     * chunk, and are resolved as getStatus() resolves them: the most
+     * severe StatusSeverity of the codes of a workflow.
+     *
+     * @param workflowIds - the identifiers to obtain state and status for.
+     * @param c - the JDBC <tt>Connection</tt> object to contact the
+     * database via. If <tt>null</tt> a new is obtained from the J2EE
+     * container pool.
+     * @return packStateAndStatus() of each id, aligned with
+     * <tt>workflowIds</tt>.  UNKNOWN state and status for an id that
+     * does not exist.
+     */
+    public long[] getStateAndStatus (long[] workflowIds, Connection c) {
+        return getStateAndStatus(workflowIds, c, sequential);
+    }
+
+    /**
+     * getStateAndStatus() with the chunks spread over the connections
+     * of <tt>runner</tt>.  <tt>c</tt> is used by the calling thread only.
+     */
+    private long[] getStateAndStatus (long[] workflowIds, Connection c,
+                                      MonitorFanOut runner) {
+
+        final int n = (workflowIds == null) ? 0 : workflowIds.length;
+        final int[] states = new int[n];
+        final int[] statuses = new int[n];
+        Arrays.fill(states, UNKNOWN);
+        Arrays.fill(statuses, UNKNOWN);
+        long[] packed = new long[n];
+
+        Connection conn = null;
+
+        try {
+            if (n > 0 && c == null) {
+                conn  =  Conn.getConnection();
+            } else {
+                conn = c;
+            }
+
+            if (n > 0) {
+                int[] known = getStates(workflowIds, conn, runner);
+                System.arraycopy(known, 0, states, 0, n);
+            }
+
+            // workflows with a cached status are not read
+            final int[] pending = new int[n];
+            int misses = 0;
+            for (int i = 0; i < n; i++) {
+                long wfId = workflowIds[i];
+                if (wfId <= 0) {
+                    continue;
+                }
+                int cachedStatus = statusCache.get(wfId);
+                if (cachedStatus != WorkFlowStateCache.MISS) {
+                    statuses[i] = cachedStatus;
+                } else {
+                    pending[misses++] = i;
+                }
+            }
+
+            if (misses > 0) {
+                final long[] ids = workflowIds;
+                runner.run(misses, STATE_CHUNK_SIZE, conn,
+                           new MonitorFanOut.Work() {
+                    public void run(int from, int to, Connection conn)
+                        throws Exception {
+                        readStatusChunk(ids, pending, from, to, statuses,
+                                        conn);
+                    }
+                });
+            }
+        }  catch(SQLException sqe) {
+
+            WFGlobals.out.logException( WFGlobals.WORKFLOW , WFGlobals.WORKFLOW , "ERR_getBranchStatus7" ,  new Object[]{ "" + myClassName }, sqe);
+            sqe.printStackTrace();
+
+        }  catch (Exception e) {
+
+            WFGlobals.out.logException( WFGlobals.WORKFLOW , WFGlobals.WORKFLOW , "ERR_getBranchStatus14" ,  new Object[]{ "" + myClassName }, e);
+            e.printStackTrace();
+        } finally {
+            if (conn != null && c == null)
+                freeConnection(conn);
+        }
+
+        for (int i = 0; i < n; i++) {
+            packed[i] = packStateAndStatus(states[i], statuses[i]);
+        }
+        return packed;
+    }
+
+    /**
+     * Reads the BASIC_STATUS codes of
+     * <tt>workflowIds[pending[from..to-1]]</tt> with one padded query on
+     * the connection, and resolves the status of each.  A workflow
+     * without rows stays UNKNOWN.
+     */
+    private void readStatusChunk(long[] workflowIds, int[] pending,
+                                 int from, int to, int[] statuses,
+                                 Connection conn)
+        throws SQLException {
+
+        int n = to - from;
+        long[] chunk = new long[n];
+        for (int i = 0; i < n; i++) {
+            chunk[i] = workflowIds[pending[from + i]];
+        }
+        Arrays.sort(chunk);
+        // per workflow the most severe code found, -1 for none
+        int[] severities = new int[n];
+        Arrays.fill(severities, -1);
+        long stamp = statusCache.stamp();
+
+        String stmtKey = "GET_STATUS_CODES";
+        PreparedStatement pstmt = null;
+        ResultSet rs = null;
+        try {
+            StringBuffer sb = new StringBuffer(GET_STATUS_CODES_SQL_START);
+            for (int i = 0; i < STATE_CHUNK_SIZE; i++) {
+                sb.append(i == 0 ? "?" : ",?");
+            }
+            sb.append(GET_STATUS_CODES_SQL_END);
+            pstmt = stmtCache.prepare(conn, stmtKey, sb.toString());
+            for (int i = 0; i < STATE_CHUNK_SIZE; i++) {
+                pstmt.setLong(i + 1, chunk[i < n ? i : n - 1]);
+            }
+            rs = pstmt.executeQuery();
+
+            while (rs != null && rs.next()) {
+                int pos = Arrays.binarySearch(chunk, 0, n, rs.getLong(1));
+                if (pos < 0) {
+                    continue;
+                }
+                severities[pos] = Math.max(severities[pos],
+                                           StatusSeverity.of(rs.getInt(2)));
+            }
+        } catch (SQLException sqe) {
+            stmtCache.invalidate(conn, stmtKey, pstmt);
+            pstmt = null;
+            throw sqe;
+        } finally {
+            if (rs != null)
+                rs.close();
+            if (pstmt != null)
+                stmtCache.release(conn, stmtKey, pstmt);
+        }
+
+        for (int i = from; i < to; i++) {
+            int p = pending[i];
+            long wfId = workflowIds[p];
+            int pos = Arrays.binarySearch(chunk, 0, n, wfId);
+            if (severities[pos] != -1) {
+                statuses[p] = StatusSeverity.toStatus(severities[pos]);
+                statusCache.put(wfId, statuses[p], stamp);
+            }
+        }
+    }
+
+    public int getBranchState (String branchId, Connection c, long wfId) {
+        return getBranchState (branchId, c, wfId, false);
+    }
+
+    /**
+     * Determine the state code of suggested Branch Identifier.
+     * (state precedence TBD)
+     *
+     * @param branchId - the identifier to obtain status for.
+     * @param c - the JDBC <tt>Connection</tt> object to contact the
+     * database via. If <tt>null</tt> a new is obtained from the J2EE
+     * container pool.
+     * @return the state code for the Branch. -1 if does not exsist.
+     */
+    public int getBranchState (String branchId, Connection c, long wfId,
+                               boolean hints) {
+        int state = UNKNOWN;
+
+        // add WORKFLOW_ID and STEP_ID to the read so the index is used
+        // even though they are not used for the calculations.
+        String sql = null;
+        Connection conn = null;
+        PreparedStatement pstmt = null;
+        String msg = null;
+
+        ResultSet rs = null;
+
+        int nextActivityId = -10;
+        int activityId = -10;
+        int wfeStatus = -10;
+        int basicStatus = -10;
+        String advStatus = null;
+
+
+        try {
+            if (c == null) {
+                conn  =  Conn.getConnection();
+            } else {
+                conn = c;
+            }
+            sql=namedSQL(conn, MonitorSQLRegistry.GET_BRANCH_STATE);
+            pstmt = stmtCache.prepare(conn, "wfm_getBranchState", sql);
+            pstmt.setMaxRows(1);
+
+            pstmt.setLong(1, wfId);
+            pstmt.setString(2, branchId);
+            rs = pstmt.executeQuery();
+
+            if ((rs != null) && rs.next()) {
+
+                nextActivityId = rs.getInt("NEXT_AI_ID");
+                activityId = rs.getInt("ACTIVITYINFO_ID");
+                wfeStatus = rs.getInt("WFE_STATUS");
+                basicStatus = rs.getInt("BASIC_STATUS");
+                advStatus = rs.getString("ADV_STATUS");
+                //workflowId = rs.getLong("WORKFLOW_ID");
+                //stepId = rs.getInt("STEP_ID");
+//               System.out.println("\nbranchId("+branchId+")["+stepId+
+//                                  "] wfe_status="+wfeStatus+
+//                               " advStatus='"+advStatus+
+//                                  "' nextActivityId="+nextActivityId);
+
+                state = BranchStateClassifier.classify(
+                    basicStatus, wfeStatus, activityId, nextActivityId);
+                if (state == BranchStateClassifier.RUNNABLE) {
+                    if (isWFInactive(wfId, conn)) {
+                        state = HALTING;
+                    } else {
+                        state = ACTIVE;
+                    }
+                }
+            }
+
+
+            if (hints) {
+                Hint hint = new Hint(wfId, branchId, state);
                 hint.setWFEStatus(wfeStatus);
                 hint.setBasicStatus(basicStatus);
                 hint.setAdvStatus(advStatus);
                 hint.save(conn);
             }
         }  catch(SQLException sqe) {
+            stmtCache.invalidate(conn, "wfm_getBranchState", pstmt);
+            pstmt = null;
 
             msg = myClassName + ".getBranchStatus() caught SQLException.";
 /*            WFGlobals.out.logException(msg, sqe);*/
@@ -1035,11 +1774,7 @@ public class WorkFlowMonitor {
 
 
                 if (pstmt != null) {
-                    pstmt.close();
-                }
-
-                if (conn != null && c == null) {
-                    Conn.freeConnection(conn);
+                    stmtCache.release(conn, "wfm_getBranchState", pstmt);
                 }
             } catch (SQLException sqe) {
 
@@ -1049,6 +1784,10 @@ public class WorkFlowMonitor {
 /*                WFGlobals.out.logException(msg, sqe);*/
                 WFGlobals.out.logException( WFGlobals.WORKFLOW , WFGlobals.WORKFLOW , "ERR_getBranchStatus23" ,  new Object[]{ "" + myClassName }, sqe);
                 sqe.printStackTrace();
+            } finally {
+                if (conn != null && c == null) {
+                    freeConnection(conn);
+                }
             }
         }
 
@@ -1062,16 +1801,24 @@ public class WorkFlowMonitor {
 
     private boolean isWFInactive(long workflowId, Connection c)
         throws SQLException {
+        if (inactiveWFs.beginReload()) {
+            reloadInactiveWFs();
+        }
+        int known = inactiveWFs.lookup(workflowId);
+        if (known != InactiveWorkFlowSet.NOT_KNOWN) {
+            return known == InactiveWorkFlowSet.INACTIVE;
+        }
+
         boolean flag = false;
         // String msg = null;
         String reasonCode = null;
-        String sql =JDBCService.getNamedSQL(c,"wfm_isWFInactive");
+        String sql =namedSQL(c, MonitorSQLRegistry.IS_WF_INACTIVE);
         PreparedStatement pstmt = null;
         ResultSet rs = null;
 
         try
         {
-           pstmt = c.prepareStatement(sql);
+           pstmt = stmtCache.prepare(c, "wfm_isWFInactive", sql);
            pstmt.setLong(1, workflowId);
            rs = pstmt.executeQuery();
 
@@ -1088,6 +1835,8 @@ public class WorkFlowMonitor {
         }
         catch(SQLException sqle)
         {
+           stmtCache.invalidate(c, "wfm_isWFInactive", pstmt);
+           pstmt = null;
            throw sqle;
         }
         finally
@@ -1095,13 +1844,80 @@ public class WorkFlowMonitor {
               if(rs != null)
                  rs.close();
 
-              if (pstmt != null)
-                 pstmt.close();
+              stmtCache.release(c, "wfm_isWFInactive", pstmt);
            }
 
+        inactiveWFs.record(workflowId, flag);
         return flag;
     }
 
+    /**
+     * Reads every inactive workflow with wfm_getInactiveWFs into
+     * inactiveWFs.  Without that query the set keeps answering from
+     * single wfm_isWFInactive reads.
+     *
+     * The read takes a connection of its own, so it never runs on a
+     * connection the caller is in the middle of reading from.
+     */
+    private void reloadInactiveWFs() {
+        Connection c = null;
+        PreparedStatement pstmt = null;
+        ResultSet rs = null;
+        long started = System.currentTimeMillis();
+
+        try {
+            String sql = namedSQL(MonitorSQLRegistry.GET_INACTIVE_WFS);
+            if (sql == null || sql.trim().length() == 0) {
+                inactiveWFs.reloadUnsupported();
+                return;
+            }
+
+            ArrayList ids = new ArrayList();
+            c = Conn.getConnection();
+            pstmt = c.prepareStatement(sql);
+            rs = pstmt.executeQuery();
+            while (rs != null && rs.next()) {
+                ids.add(new Long(rs.getLong(1)));
+            }
+            inactiveWFs.reloaded(ids, started);
+        } catch (SQLException sqe) {
+            WFGlobals.out.logException( WFGlobals.WORKFLOW , WFGlobals.WORKFLOW , "ERR_getBranchStatus7" ,  new Object[]{ "" + myClassName }, sqe);
+        } finally {
+            inactiveWFs.endReload();
+            try {
+                if (rs != null)
+                    rs.close();
+                if (pstmt != null)
+                    pstmt.close();
+            } catch (SQLException sqe) {
+                WFGlobals.out.logException( WFGlobals.WORKFLOW , WFGlobals.WORKFLOW , "ERR_getBranchStatus22" ,  new Object[]{ "" + myClassName }, sqe);
+            } finally {
+                if (c != null)
+                    freeConnection(c);
+            }
+        }
+    }
+
+    /**
+     * To be called once a stopped workflow has been resumed, so it
+     * reads as ACTIVE again right away instead of HALTING until the
+     * next reload of the inactive workflows.
+     */
+    public static void workflowResumed(long workflowId) {
+        inactiveWFs.remove(workflowId);
+        invalidateState(workflowId);
+    }
+
+    /**
+     * To be called once a workflow has been purged or archived out of
+     * the live tables, so it reads as UNKNOWN again instead of the
+     * COMPLETE or TERMINATED state held for it.
+     */
+    public static void workflowPurged(long workflowId) {
+        terminalIndex.remove(workflowId);
+        invalidateState(workflowId);
+    }
+
     public ArrayList getAllIdsWithState (Connection con) {
 
 		  if(newStateAndStatus) {
@@ -1112,77 +1928,63 @@ public class WorkFlowMonitor {
 		  }
 	  }
 
-    public ArrayList getAllIdsWithStateNew (Connection con, int num) {
+    /**
+     * Callers without a connection of their own that ask at the same
+     * time share one run of the query.
+     */
+    public ArrayList getAllIdsWithStateNew (Connection con, final int num) {
+      if (con != null) {
+        return readAllIdsWithStateNew(con, num);
+      }
+      try {
+        return (ArrayList)inFlight.run("getAllIdsWithStateNew " + num,
+                                       new Callable() {
+            public Object call() {
+              return readAllIdsWithStateNew(null, num);
+            }
+          }, COPY_STATE_LIST);
+      } catch (Exception e) {
+        // the query logs its own SQL errors, only a RuntimeException gets here
+        WFGlobals.out.logException( WFGlobals.WORKFLOW , WFGlobals.WORKFLOW , "ERR_getIdsWithStateNew1" ,  new Object[]{ "" + myClassName }, e);
+        e.printStackTrace();
+        return new ArrayList();
+      }
+    }
 
+    private ArrayList readAllIdsWithStateNew (Connection con, final int num) {
 
-      ArrayList activeList = new ArrayList();
-      ArrayList haltingList = new ArrayList();
-      ArrayList haltedList = new ArrayList();
-      ArrayList waitingList = new ArrayList();
-      ArrayList waitingOnIOList = new ArrayList();
-      ArrayList interruptedAutoList = new ArrayList();
-      ArrayList interruptedManList = new ArrayList();
+      final ArrayList activeList = new ArrayList();
+      final ArrayList haltingList = new ArrayList();
+      final ArrayList haltedList = new ArrayList();
+      final ArrayList waitingList = new ArrayList();
+      final ArrayList waitingOnIOList = new ArrayList();
+      final ArrayList interruptedAutoList = new ArrayList();
+      final ArrayList interruptedManList = new ArrayList();
       ArrayList idList = new ArrayList();
 
-      Connection conn = null;
-      ResultSet rs = null;
-      PreparedStatement pstmt = null;
-      StringBuffer sb = new StringBuffer();
-      String sql=null;
-      boolean passedIn=false;
       try {
-        if ( con ==null) {
-            conn = Conn.getConnection();
-        } else {
-            conn=con;
-            passedIn=true;
-            }
-        sb.append( " SELECT ");
-        sb.append(JDBCService.getNamedSQL( conn, "getStateAndStatus_MAIN"));
-       	sb.append(" ");
-        sb.append(JDBCService.getNamedSQL(conn, "wfm_getAllIdsWithStateNew_where"));
-        sql = sb.toString();
-        if(WFGlobals.out.debug) {
-          String msg = myClassName + ".getIdsWithStateNew() query " + sql;
-          WFGlobals.out.logDebug( WFGlobals.WORKFLOW , WFGlobals.WORKFLOW , "ERR_msg5" ,  new Object[]{ "" + msg });
-          WFGlobals.out.logDebug( WFGlobals.WORKFLOW , WFGlobals.WORKFLOW , "DEB_Size_maxBPsToDisplay" ,  new Object[]{ "" + maxBPsToDisplay });
-        }
-        pstmt = conn.prepareStatement(sql);
-/*
-        if(num != -1) {
-          pstmt.setFetchSize(num);
-        }
-        else {
-          pstmt.setFetchSize(GET_STATE_FETCH_SIZE);
-        }
-*/
-        rs = pstmt.executeQuery();
-
-        int numFound = 0;
-
-        while(rs != null && rs.next()) {
-          String wfId = rs.getString("WORKFLOW_ID");
-          int state = rs.getInt("STATE");
-
-          switch (reversePrecedenceOrder(state)) {
-            case ACTIVE:                 activeList.add(wfId);          break; 
-            case HALTING:                haltingList.add(wfId);         break;
-            case HALTED:                 haltedList.add(wfId);          break;
-            case WAITING:                waitingList.add(wfId);         break;
-            case WAITING_ON_IO:          waitingOnIOList.add(wfId);     break;
-            case INTERRUPTED_AUTO:	 interruptedAutoList.add(wfId); break;
-            case INTERRUPTED_MAN :       interruptedManList.add(wfId);  break;
-            default :                                                   break;
-          }
-          //idList.add(wfId);
-          numFound++;
+        visitAllIdsWithState(con, new WorkFlowStateVisitor() {
+            int numFound = 0;
+
+            public boolean visit(long workflowId, int state) {
+              String wfId = String.valueOf(workflowId);
+              switch (state) {
+                case ACTIVE:                 activeList.add(wfId);          break;
+                case HALTING:                haltingList.add(wfId);         break;
+                case HALTED:                 haltedList.add(wfId);          break;
+                case WAITING:                waitingList.add(wfId);         break;
+                case WAITING_ON_IO:          waitingOnIOList.add(wfId);     break;
+                case INTERRUPTED_AUTO:       interruptedAutoList.add(wfId); break;
+                case INTERRUPTED_MAN :       interruptedManList.add(wfId);  break;
+                default :                                                   break;
+              }
+              numFound++;
 
-          if(num != -1 && numFound >= num) {
-            //Keep going in the infinite
-            //case until result set exhausted or break on n case
-            break;
-          }
-        }
+              //Keep going in the infinite
+              //case until result set exhausted or break on n case
+              return num == -1 || numFound < num;
+            }
+          });
 
         Hashtable active=new Hashtable();
         active.put("STATE",new Integer (ACTIVE));
@@ -1228,32 +2030,281 @@ public class WorkFlowMonitor {
         String msg = myClassName + ".getIdsWithStateNew() caught Exception.";
         WFGlobals.out.logException( WFGlobals.WORKFLOW , WFGlobals.WORKFLOW , "ERR_getIdsWithStateNew1" ,  new Object[]{ "" + myClassName }, e);
         e.printStackTrace();
+      }
+      return idList;
+
+    }
+
+    /**
+     * Reads the state of every live workflow (the
+     * wfm_getAllIdsWithStateNew_where rows of getStateAndStatus_MAIN)
+     * and hands each one to <tt>visitor</tt> as it is read, without
+     * collecting them.  Reading stops early when the visitor returns
+     * false.
+     *
+     * @param con - the JDBC <tt>Connection</tt> to read on. If
+     * <tt>null</tt> a new one is obtained from the J2EE container pool.
+     * @return the number of workflows visited.
+     */
+    public int visitAllIdsWithState (Connection con, WorkFlowStateVisitor visitor)
+        throws SQLException {
+
+      Connection conn = null;
+      ResultSet rs = null;
+      PreparedStatement pstmt = null;
+      StringBuffer sb = new StringBuffer();
+      String sql=null;
+      boolean passedIn=false;
+      int numFound = 0;
+      try {
+        if ( con ==null) {
+            conn = Conn.getConnection();
+        } else {
+            conn=con;
+            passedIn=true;
+            }
+        sb.append( " SELECT ");
+        sb.append(namedSQL(conn, MonitorSQLRegistry.STATE_AND_STATUS_MAIN));
+       	sb.append(" ");
+        sb.append(namedSQL(conn, MonitorSQLRegistry.GET_ALL_IDS_WITH_STATE_NEW_WHERE));
+        sql = sb.toString();
+        if(WFGlobals.out.debug) {
+          String msg = myClassName + ".getIdsWithStateNew() query " + sql;
+          WFGlobals.out.logDebug( WFGlobals.WORKFLOW , WFGlobals.WORKFLOW , "ERR_msg5" ,  new Object[]{ "" + msg });
+          WFGlobals.out.logDebug( WFGlobals.WORKFLOW , WFGlobals.WORKFLOW , "DEB_Size_maxBPsToDisplay" ,  new Object[]{ "" + maxBPsToDisplay });
+        }
+        pstmt = MonitorQuery.prepare(conn, sql);
+        rs = pstmt.executeQuery();
+
+        while(rs != null && rs.next()) {
+          long wfId = rs.getLong("WORKFLOW_ID");
+          int state = reversePrecedenceOrder(rs.getInt("STATE"));
+          numFound++;
+          if (!visitor.visit(wfId, state)) {
+            break;
+          }
+        }
       } finally {
         try {
           if (rs != null) {
             rs.close();
           }
 
-          if (pstmt != null) {
-            pstmt.close();
+          if (pstmt != null) {
+            MonitorQuery.close(pstmt);
+          }
+        } catch (SQLException sqe) {
+          String msg = myClassName +
+            ".getIdsWithStateNew() caught SQLException" +
+            " while trying to close prepared statement.";
+          WFGlobals.out.logException( WFGlobals.WORKFLOW , WFGlobals.WORKFLOW , "ERR_getIdsWithStateNew2" ,  new Object[]{ "" + myClassName }, sqe);
+          sqe.printStackTrace();
+        }
+
+        if (conn != null && !passedIn) {
+             freeConnection(conn);
+             }
+      }
+      return numFound;
+    }
+
+
+    //The live states of getAllIdsWithState(), in the order it lists them
+    private static final int[] LIVE_STATES = {
+        ACTIVE, HALTED, HALTING, WAITING, WAITING_ON_IO,
+        INTERRUPTED_MAN, INTERRUPTED_AUTO
+    };
+
+    private static int liveStateIndex(int state) {
+        for (int i = 0; i < LIVE_STATES.length; i++) {
+            if (LIVE_STATES[i] == state) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * The number of workflows in each live state, for pages that do not
+     * need every id.  Lists the same states in the same order as
+     * getAllIdsWithState(), each as a Hashtable with "STATE" (Integer),
+     * "COUNT" (Integer) and "IDS", an <tt>ArrayList</tt> of at most
+     * <tt>sampleSize</tt> of its ids.
+     *
+     * With useNewStateAndStatusLogic, and the
+     * wfm_getAllIdsWithStateNew_where_unordered SQL defined for the
+     * database, the counts are grouped by STATE in the database and
+     * the samples are read with one capped query per
+     * state, so only a few rows are sent over.  Otherwise, or if the
+     * grouped query fails, the ids are counted as they are read.
+     *
+     * @param con - the JDBC <tt>Connection</tt> to read on. If
+     * <tt>null</tt> a new one is obtained from the J2EE container pool.
+     * @param sampleSize - the most ids to list per state, 0 for none.
+     */
+    public ArrayList getAllIdsWithStateCounts (Connection con, int sampleSize) {
+
+      final int[] counts = new int[LIVE_STATES.length];
+      final ArrayList[] samples = new ArrayList[LIVE_STATES.length];
+      for (int i = 0; i < samples.length; i++) {
+        samples[i] = new ArrayList();
+      }
+      final int maxSample = Math.max(sampleSize, 0);
+      ArrayList idList = new ArrayList();
+
+      Connection conn = null;
+      boolean passedIn = false;
+      try {
+        if (con == null) {
+          conn = Conn.getConnection();
+        } else {
+          conn = con;
+          passedIn = true;
+        }
+
+        boolean counted = false;
+        // the grouped query needs the WHERE clause without its ORDER BY
+        if (newStateAndStatus && !useInformixSyntax &&
+            namedSQL(conn, MonitorSQLRegistry.GET_ALL_IDS_WITH_STATE_NEW_WHERE_UNORDERED) != null) {
+          try {
+            countLiveStates(conn, maxSample, counts, samples);
+            counted = true;
+          } catch (SQLException sqe) {
+            WFGlobals.out.logException( WFGlobals.WORKFLOW , WFGlobals.WORKFLOW , "ERR_getIdsWithStateNew" ,  new Object[]{ "" + myClassName }, sqe);
+            Arrays.fill(counts, 0);
+            for (int i = 0; i < samples.length; i++) {
+              samples[i].clear();
+            }
+          }
+        }
+
+        if (!counted && newStateAndStatus) {
+          visitAllIdsWithState(conn, new WorkFlowStateVisitor() {
+              public boolean visit(long workflowId, int state) {
+                int i = liveStateIndex(state);
+                if (i >= 0) {
+                  counts[i]++;
+                  if (samples[i].size() < maxSample) {
+                    samples[i].add(String.valueOf(workflowId));
+                  }
+                }
+                return true;
+              }
+            });
+        } else if (!counted) {
+          ArrayList lists = getAllIdsWithStateOriginal(conn);
+          for (Iterator it = lists.iterator(); it.hasNext(); ) {
+            Hashtable entry = (Hashtable)it.next();
+            int i = liveStateIndex(((Integer)entry.get("STATE")).intValue());
+            ArrayList ids = (ArrayList)entry.get("IDS");
+            if (i >= 0) {
+              counts[i] = ids.size();
+              samples[i].addAll(ids.subList(0, Math.min(ids.size(), maxSample)));
+            }
+          }
+        }
+
+        for (int i = 0; i < LIVE_STATES.length; i++) {
+          Hashtable entry = new Hashtable();
+          entry.put("STATE", new Integer(LIVE_STATES[i]));
+          entry.put("COUNT", new Integer(counts[i]));
+          entry.put("IDS", samples[i]);
+          idList.add(entry);
+        }
+      }  catch(SQLException sqe) {
+        String msg = myClassName + ".getAllIdsWithStateCounts() caught SQLException.";
+        WFGlobals.out.logException( WFGlobals.WORKFLOW , WFGlobals.WORKFLOW , "ERR_getIdsWithStateNew" ,  new Object[]{ "" + myClassName }, sqe);
+        sqe.printStackTrace();
+      }  catch (Exception e) {
+        String msg = myClassName + ".getAllIdsWithStateCounts() caught Exception.";
+        WFGlobals.out.logException( WFGlobals.WORKFLOW , WFGlobals.WORKFLOW , "ERR_getIdsWithStateNew1" ,  new Object[]{ "" + myClassName }, e);
+        e.printStackTrace();
+      } finally {
+        if (conn != null && !passedIn) {
+          freeConnection(conn);
+        }
+      }
+      return idList;
+    }
+
+    /**
+     * Counts the live workflows per state with a GROUP BY over the
+     * getAllIdsWithStateNew() query, then reads up to
+     * <tt>sampleSize</tt> ids of each state found.
+     */
+    private void countLiveStates(Connection conn, int sampleSize,
+                                 int[] counts, ArrayList[] samples)
+        throws SQLException {
+
+      StringBuffer sb = new StringBuffer();
+      sb.append(" SELECT ");
+      sb.append(namedSQL(conn, MonitorSQLRegistry.STATE_AND_STATUS_MAIN));
+      sb.append(" ");
+      sb.append(namedSQL(conn, MonitorSQLRegistry.GET_ALL_IDS_WITH_STATE_NEW_WHERE_UNORDERED));
+      String live = sb.toString();
+
+      String sql = "SELECT STATE, COUNT(*) FROM (" + live +
+        " ) SUBQRY GROUP BY STATE";
+      if(WFGlobals.out.debug) {
+        String msg = myClassName + ".getAllIdsWithStateCounts() query " + sql;
+        WFGlobals.out.logDebug( WFGlobals.WORKFLOW , WFGlobals.WORKFLOW , "ERR_msg5" ,  new Object[]{ "" + msg });
+      }
+
+      // the precedence codes found for each state, ACTIVE has two
+      StringBuffer[] codes = new StringBuffer[counts.length];
+      PreparedStatement pstmt = null;
+      ResultSet rs = null;
+      try {
+        pstmt = conn.prepareStatement(sql);
+        rs = pstmt.executeQuery();
+        while (rs != null && rs.next()) {
+          int code = rs.getInt(1);
+          int i = liveStateIndex(reversePrecedenceOrder(code));
+          if (i >= 0) {
+            counts[i] += rs.getInt(2);
+            if (codes[i] == null) {
+              codes[i] = new StringBuffer();
+            } else {
+              codes[i].append(",");
+            }
+            codes[i].append(code);
           }
-        } catch (SQLException sqe) {
-          String msg = myClassName +
-            ".getIdsWithStateNew() caught SQLException" +
-            " while trying to close prepared statement.";
-          WFGlobals.out.logException( WFGlobals.WORKFLOW , WFGlobals.WORKFLOW , "ERR_getIdsWithStateNew2" ,  new Object[]{ "" + myClassName }, sqe);
-          sqe.printStackTrace();
         }
+        rs.close();
+        rs = null;
+        pstmt.close();
+        pstmt = null;
 
-        if (conn != null && !passedIn) {
-             Conn.freeConnection(conn);
-             }
+        if (sampleSize <= 0) {
+          return;
+        }
+        for (int i = 0; i < codes.length; i++) {
+          if (codes[i] == null) {
+            continue;
+          }
+          pstmt = conn.prepareStatement("SELECT WORKFLOW_ID FROM (" + live +
+                                        " ) SUBQRY WHERE STATE IN (" +
+                                        codes[i] + ")");
+          pstmt.setMaxRows(sampleSize);
+          rs = pstmt.executeQuery();
+          while (rs != null && rs.next()) {
+            samples[i].add(String.valueOf(rs.getLong(1)));
+          }
+          rs.close();
+          rs = null;
+          pstmt.close();
+          pstmt = null;
+        }
+      } finally {
+        if (rs != null) {
+          rs.close();
+        }
+        if (pstmt != null) {
+          pstmt.close();
+        }
       }
-      return idList;
-
     }
 
-
     /**
      *  get all wf id in diff. live state
      *  it is called from UIGolobas.getActualWorkFlowUsage
@@ -1261,7 +2312,7 @@ public class WorkFlowMonitor {
      *
      **/
      public ArrayList getAllIdsWithStateOriginal (Connection con) {
-        ArrayList list = null;
+        LongList list = null;
         ArrayList idList=new ArrayList();
         ArrayList activeList = new ArrayList();
         ArrayList haltingList = new ArrayList();
@@ -1285,13 +2336,14 @@ public class WorkFlowMonitor {
                 conn=con;
                 }
 
-            list = getAllIds(conn, -1);
+            list = getAllIdsAsLongs(conn, -1);
             if (list == null || list.size() ==0) {
                 return idList;
             }
-            for (Iterator it = list.iterator(); it.hasNext(); ) {
-                   wfId = (String)it.next();
-                   state=getState(wfId, conn);
+            int[] states = getStates(list.toArray(), conn, fanOut);
+            for (int i = 0; i < states.length; i++) {
+                   wfId = Long.toString(list.get(i));
+                   state=states[i];
                    switch (state) {
                      case ACTIVE:
                        activeList.add(wfId);
@@ -1368,7 +2420,7 @@ public class WorkFlowMonitor {
             e.printStackTrace();
         } finally {
             if (conn != null && !passedConn )
-                  Conn.freeConnection(conn);
+                  freeConnection(conn);
             }
 
 
@@ -1386,6 +2438,13 @@ public class WorkFlowMonitor {
         return getMovableIds(state, 0, archiveFlag);
     }
 
+    /**
+     * getMovableIds() returning the ids as primitive longs.
+     */
+    public LongList getMovableIdsAsLongs(int state, int archiveFlag) {
+        return getMovableIdsAsLongs(state, 0, archiveFlag);
+    }
+
 
 
     /**
@@ -1402,8 +2461,16 @@ public class WorkFlowMonitor {
      * state. <tt>null</tt> if no matches are located.
      */
     public ArrayList getMovableIds (int state, int maxRows, int archiveFlag) {
-        ArrayList idList = new ArrayList();
-        String wfId = null;
+        LongList ids = getMovableIdsAsLongs(state, maxRows, archiveFlag);
+        return ids == null ? null : ids.toStringArrayList();
+    }
+
+    /**
+     * getMovableIds() returning the ids as primitive longs.
+     */
+    public LongList getMovableIdsAsLongs (int state, int maxRows, int archiveFlag) {
+        LongList idList = new LongList();
+        long wfId = -1;
         String msg = null;
 
         Connection conn = null;
@@ -1414,13 +2481,13 @@ public class WorkFlowMonitor {
         try {
             conn  =  Conn.getConnection("local_dbPool");
             if (state == COMPLETE) {
-                sql = JDBCService.getNamedSQL(conn,"wfm_getMovableIds_s");
+                sql = MonitorSQLRegistry.forPool("local_dbPool").sql(conn, MonitorSQLRegistry.GET_MOVABLE_IDS_S);
             } else if (state == TERMINATED) {
-                sql = JDBCService.getNamedSQL(conn,"wfm_getMovableIds_s1");
+                sql = MonitorSQLRegistry.forPool("local_dbPool").sql(conn, MonitorSQLRegistry.GET_MOVABLE_IDS_S1);
             } else if (state == INDEXED_FAILURES) {
-                sql = JDBCService.getNamedSQL(conn,"wfm_getMovableIds_s3");
+                sql = MonitorSQLRegistry.forPool("local_dbPool").sql(conn, MonitorSQLRegistry.GET_MOVABLE_IDS_S3);
             } else if (state == COMPLETE_OR_TERMINATED) {
-                sql = JDBCService.getNamedSQL(conn,"wfm_getMovableIds_s2");
+                sql = MonitorSQLRegistry.forPool("local_dbPool").sql(conn, MonitorSQLRegistry.GET_MOVABLE_IDS_S2);
             } else {
 /*                WFGlobals.out.logError(myClassName +
                                        ".getMovableIds() unsupported state="+
@@ -1458,13 +2525,15 @@ public class WorkFlowMonitor {
             if (rs != null) {
                 while (rs.next()) {
 //                    wfId = rs.getString("WORKFLOW_ID");
-                    wfId = rs.getString(1);
+                    wfId = rs.getLong(1);
 
 
 //                  System.out.println(myClassName+
 //                                     "getAllMovableIds  workflow_id = '"+
 //                                     wfId+"'");
                     idList.add(wfId);
+                    // about to leave the live tables
+                    terminalIndex.remove(wfId);
                 }
             }
         }  catch(SQLException sqe) {
@@ -1494,7 +2563,7 @@ public class WorkFlowMonitor {
             }
 
             if (conn != null) {
-                Conn.freeConnection(conn);
+                freeConnection(conn);
             }
         }
 
@@ -1511,35 +2580,59 @@ public class WorkFlowMonitor {
       }
     }
 
+    /**
+     * getAllIds(state) returning the ids as primitive longs.
+     */
+    public LongList getAllIdsAsLongs (int state) {
+      if(newStateAndStatus) {
+        return getAllIdsNewAsLongs(state);
+      }
+      else {
+        return getAllIdsOriginalAsLongs(state);
+      }
+    }
+
     public ArrayList getAllIdsNew (int state) {
+      LongList ids = getAllIdsNewAsLongs(state);
+      return ids == null ? null : ids.toStringArrayList();
+    }
 
-      ArrayList idList = null;
+    private LongList getAllIdsNewAsLongs (int state) {
+
+      LongList idList = null;
 
       if (state == SYSTEM_SHUTDOWN) {
-        idList = getSystemShutdownList();
+        idList = getSystemShutdownListAsLongs();
       }
       else {
         int [] states = new int[] { state };
-        idList = getIdsByStateAndStatus(-1, states, null);
+        idList = getIdsByStateAndStatusAsLongs(-1, states, null);
       }
 
       return idList;
     }
 
     public ArrayList getSystemShutdownList() {
+      return getSystemShutdownListAsLongs().toStringArrayList();
+    }
 
-      ArrayList idList = null;
+    /**
+     * getSystemShutdownList() returning the ids as primitive longs.
+     */
+    public LongList getSystemShutdownListAsLongs() {
+
+      LongList idList = null;
       PreparedStatement pstmt = null;
       ResultSet rs = null;
       Connection conn = null;
       long wfId = -1;
       String msg = null;
-      idList = new ArrayList();
+      idList = new LongList();
       HashMap b_map=new HashMap();
 
       try {
           conn  =  Conn.getConnection();
-          String sql  =JDBCService.getNamedSQL(conn,"wfm_getSystemShutdownList");
+          String sql  =namedSQL(conn, MonitorSQLRegistry.GET_SYSTEM_SHUTDOWN_LIST);
           pstmt=conn.prepareStatement(sql);
           pstmt.setInt(1,WorkFlowContext.WFE_SYSTEM_SHUTDOWN);
           pstmt.setInt(2,PlatformConstants.UNINDEXED_COMPUTE_FLAG);
@@ -1568,38 +2661,64 @@ public class WorkFlowMonitor {
                }
           if(rs != null)
              rs.close();
+          rs = null;
           if(pstmt != null)
              pstmt.close();
+          pstmt = null;
           if (WFGlobals.out.debug) {
 /*              WFGlobals.out.logDebug("shutdown candidate : " +b_map);*/
               WFGlobals.out.logDebug( WFGlobals.WORKFLOW , WFGlobals.WORKFLOW , "DEB_shutdown" ,  new Object[]{ "" + b_map });
               }
-          String sql2  =JDBCService.getNamedSQL(conn,"wfm_getSystemShutdownList_s1");
+          final String sql2  =namedSQL(conn, MonitorSQLRegistry.GET_SYSTEM_SHUTDOWN_LIST_S1);
           if (b_map !=null && b_map.size()>0) {
-             Set keys = b_map.keySet();
-             Iterator it=keys.iterator();
-             String b_id=null;
-             int i=0;
-             int s_id=-1;
-             pstmt=conn.prepareStatement(sql2);
-             while (it.hasNext()) {
-                 b_id =(String)it.next();
-                 ArrayList wf_info=(ArrayList) b_map.get(b_id);
-                 pstmt.setString(1,b_id);
-                 rs = pstmt.executeQuery();
-                 if (rs !=null && rs.next()) {
-                     String w_Id=((Long) wf_info.get(0)).toString();
-                     s_id=rs.getInt("STEP_ID");
-                     if (s_id == ((Integer) wf_info.get(1)).intValue()){
-                         if (!idList.contains(w_Id)) {
-                              idList.add(w_Id);
-                              }
+             // the branches are checked in parallel, the ids are added
+             // in the order of the branches as before
+             final String[] b_ids = (String[])b_map.keySet().toArray(new String[b_map.size()]);
+             final ArrayList[] wf_infos = new ArrayList[b_ids.length];
+             for (int i = 0; i < b_ids.length; i++) {
+                 wf_infos[i] = (ArrayList) b_map.get(b_ids[i]);
+             }
+             final boolean[] shutdown = new boolean[b_ids.length];
+             fanOut.run(b_ids.length, SHUTDOWN_CHUNK_SIZE, conn,
+                        new MonitorFanOut.Work() {
+                 public void run(int from, int to, Connection conn)
+                     throws SQLException {
+                     PreparedStatement pstmt = null;
+                     ResultSet rs = null;
+                     try {
+                         pstmt = stmtCache.prepare(conn, "wfm_getSystemShutdownList_s1", sql2);
+                         for (int i = from; i < to; i++) {
+                             pstmt.setString(1,b_ids[i]);
+                             rs = pstmt.executeQuery();
+                             if (rs !=null && rs.next()) {
+                                 int s_id=rs.getInt("STEP_ID");
+                                 shutdown[i] = (s_id == ((Integer) wf_infos[i].get(1)).intValue());
+                             }
+                             if (rs != null) {
+                                 rs.close();
+                                 rs = null;
+                             }
+                             pstmt.clearParameters();
                          }
-                  }
-                  pstmt.clearParameters();
-                  i++;
-                  }
-              }
+                     } catch (SQLException sqe) {
+                         stmtCache.invalidate(conn, "wfm_getSystemShutdownList_s1", pstmt);
+                         pstmt = null;
+                         throw sqe;
+                     } finally {
+                         if (rs != null) { rs.close(); }
+                         if (pstmt != null) {
+                             stmtCache.release(conn, "wfm_getSystemShutdownList_s1", pstmt);
+                         }
+                     }
+                 }
+             });
+             for (int i = 0; i < b_ids.length; i++) {
+                 if (shutdown[i]) {
+                     idList.add(((Long) wf_infos[i].get(0)).longValue());
+                 }
+             }
+             idList.dedupe();
+          }
       }  catch(SQLException sqe) {
             msg = myClassName + ".getSystemShutdownList() caught SQLException.";
 /*            WFGlobals.out.logException(msg, sqe);*/
@@ -1621,7 +2740,7 @@ public class WorkFlowMonitor {
               WFGlobals.out.logException( WFGlobals.WORKFLOW , WFGlobals.WORKFLOW , "ERR_getSystemShutdownList2" ,  new Object[]{ "" + myClassName }, sqe);
               sqe.printStackTrace();
               }
-          if (conn != null) { Conn.freeConnection(conn); }
+          if (conn != null) { freeConnection(conn); }
       }
      if (WFGlobals.out.debug) {
 /*          WFGlobals.out.logDebug("shutdownlist " +idList);*/
@@ -1638,10 +2757,13 @@ public class WorkFlowMonitor {
      * state. <tt>null</tt> if no matches are located.
      */
     public ArrayList getAllIdsOriginal (int state) {
+        return getAllIdsOriginalAsLongs(state).toStringArrayList();
+    }
 
-        ArrayList list = null;
-        ArrayList idList = new ArrayList();
-        String wfId = null;
+    private LongList getAllIdsOriginalAsLongs (int state) {
+
+        LongList list = null;
+        LongList idList = new LongList();
         String msg = null;
 
         Connection conn = null;
@@ -1650,20 +2772,19 @@ public class WorkFlowMonitor {
             conn  =  Conn.getConnection();
 
             if (state == SYSTEM_SHUTDOWN) {
-                idList = getSystemShutdownList();
+                idList = getSystemShutdownListAsLongs();
             } else {
 
-                list = getAllIds();
+                list = getAllIdsAsLongs();
                 if (list == null || list.size() ==0) {
                     return idList;
                 }
 
 
-                for (Iterator it = list.iterator(); it.hasNext(); ) {
-                    wfId = (String)it.next();
-
-                    if (getState(wfId, conn) == state) {
-                        idList.add(wfId);
+                int[] states = getStates(list.toArray(), conn, fanOut);
+                for (int i = 0; i < states.length; i++) {
+                    if (states[i] == state) {
+                        idList.add(list.get(i));
                     }
                 }
             }
@@ -1682,7 +2803,7 @@ public class WorkFlowMonitor {
             e.printStackTrace();
         } finally {
             if (conn != null) {
-                Conn.freeConnection(conn);
+                freeConnection(conn);
             }
         }
 
@@ -1700,10 +2821,28 @@ public class WorkFlowMonitor {
       }
     }
 
+    /**
+     * getAllIds(state, archiveFlag) returning the ids as primitive
+     * longs.
+     */
+    public LongList getAllIdsAsLongs (int state, int archiveFlag) {
+      if(newStateAndStatus) {
+        return getAllIdsNewAsLongs(state, archiveFlag);
+      }
+      else {
+        return getAllIdsOriginalAsLongs(state, archiveFlag);
+      }
+    }
+
     public ArrayList getAllIdsNew (int state, int archiveFlag) {
+      LongList ids = getAllIdsNewAsLongs(state, archiveFlag);
+      return ids == null ? null : ids.toStringArrayList();
+    }
+
+    private LongList getAllIdsNewAsLongs (int state, int archiveFlag) {
 
       int [] states = new int[] { state };
-      return getIdsByStateAndStatus(-1, states, null);
+      return getIdsByStateAndStatusAsLongs(-1, states, null);
 
     }
 
@@ -1716,10 +2855,13 @@ public class WorkFlowMonitor {
      * state. <tt>null</tt> if no matches are located.
      */
     public ArrayList getAllIdsOriginal (int state, int archiveFlag) {
+        return getAllIdsOriginalAsLongs(state, archiveFlag).toStringArrayList();
+    }
+
+    private LongList getAllIdsOriginalAsLongs (int state, int archiveFlag) {
 
         // ArrayList list = null;
-        ArrayList idList = new ArrayList();
-        String wfId = null;
+        LongList idList = new LongList();
         String msg = null;
 
         Connection conn = null;
@@ -1728,14 +2870,14 @@ public class WorkFlowMonitor {
 
         try {
             conn  =  Conn.getConnection();
-            ArrayList idArchiveList = null;
+            LongList idArchiveList = null;
 
-            idArchiveList = getAllIds(conn, archiveFlag);
+            idArchiveList = getAllIdsAsLongs(conn, archiveFlag);
 
-            for (Iterator it = idArchiveList.iterator(); it.hasNext(); ) {
-                wfId = (String)it.next();
-                if (getState(wfId, conn) == state) {
-                    idList.add(wfId);
+            int[] states = getStates(idArchiveList.toArray(), conn, fanOut);
+            for (int i = 0; i < states.length; i++) {
+                if (states[i] == state) {
+                    idList.add(idArchiveList.get(i));
                 }
             }
 
@@ -1761,7 +2903,7 @@ public class WorkFlowMonitor {
                 }
 
                 if (conn != null) {
-                    Conn.freeConnection(conn);
+                    freeConnection(conn);
                     conn = null;
                 }
             } catch (SQLException sqe) {
@@ -1775,7 +2917,7 @@ public class WorkFlowMonitor {
               WFGlobals.out.logDebug( WFGlobals.WORKFLOW , WFGlobals.WORKFLOW , "DEB_WFMonitor" ,  new Object[]{ "" + idList });
               }
              if (conn != null) {
-                Conn.freeConnection(conn);
+                freeConnection(conn);
                 }
 
         }
@@ -1785,7 +2927,6 @@ public class WorkFlowMonitor {
     public ArrayList getAllIds (ArrayList list, ArrayList states, ArrayList statuses) {
 
         ArrayList idList = null;
-        String wfId = null;
         String msg = null;
         Connection conn = null;
 
@@ -1793,78 +2934,81 @@ public class WorkFlowMonitor {
         {
            conn  =  Conn.getConnection();
            idList = new ArrayList();
-           if ((states != null) && (statuses != null))
+           if (states == null && statuses == null)
+           {
+              return list;
+           }
+
+           // the filters are parsed once, not per workflow
+           int[] stateFilter = toIntFilter(states);
+           int[] statusFilter = toIntFilter(statuses);
+           long[] wfIds = toWorkFlowIds(list);
+           boolean[] matched = null;
+
+           if (newStateAndStatus && stateFilter != null)
            {
-              for (Iterator it = list.iterator(); it.hasNext(); )
+              try
               {
-                wfId = (String)it.next();
-                // State determination
-                int wfState = getState(wfId, conn) ;
-
-                // loop through the list of states, if the wf state
-                // equals any of the passed in states then check the
-                // wf status to see if it //matches any of the passed
-                // in statuses, if so then add it to the list of
-                // returned ids
-                for (Iterator it2 = states.iterator(); it2.hasNext(); )
-                {
-                    int state = Integer.parseInt((String)it2.next());
-                    if (wfState  == state)
-                        {
-                            // Status determination
-                            int wfStatus = getStatus(Long.parseLong(wfId), conn) ;
-                            for (Iterator it3 = statuses.iterator(); it3.hasNext(); )
-                                {
-                                    int status = Integer.parseInt((String)it3.next());
-                                    if (wfStatus  == status)
-                                        {
-                                            idList.add(wfId);
-                                            break;
-                                        }
-                                }
-                            break;
-                        }
-                }
+                 matched = matchStateAndStatus(wfIds, stateFilter,
+                                               statusFilter, conn);
+              }
+              catch (Exception e)
+              {
+                 // e.g. a status the search SQL does not know, check
+                 // each workflow instead
+                 WFGlobals.out.logException( WFGlobals.WORKFLOW , WFGlobals.WORKFLOW , "ERR_getAllIds" ,  new Object[]{ "" + myClassName }, e);
+                 matched = null;
               }
            }
-           else if (states != null)
+
+           if (matched == null && stateFilter != null && statusFilter != null)
            {
-             for (Iterator it = list.iterator(); it.hasNext(); )
-             {
-                wfId = (String)it.next();
-                // State determination
-                int wfState = getState(wfId, conn) ;
-                for (Iterator it2 = states.iterator(); it2.hasNext(); )
-                {
-                        int state = Integer.parseInt((String)it2.next());
-                        if (wfState  == state)
-                        {
-                          idList.add(wfId);
-                          break;
-                        }
-                }
-             }
+              // state and status from one pass over the rows
+              long[] both = getStateAndStatus(wfIds, conn, fanOut);
+              matched = new boolean[wfIds.length];
+              for (int i = 0; i < both.length; i++)
+              {
+                 matched[i] = wfIds[i] > 0 &&
+                    contains(stateFilter, stateOf(both[i])) &&
+                    contains(statusFilter, statusOf(both[i]));
+              }
            }
-           else if (statuses != null)
+
+           if (matched == null)
            {
-             for (Iterator it = list.iterator(); it.hasNext(); )
-             {
-                wfId = (String)it.next();
-                // Status determination
-                int wfStatus = getStatus(Integer.parseInt(wfId), conn) ;
-                for (Iterator it3 = statuses.iterator(); it3.hasNext(); )
-                {
-                   int status = Integer.parseInt((String)it3.next());
-                   if (wfStatus  == status)
-                   {
-                        idList.add(wfId);
-                        break;
-                   }
-                }
-             }
+              matched = new boolean[wfIds.length];
+              long[] statusIds = wfIds;
+              if (stateFilter != null)
+              {
+                 // State determination for the whole list at once
+                 int[] wfStates = getStates(wfIds, conn, fanOut);
+                 statusIds = new long[wfIds.length];
+                 for (int i = 0; i < wfStates.length; i++)
+                 {
+                    matched[i] = contains(stateFilter, wfStates[i]);
+                    statusIds[i] = matched[i] ? wfIds[i] : -1;
+                 }
+              }
+              if (statusFilter != null)
+              {
+                 // Status determination, only for the workflows that
+                 // are in one of the passed in states
+                 int[] wfStatuses = getStatuses(statusIds, conn, fanOut);
+                 for (int i = 0; i < wfStatuses.length; i++)
+                 {
+                    matched[i] = statusIds[i] > 0 &&
+                       contains(statusFilter, wfStatuses[i]);
+                 }
+              }
+           }
+
+           for (int i = 0; i < matched.length; i++)
+           {
+              if (matched[i])
+              {
+                 idList.add(list.get(i));
+              }
            }
-           else
-            idList = list;
         }
         catch(SQLException sqe) {
 
@@ -1881,7 +3025,7 @@ public class WorkFlowMonitor {
             e.printStackTrace();
         } finally {
                 if (conn != null)
-                    Conn.freeConnection(conn);
+                    freeConnection(conn);
         }
 
 
@@ -1897,15 +3041,23 @@ public class WorkFlowMonitor {
      * <tt>null</tt> if no matches are located.
      */
     public ArrayList getAllIds () {
+        LongList ids = getAllIdsAsLongs();
+        return ids == null ? null : ids.toStringArrayList();
+    }
+
+    /**
+     * getAllIds() returning the ids as primitive longs.
+     */
+    public LongList getAllIdsAsLongs () {
 
         Connection conn = null;
         String msg = null;
 
-        ArrayList list = null;
+        LongList list = null;
 
         try {
             conn  =  Conn.getConnection();
-            list = this.getAllIds(conn);
+            list = this.getAllIdsAsLongs(conn);
 
         }  catch(SQLException sqe) {
 
@@ -1922,7 +3074,7 @@ public class WorkFlowMonitor {
             e.printStackTrace();
         } finally {
                 if (conn != null)
-                    Conn.freeConnection(conn);
+                    freeConnection(conn);
 
         }
 
@@ -1938,15 +3090,20 @@ public class WorkFlowMonitor {
      * <tt>null</tt> if no matches are located.
      */
     ArrayList getAllIds (Connection conn) {
+        LongList ids = getAllIdsAsLongs(conn);
+        return ids == null ? null : ids.toStringArrayList();
+    }
+
+    LongList getAllIdsAsLongs (Connection conn) {
 
         PreparedStatement pstmt = null;
         ResultSet rs = null;
 
-        ArrayList list = null;
+        LongList list = null;
 
-        String sql  = JDBCService.getNamedSQL(conn,"wfm_getAllIds");
+        String sql  = namedSQL(conn, MonitorSQLRegistry.GET_ALL_IDS);
         String msg = null;
-        String workflowId;
+        long workflowId;
 
         try {
             pstmt  = conn.prepareStatement(sql);
@@ -1954,14 +3111,14 @@ public class WorkFlowMonitor {
 
 
             if (rs != null) {
-                list = new ArrayList();
+                list = new LongList();
 
                 // if (WFGlobals.out.debug) {
 //                     WFGlobals.out.logDebug(myClassName + "getAllIds  get rs = '");
                 // }
                 while (rs.next()) {
 
-                    workflowId = rs.getString("WORKFLOW_ID");
+                    workflowId = rs.getLong("WORKFLOW_ID");
 
 
 //                  System.out.println(myClassName+
@@ -2024,36 +3181,39 @@ public class WorkFlowMonitor {
      * <tt>null</tt> if no matches are located.
      */
     ArrayList getAllIds (Connection conn, int archiveFlag, boolean asStrings) {
+        LongList ids = getAllIdsAsLongs(conn, archiveFlag);
+        if (ids == null) {
+            return null;
+        }
+        return asStrings ? ids.toStringArrayList() : ids.toLongArrayList();
+    }
+
+    /**
+     * getAllIds(conn, archiveFlag) returning the ids as primitive
+     * longs.
+     */
+    LongList getAllIdsAsLongs (Connection conn, int archiveFlag) {
 
         PreparedStatement pstmt = null;
         ResultSet rs = null;
 
-        ArrayList list = null;
+        LongList list = null;
 
-        String sql  = JDBCService.getNamedSQL(conn,"wfm_getAllIds_s1");
+        String sql  = namedSQL(conn, MonitorSQLRegistry.GET_ALL_IDS_S1);
         String msg = null;
-        String workflowId;
-        Long wfId = null;
 
 
         try {
-            pstmt  = conn.prepareStatement(sql);
+            pstmt  = MonitorQuery.prepare(conn, sql);
             pstmt.setInt(1,archiveFlag);
             rs = pstmt.executeQuery();
 
 
             if (rs != null) {
-                list = new ArrayList();
+                list = new LongList();
 
                 while (rs.next()) {
-
-                    if (asStrings) {
-                        workflowId = rs.getString("WF_ID");
-                        list.add(workflowId);
-                    } else {
-                        wfId = new Long(rs.getLong("WF_ID"));
-                        list.add(wfId);
-                    }
+                    list.add(rs.getLong("WF_ID"));
                 }
             }
         } catch(SQLException sqe) {
@@ -2074,7 +3234,7 @@ public class WorkFlowMonitor {
                     rs.close();
 
                 if (pstmt != null)
-                    pstmt.close();
+                    MonitorQuery.close(pstmt);
 
             } catch (SQLException sqe) {
                 msg = myClassName +
@@ -2105,7 +3265,7 @@ public class WorkFlowMonitor {
 
         try {
            conn  =  Conn.getConnection();
-           sql  =JDBCService.getNamedSQL(conn,"wfm_numNonIndexedBPs");
+           sql  =namedSQL(conn, MonitorSQLRegistry.NUM_NON_INDEXED_BPS);
            pstmt  = conn.prepareStatement(sql);
            pstmt.setInt(1,PlatformConstants.UNINDEXED_COMPUTE_FLAG);
            rs = pstmt.executeQuery();
@@ -2125,7 +3285,7 @@ public class WorkFlowMonitor {
                 if (pstmt != null)
                     pstmt.close();
                 if (conn != null) //created local must clean up
-                    Conn.freeConnection(conn);
+                    freeConnection(conn);
 
             } catch (SQLException sqe) {
 
@@ -2168,8 +3328,8 @@ public class WorkFlowMonitor {
             else
                 conn = c;
 
-            sql=JDBCService.getNamedSQL(conn,"wfm_getAllBranchIds");
-            pstmt = conn.prepareStatement(sql);
+            sql=namedSQL(conn, MonitorSQLRegistry.GET_ALL_BRANCH_IDS);
+            pstmt = stmtCache.prepare(conn, "wfm_getAllBranchIds", sql);
             pstmt.setLong(1, workflowId);
             rs = pstmt.executeQuery();
             if (rs != null ) {
@@ -2185,6 +3345,8 @@ public class WorkFlowMonitor {
            // list = this.getAllBranchIds(workflowId, pstmt);
 
         }  catch(SQLException sqe) {
+            stmtCache.invalidate(conn, "wfm_getAllBranchIds", pstmt);
+            pstmt = null;
 
             msg = myClassName + ".getAllBranchIds() caught SQLException.";
 /*            WFGlobals.out.logException(msg, sqe);*/
@@ -2202,11 +3364,7 @@ public class WorkFlowMonitor {
                 if (rs != null)
                     rs.close();
                 if (pstmt != null)
-                    pstmt.close();
-
-                if (conn != null && c == null) //created local must clean up
-                    Conn.freeConnection(conn);
-
+                    stmtCache.release(conn, "wfm_getAllBranchIds", pstmt);
             } catch (SQLException sqe) {
 
                 msg = myClassName + ".getAllBranchIds() caught SQLException "+
@@ -2214,6 +3372,9 @@ public class WorkFlowMonitor {
 /*                WFGlobals.out.logException(msg, sqe);*/
                 WFGlobals.out.logException( WFGlobals.WORKFLOW , WFGlobals.WORKFLOW , "ERR_getAllBranchIds2" ,  new Object[]{ "" + myClassName }, sqe);
                 sqe.printStackTrace();
+            } finally {
+                if (conn != null && c == null) //created local must clean up
+                    freeConnection(conn);
             }
         }
 
@@ -2320,8 +3481,8 @@ public class WorkFlowMonitor {
             else
                 conn = c;
 
-            sql=JDBCService.getNamedSQL(conn,"wfm_getAllContextIds");
-            pstmt = conn.prepareStatement(sql);
+            sql=namedSQL(conn, MonitorSQLRegistry.GET_ALL_CONTEXT_IDS);
+            pstmt = stmtCache.prepare(conn, "wfm_getAllContextIds", sql);
 
             pstmt.setLong(1, workflowId);
             rs = pstmt.executeQuery();
@@ -2347,6 +3508,8 @@ public class WorkFlowMonitor {
             }
 
         }  catch(SQLException sqe) {
+            stmtCache.invalidate(conn, "wfm_getAllContextIds", pstmt);
+            pstmt = null;
 
             msg = myClassName + ".getAllBranchIds() caught SQLException.";
 /*            WFGlobals.out.logException(msg, sqe);*/
@@ -2364,11 +3527,7 @@ public class WorkFlowMonitor {
                 if (rs != null)
                     rs.close();
                 if (pstmt != null)
-                    pstmt.close();
-
-                if (conn != null && c == null) //created local must clean up
-                    Conn.freeConnection(conn);
-
+                    stmtCache.release(conn, "wfm_getAllContextIds", pstmt);
             } catch (SQLException sqe) {
 
                 msg = myClassName + ".getAllBranchIds() caught SQLException "+
@@ -2376,6 +3535,9 @@ public class WorkFlowMonitor {
 /*                WFGlobals.out.logException(msg, sqe);*/
                 WFGlobals.out.logException( WFGlobals.WORKFLOW , WFGlobals.WORKFLOW , "ERR_getAllBranchIds21" ,  new Object[]{ "" + myClassName }, sqe);
                 sqe.printStackTrace();
+            } finally {
+                if (conn != null && c == null) //created local must clean up
+                    freeConnection(conn);
             }
         }
 
@@ -2410,12 +3572,12 @@ public class WorkFlowMonitor {
                 conn  =  Conn.getConnection();
             else
                 conn = c;
-            sql=JDBCService.getNamedSQL(conn, NEXTWFC);
+            sql=namedSQL(conn, MonitorSQLRegistry.GET_NEXT_WFC_STATUS);
             if (sql == null) {
                  WFGlobals.out.logError( WFGlobals.WORKFLOW , WFGlobals.WORKFLOW , "ERR_WorkFlowMonitorgetnextWFCStatus");
            }
 
-            pstmt = conn.prepareStatement(sql);
+            pstmt = stmtCache.prepare(conn, NEXTWFC, sql);
 
             pstmt.setString(1, wfcId);
             rs = pstmt.executeQuery();
@@ -2427,6 +3589,8 @@ public class WorkFlowMonitor {
                 map.put("ADV_STATUS", advancedStatus);
                 }
         }  catch(SQLException sqe) {
+            stmtCache.invalidate(conn, NEXTWFC, pstmt);
+            pstmt = null;
             msg = myClassName + ".getNextContextStatus() caught SQLException.";
             WFGlobals.out.logException( WFGlobals.WORKFLOW , WFGlobals.WORKFLOW , "ERR_getNextContextStatus" ,  new Object[]{ "" + myClassName }, sqe);
             sqe.printStackTrace();
@@ -2442,16 +3606,16 @@ public class WorkFlowMonitor {
             try {
                 if (rs != null)
                     rs.close();
-                if (pstmt != null)
-                    pstmt.close();
-                if (conn != null && c == null) //created local must clean up
-                    Conn.freeConnection(conn);
+                stmtCache.release(conn, NEXTWFC, pstmt);
             } catch (SQLException sqe) {
 
                 msg = myClassName + ".getNextContextStatus() caught SQLException "+
                     "while trying to close prepared statement.";
                 WFGlobals.out.logException( WFGlobals.WORKFLOW , WFGlobals.WORKFLOW , "ERR_getNextContextStatus2" ,  new Object[]{ "" + myClassName }, sqe);
                 sqe.printStackTrace();
+            } finally {
+                if (conn != null && c == null) //created local must clean up
+                    freeConnection(conn);
             }
         }
         return map;
@@ -2503,8 +3667,8 @@ public class WorkFlowMonitor {
                 conn = c;
             }
 
-            sql=JDBCService.getNamedSQL(conn,"wfm_getLastWFCId");
-            pstmt = conn.prepareStatement(sql);
+            sql=namedSQL(conn, MonitorSQLRegistry.GET_LAST_WFC_ID);
+            pstmt = stmtCache.prepare(conn, "wfm_getLastWFCId", sql);
             pstmt.setMaxRows(1);
 
             pstmt.setLong(1, workflowId);
@@ -2516,6 +3680,8 @@ public class WorkFlowMonitor {
                 WFCId = rs.getString("WFC_ID");
             }
         }  catch(SQLException sqe) {
+            stmtCache.invalidate(conn, "wfm_getLastWFCId", pstmt);
+            pstmt = null;
 
             msg = myClassName + ".getLastWFCId() caught SQLException.";
 /*            WFGlobals.out.logException(msg, sqe);*/
@@ -2534,11 +3700,7 @@ public class WorkFlowMonitor {
                     rs.close();
 
                 if (pstmt != null)
-                    pstmt.close();
-
-                if (c == null && conn != null )
-                    Conn.freeConnection(conn);
-
+                    stmtCache.release(conn, "wfm_getLastWFCId", pstmt);
             } catch (SQLException sqe) {
 
                 msg = myClassName +
@@ -2547,6 +3709,9 @@ public class WorkFlowMonitor {
 /*                WFGlobals.out.logException(msg, sqe);*/
                 WFGlobals.out.logException( WFGlobals.WORKFLOW , WFGlobals.WORKFLOW , "ERR_getLastWFCId2" ,  new Object[]{ "" + myClassName }, sqe);
                 sqe.printStackTrace();
+            } finally {
+                if (c == null && conn != null )
+                    freeConnection(conn);
             }
         }
 
@@ -2706,6 +3871,21 @@ public class WorkFlowMonitor {
      * otherwise
      */
     protected boolean mark (String workflowId, int state, Connection conn, WorkFlowContext wfcIn) {
+        long wfId = -1;
+        try {
+            wfId = Long.parseLong(workflowId);
+        } catch (NumberFormatException ne) {
+            // never cached, getState() finds no such workflow
+        }
+        beginStateWrite(wfId);
+        try {
+            return markWF(workflowId, state, conn, wfcIn);
+        } finally {
+            endStateWrite(wfId, conn);
+        }
+    }
+
+    private boolean markWF (String workflowId, int state, Connection conn, WorkFlowContext wfcIn) {
 
         WorkFlowContext wfc = null;
         boolean status = true;
@@ -3002,8 +4182,6 @@ public class WorkFlowMonitor {
 
    Vector tmp = new Vector();
    ArrayList branchList = null;
-   String bid;
-   int bState=UNKNOWN;
 
    boolean isConnNull = false;
    //Connection conn=null;
@@ -3014,47 +4192,74 @@ public class WorkFlowMonitor {
       }
       branchList = getAllBranchIds(workflowId, conn);
       if (branchList !=null && branchList.size()>0) {
-        for (Iterator it = branchList.iterator(); it.hasNext(); ) {
-          bid = (String)it.next();
-          bState = getBranchState(bid, conn, workflowId);
-          if (state==INTERRUPTED_AUTO || state==INTERRUPTED_MAN) {
-             if (bState == ACTIVE || bState==HALTING ||
-                 bState==WAITING_ON_IO ) {
-//               tmp.add(getLastWFCId(workflowId,bid));
-               tmp.add(getLastWFCId(workflowId,bid,conn));
-               }
-          } else if( state==TERMINATED) {//terminate
-             if ((bState == WAITING) ||
-		 (bState == WAITING_ON_IO) ||
-		 (bState==HALTED)||
-		 (bState==INTERRUPTED_AUTO)||
-		 (bState == INTERRUPTED_MAN)) {
-//		 tmp.add(getLastWFCId(workflowId,bid));
-                 tmp.add(getLastWFCId(workflowId,bid,conn));
-	     }
-          }  else {//force_terminated
-          //   if (bState != COMPLETE && bState != ACTIVE_WAITING) {
-//                  tmp.add(getLastWFCId(workflowId,bid));
-                  tmp.add(getLastWFCId(workflowId,bid,conn));
-           //       }
-             }
+        // a passed connection may hold the caller's transaction, so
+        // only a monitor owned one is spread over other connections
+        final String[] bids = (String[])branchList.toArray(new String[branchList.size()]);
+        final Object[] lastWFCs = new Object[bids.length];
+        final long wfId = workflowId;
+        final int wfState = state;
+        (isConnNull ? fanOut : sequential).run(bids.length, 1, conn,
+                                               new MonitorFanOut.Work() {
+          public void run(int from, int to, Connection conn) {
+            for (int i = from; i < to; i++) {
+              lastWFCs[i] = getLastWFC(wfId, wfState, bids[i], conn);
+            }
+          }
+        });
+        for (int i = 0; i < lastWFCs.length; i++) {
+          if (lastWFCs[i] != NO_WFC) {
+            tmp.add(lastWFCs[i]);
           }
+        }
       } else {
           tmp=null;
           }
    }  catch (SQLException se) {
 /*        WFGlobals.out.logException("WorkFlowMOnitor.getLastWFCs() caught sqlexception",se);*/
         WFGlobals.out.logException( WFGlobals.WORKFLOW , WFGlobals.WORKFLOW , "ERR_WorkFlowMOnitor_getLastWFCs",se);
+   }  catch (Exception e) {
+        WFGlobals.out.logException( WFGlobals.WORKFLOW , WFGlobals.WORKFLOW , "ERR_WorkFlowMOnitor_getLastWFCs",e);
    }  finally {
        //if (conn != null)
        if (isConnNull && conn != null) 
-          Conn.freeConnection(conn);
+          freeConnection(conn);
      }
     return tmp;
 
 
    }
 
+    //getLastWFC() result of a branch that is not to be stopped
+    private static final Object NO_WFC = new Object();
+
+    /**
+     * @return the last WFC_ID of the branch if getLastWFCs() has to
+     * stop it for <tt>state</tt>, NO_WFC otherwise.
+     */
+    private Object getLastWFC(long workflowId, int state, String bid,
+                              Connection conn) {
+          int bState = getBranchState(bid, conn, workflowId);
+          if (state==INTERRUPTED_AUTO || state==INTERRUPTED_MAN) {
+             if (bState == ACTIVE || bState==HALTING ||
+                 bState==WAITING_ON_IO ) {
+               return getLastWFCId(workflowId,bid,conn);
+               }
+          } else if( state==TERMINATED) {//terminate
+             if ((bState == WAITING) ||
+		 (bState == WAITING_ON_IO) ||
+		 (bState==HALTED)||
+		 (bState==INTERRUPTED_AUTO)||
+		 (bState == INTERRUPTED_MAN)) {
+                 return getLastWFCId(workflowId,bid,conn);
+	     }
+          }  else {//force_terminated
+          //   if (bState != COMPLETE && bState != ACTIVE_WAITING) {
+                  return getLastWFCId(workflowId,bid,conn);
+           //       }
+             }
+          return NO_WFC;
+    }
+
 
     public int getInstanceState (long wfId, Connection c) {
 
@@ -3072,8 +4277,8 @@ public class WorkFlowMonitor {
             } else {
                 conn = c;
             }
-            sql=JDBCService.getNamedSQL(conn,"wfm_getInstanceState");
-            pstmt = conn.prepareStatement(sql);
+            sql=namedSQL(conn, MonitorSQLRegistry.GET_INSTANCE_STATE);
+            pstmt = stmtCache.prepare(conn, "wfm_getInstanceState", sql);
             pstmt.setMaxRows(1);
 
             pstmt.setLong(1, wfId);
@@ -3083,6 +4288,8 @@ public class WorkFlowMonitor {
                 state = rs.getInt("STATE");
             }
         }  catch(SQLException sqe) {
+            stmtCache.invalidate(conn, "wfm_getInstanceState", pstmt);
+            pstmt = null;
             msg = myClassName + ".getInstanceState() caught SQLException.";
 /*            WFGlobals.out.logException(msg, sqe);*/
             WFGlobals.out.logException( WFGlobals.WORKFLOW , WFGlobals.WORKFLOW , "ERR_getInstanceState" ,  new Object[]{ "" + myClassName }, sqe);
@@ -3099,11 +4306,7 @@ public class WorkFlowMonitor {
                 }
 
                 if (pstmt != null) {
-                    pstmt.close();
-                }
-
-                if (conn != null && c == null) {
-                    Conn.freeConnection(conn);
+                    stmtCache.release(conn, "wfm_getInstanceState", pstmt);
                 }
             } catch (SQLException sqe) {
                 msg = myClassName +
@@ -3112,6 +4315,10 @@ public class WorkFlowMonitor {
 /*                WFGlobals.out.logException(msg, sqe);*/
                 WFGlobals.out.logException( WFGlobals.WORKFLOW , WFGlobals.WORKFLOW , "ERR_getInstanceState2" ,  new Object[]{ "" + myClassName }, sqe);
                 sqe.printStackTrace();
+            } finally {
+                if (conn != null && c == null) {
+                    freeConnection(conn);
+                }
             }
         }
 
@@ -3137,8 +4344,8 @@ public class WorkFlowMonitor {
             } else {
                 conn = c;
             }
-            sql=JDBCService.getNamedSQL(conn,"wfm_getInstanceStatus");
-            pstmt = conn.prepareStatement(sql);
+            sql=namedSQL(conn, MonitorSQLRegistry.GET_INSTANCE_STATUS);
+            pstmt = stmtCache.prepare(conn, "wfm_getInstanceStatus", sql);
             pstmt.setMaxRows(1);
 
             pstmt.setLong(1, wfId);
@@ -3148,6 +4355,8 @@ public class WorkFlowMonitor {
                 status = rs.getInt("STATUS");
             }
         }  catch(SQLException sqe) {
+            stmtCache.invalidate(conn, "wfm_getInstanceStatus", pstmt);
+            pstmt = null;
             msg = myClassName + ".getInstanceStatus() caught SQLException.";
 /*            WFGlobals.out.logException(msg, sqe);*/
             WFGlobals.out.logException( WFGlobals.WORKFLOW , WFGlobals.WORKFLOW , "ERR_getInstanceStatus" ,  new Object[]{ "" + myClassName }, sqe);
@@ -3164,11 +4373,7 @@ public class WorkFlowMonitor {
                 }
 
                 if (pstmt != null) {
-                    pstmt.close();
-                }
-
-                if (conn != null && c == null) {
-                    Conn.freeConnection(conn);
+                    stmtCache.release(conn, "wfm_getInstanceStatus", pstmt);
                 }
             } catch (SQLException sqe) {
                 msg = myClassName +
@@ -3177,6 +4382,10 @@ public class WorkFlowMonitor {
 /*                WFGlobals.out.logException(msg, sqe);*/
                 WFGlobals.out.logException( WFGlobals.WORKFLOW , WFGlobals.WORKFLOW , "ERR_getInstanceStatus2" ,  new Object[]{ "" + myClassName }, sqe);
                 sqe.printStackTrace();
+            } finally {
+                if (conn != null && c == null) {
+                    freeConnection(conn);
+                }
             }
         }
 
@@ -3220,7 +4429,7 @@ public class WorkFlowMonitor {
                     pstmt.close();
 
                 if (conn != null )
-                    Conn.freeConnection(conn);
+                    freeConnection(conn);
 
             } catch (SQLException sqe) {
                 WFGlobals.out.logException("WorkFlowMonitor].getService() closing", sqe);
@@ -3269,7 +4478,7 @@ public class WorkFlowMonitor {
                     pstmt.close();
 
                 if (conn != null )
-                    Conn.freeConnection(conn);
+                    freeConnection(conn);
 
             } catch (SQLException sqe) {
                 WFGlobals.out.logException("[WorkFlowMonitor].getService() closing", sqe);
@@ -3292,8 +4501,8 @@ public class WorkFlowMonitor {
             } else {
                 conn = c;
             }
-            sql=JDBCService.getNamedSQL(conn,"wfm_getPersistenceLevel");
-            pstmt = conn.prepareStatement(sql);
+            sql=namedSQL(conn, MonitorSQLRegistry.GET_PERSISTENCE_LEVEL);
+            pstmt = stmtCache.prepare(conn, "wfm_getPersistenceLevel", sql);
             pstmt.setLong(1, workflowId);
             rs = pstmt.executeQuery();
 
@@ -3303,6 +4512,8 @@ public class WorkFlowMonitor {
                 }
             }
         }catch(SQLException sqle){
+            stmtCache.invalidate(conn, "wfm_getPersistenceLevel", pstmt);
+            pstmt = null;
 /*            WFGlobals.out.logException("[WorkFlowMonitor].getPersistenceLevel()", sqle);*/
             WFGlobals.out.logException( WFGlobals.WORKFLOW , WFGlobals.WORKFLOW , "ERR_WorkFlowMonitor_getPersistenceLevel", sqle);
         } finally {
@@ -3311,14 +4522,13 @@ public class WorkFlowMonitor {
                     rs.close();
 
                 if (pstmt != null)
-                    pstmt.close();
-
-                if (conn != null )
-                    Conn.freeConnection(conn);
-
+                    stmtCache.release(conn, "wfm_getPersistenceLevel", pstmt);
             } catch (SQLException sqe) {
 /*                WFGlobals.out.logException("[WorkFlowMonitor].getPersistenceLevel() closing", sqe);*/
                 WFGlobals.out.logException( WFGlobals.WORKFLOW , WFGlobals.WORKFLOW , "ERR_WorkFlowMonitor_getPersistenceLevel1", sqe);
+            } finally {
+                if (conn != null )
+                    freeConnection(conn);
             }
         }
 
@@ -3338,8 +4548,8 @@ public class WorkFlowMonitor {
             } else {
                 conn = c;
             }
-            sql=JDBCService.getNamedSQL(conn,"wfm_getPersistenceLevel_s1");
-            pstmt = conn.prepareStatement(sql);
+            sql=namedSQL(conn, MonitorSQLRegistry.GET_PERSISTENCE_LEVEL_S1);
+            pstmt = stmtCache.prepare(conn, "wfm_getPersistenceLevel_s1", sql);
             pstmt.setLong(1, workflowId);
             pstmt.setString(2, branchId);
 
@@ -3351,6 +4561,8 @@ public class WorkFlowMonitor {
                 }
             }
         }catch(SQLException sqle){
+            stmtCache.invalidate(conn, "wfm_getPersistenceLevel_s1", pstmt);
+            pstmt = null;
 /*            WFGlobals.out.logException("[WorkFlowMonitor].getPersistenceLevel()", sqle);*/
             WFGlobals.out.logException( WFGlobals.WORKFLOW , WFGlobals.WORKFLOW , "ERR_WorkFlowMonitor_getPersistenceLevel2", sqle);
         } finally {
@@ -3359,14 +4571,13 @@ public class WorkFlowMonitor {
                     rs.close();
 
                 if (pstmt != null)
-                    pstmt.close();
-
-                if (conn != null )
-                    Conn.freeConnection(conn);
-
+                    stmtCache.release(conn, "wfm_getPersistenceLevel_s1", pstmt);
             } catch (SQLException sqe){
 /*                WFGlobals.out.logException("[WorkFlowMonitor].getPersistenceLevel() closing", sqe);*/
                 WFGlobals.out.logException( WFGlobals.WORKFLOW , WFGlobals.WORKFLOW , "ERR_WorkFlowMonitor_getPersistenceLevel11", sqe);
+            } finally {
+                if (conn != null )
+                    freeConnection(conn);
             }
         }
         return level;
@@ -3385,8 +4596,8 @@ public class WorkFlowMonitor {
             } else {
                 conn = c;
             }
-            sql=JDBCService.getNamedSQL(conn,"wfm_getPersistenceLevel_s2");
-            pstmt = conn.prepareStatement(sql);
+            sql=namedSQL(conn, MonitorSQLRegistry.GET_PERSISTENCE_LEVEL_S2);
+            pstmt = stmtCache.prepare(conn, "wfm_getPersistenceLevel_s2", sql);
             pstmt.setLong(1, workflowId);
             pstmt.setString(2, branchId);
             pstmt.setInt(3, stepId);
@@ -3399,6 +4610,8 @@ public class WorkFlowMonitor {
                 }
             }
         }catch(SQLException sqle){
+            stmtCache.invalidate(conn, "wfm_getPersistenceLevel_s2", pstmt);
+            pstmt = null;
 /*            WFGlobals.out.logException("[WorkFlowMonitor].getPersistenceLevel()", sqle);*/
             WFGlobals.out.logException( WFGlobals.WORKFLOW , WFGlobals.WORKFLOW , "ERR_WorkFlowMonitor_getPersistenceLevel3", sqle);
         } finally {
@@ -3407,14 +4620,13 @@ public class WorkFlowMonitor {
                     rs.close();
 
                 if (pstmt != null)
-                    pstmt.close();
-
-                if (conn != null )
-                    Conn.freeConnection(conn);
-
+                    stmtCache.release(conn, "wfm_getPersistenceLevel_s2", pstmt);
             } catch (SQLException sqe){
 /*                WFGlobals.out.logException("[WorkFlowMonitor].getPersistenceLevel() closing", sqe);*/
                 WFGlobals.out.logException( WFGlobals.WORKFLOW , WFGlobals.WORKFLOW , "ERR_WorkFlowMonitor_getPersistenceLevel12", sqe);
+            } finally {
+                if (conn != null )
+                    freeConnection(conn);
             }
         }
         return level;
@@ -3436,8 +4648,8 @@ public class WorkFlowMonitor {
 
         try {
             conn  =  Conn.getConnection();
-            sql =JDBCService.getNamedSQL(conn,"wfm_getLastValidBranchStepId");
-            pstmt = conn.prepareStatement(sql);
+            sql =namedSQL(conn, MonitorSQLRegistry.GET_LAST_VALID_BRANCH_STEP_ID);
+            pstmt = stmtCache.prepare(conn, "wfm_getLastValidBranchStepId", sql);
             pstmt.setLong(1, workflowId);
             pstmt.setString(2, branchId);
 
@@ -3456,6 +4668,8 @@ public class WorkFlowMonitor {
 
             }
         }catch(SQLException sqle){
+            stmtCache.invalidate(conn, "wfm_getLastValidBranchStepId", pstmt);
+            pstmt = null;
 /*            WFGlobals.out.logException("[WorkFlowMonitor].getLastValidBranchStepId()", sqle);*/
             WFGlobals.out.logException( WFGlobals.WORKFLOW , WFGlobals.WORKFLOW , "ERR_WorkFlowMonitor_getLastValidBranchStepId", sqle);
         } finally {
@@ -3464,14 +4678,13 @@ public class WorkFlowMonitor {
                     rs.close();
 
                 if (pstmt != null)
-                    pstmt.close();
-
-                if (conn != null )
-                    Conn.freeConnection(conn);
-
+                    stmtCache.release(conn, "wfm_getLastValidBranchStepId", pstmt);
             } catch (SQLException sqe){
 /*                WFGlobals.out.logException("[WorkFlowMonitor].getLastValidBranchStepId() closing", sqe);*/
                 WFGlobals.out.logException( WFGlobals.WORKFLOW , WFGlobals.WORKFLOW , "ERR_WorkFlowMonitor_getLastValidBranchStepId1", sqe);
+            } finally {
+                if (conn != null )
+                    freeConnection(conn);
             }
         }
 
@@ -3505,8 +4718,8 @@ public class WorkFlowMonitor {
             } else {
                 conn = c;
             }
-            sql=JDBCService.getNamedSQL(conn,"wfm_getNextAIId");
-            pstmt = conn.prepareStatement(sql);
+            sql=namedSQL(conn, MonitorSQLRegistry.GET_NEXT_AI_ID);
+            pstmt = stmtCache.prepare(conn, "wfm_getNextAIId", sql);
             pstmt.setString(1, wfcId);
 
             rs = pstmt.executeQuery();
@@ -3517,6 +4730,8 @@ public class WorkFlowMonitor {
                 }
             }
         } catch(SQLException sqle){
+            stmtCache.invalidate(conn, "wfm_getNextAIId", pstmt);
+            pstmt = null;
 /*            WFGlobals.out.logException("[WorkFlowMonitor].getNextAIId()",sqle);*/
             WFGlobals.out.logException( WFGlobals.WORKFLOW , WFGlobals.WORKFLOW , "ERR_WorkFlowMonitor_getNextAIId",sqle);
         } finally {
@@ -3526,15 +4741,15 @@ public class WorkFlowMonitor {
                 }
 
                 if (pstmt != null) {
-                    pstmt.close();
-                }
-
-                if (c == null && conn != null ) {
-                    Conn.freeConnection(conn);
+                    stmtCache.release(conn, "wfm_getNextAIId", pstmt);
                 }
             } catch (SQLException sqe){
 /*                WFGlobals.out.logException("[WorkFlowMonitor].getPersistenceLevel() closing", sqe);*/
                 WFGlobals.out.logException( WFGlobals.WORKFLOW , WFGlobals.WORKFLOW , "ERR_WorkFlowMonitor_getPersistenceLevel13", sqe);
+            } finally {
+                if (c == null && conn != null ) {
+                    freeConnection(conn);
+                }
             }
         }
         return nextAIId;
@@ -3573,7 +4788,7 @@ public class WorkFlowMonitor {
          try {
            if (rs != null) { rs.close(); }
            if (pstmt != null) { pstmt.close(); }
-           Conn.freeConnection(conn);
+           freeConnection(conn);
          } catch (Exception e) {}
       }
 
@@ -3679,7 +4894,7 @@ public class WorkFlowMonitor {
             WFGlobals.out.logException( WFGlobals.WORKFLOW , WFGlobals.WORKFLOW , "ERR_WorkFlowMonitor_getAllNextServices4",                                       sqle);
             } finally {
                 if (conn != null ) {
-                    Conn.freeConnection(conn);
+                    freeConnection(conn);
                 }
             }
         }
@@ -3844,6 +5059,15 @@ public class WorkFlowMonitor {
     }
 
     public boolean forceTerminateWF(long wf_id, Connection conn) {
+        beginStateWrite(wf_id);
+        try {
+            return terminateWF(wf_id, conn);
+        } finally {
+            endStateWrite(wf_id, conn);
+        }
+    }
+
+    private boolean terminateWF(long wf_id, Connection conn) {
           Vector WFCIds=null;
           java.util.Date endTime = null;
           boolean success = false;
@@ -3856,7 +5080,7 @@ public class WorkFlowMonitor {
                  conn=Conn.getConnection();
                  connCreated=true;
                  }
-              String sql=JDBCService.getNamedSQL(conn,"wfm_forceterminate");
+              String sql=namedSQL(conn, MonitorSQLRegistry.FORCETERMINATE);
               pstmt=conn.prepareStatement(sql);
               WFCIds=getLastWFCs(wf_id,FORCE_TERMINATED);
               if (WFCIds != null && WFCIds.size()>0) {
@@ -3872,6 +5096,8 @@ public class WorkFlowMonitor {
                            WFGlobals.out.logError( WFGlobals.WORKFLOW , WFGlobals.WORKFLOW , "ERR_forceTerminate", new Object[]{ "" + rows,"" +wf_id , "" +WFCId});
                       } else {
                            success = true;
+                           // a COMPLETE workflow becomes TERMINATED
+                           terminalIndex.remove(wf_id);
                            Event event = Event.findByWorkFlowContextId(WFCId);
                            if (event != null) {
                                if (event.remove(event)) {
@@ -3897,7 +5123,7 @@ public class WorkFlowMonitor {
                 WFGlobals.out.logException( WFGlobals.WORKFLOW , WFGlobals.WORKFLOW , "ERR_WorkFLowMonitor_forceTerminateWF",se); 
                 }
              if (conn !=null && connCreated) {
-                 Conn.freeConnection(conn);
+                 freeConnection(conn);
                  }
           }
           return success;
@@ -3916,8 +5142,8 @@ public class WorkFlowMonitor {
           isConnNull=true;
           conn=Conn.getConnection();
           }
-       sqlText=JDBCService.getNamedSQL(conn,"wfm_simpleread_wfc");
-       pstmt = conn.prepareStatement(sqlText);
+       sqlText=namedSQL(conn, MonitorSQLRegistry.SIMPLEREAD_WFC);
+       pstmt = stmtCache.prepare(conn, "wfm_simpleread_wfc", sqlText);
        pstmt.setString(1, wfc_id);
        rs = pstmt.executeQuery();
 
@@ -3959,16 +5185,18 @@ public class WorkFlowMonitor {
                 wfc.setEndTime(ts.getTime() + ((long)ts.getNanos()/1000000));
                 }
      }  catch (SQLException sqle) {
+           stmtCache.invalidate(conn, "wfm_simpleread_wfc", pstmt);
+           pstmt = null;
            WFGlobals.out.logException( WFGlobals.WORKFLOW , WFGlobals.WORKFLOW , "ERR_WorkFLowMonitor_read", sqle);
      } finally {
           try {
             if (rs != null) { rs.close(); }
-            if (pstmt != null) { pstmt.close();}
+            if (pstmt != null) { stmtCache.release(conn, "wfm_simpleread_wfc", pstmt);}
           } catch (SQLException sse) {
                WFGlobals.out.logError( WFGlobals.WORKFLOW , WFGlobals.WORKFLOW , "ERR_WorkFLowMonitor_read1");
                }
             if (isConnNull && conn != null) {
-                Conn.freeConnection(conn);
+                freeConnection(conn);
                 }
            }
       return wfc;
@@ -3980,6 +5208,26 @@ errors, and it is called by UIGlobals.java
 */
 
       public ArrayList getWFSumInfo(Connection con) throws SQLException  {
+           if (con != null) {
+               return readWFSumInfo(con);
+           }
+           // callers on the UI pool at the same time share one run
+           try {
+               return (ArrayList)inFlight.run("getWFSumInfo", new Callable() {
+                       public Object call() throws SQLException {
+                           return readWFSumInfo(null);
+                       }
+                   }, COPY_STATE_LIST);
+           } catch (SQLException sqle) {
+               throw sqle;
+           } catch (RuntimeException re) {
+               throw re;
+           } catch (Exception e) {
+               throw new SQLException(e.toString());
+           }
+      }
+
+      private ArrayList readWFSumInfo(Connection con) throws SQLException  {
 
            Connection conn =null;
            boolean passedConn=true;
@@ -4006,9 +5254,11 @@ errors, and it is called by UIGlobals.java
               } else {
                   conn=con;
                   }
+            MonitorSQLRegistry namedSql =
+                MonitorSQLRegistry.forPool("dbUIPool");
 
-            sql=JDBCService.getNamedSQL(conn,"wfm_getWFSumInfo_s");
-            pstmt = conn.prepareStatement(sql);
+            sql=namedSql.sql(conn, MonitorSQLRegistry.GET_WF_SUM_INFO_S);
+            pstmt = MonitorQuery.prepare(conn, sql);
             pstmt.setInt(1,WorkFlowContext.ERROR);
             pstmt.setInt(2,WorkFlowContext.WFE_SYSTEM_ERROR);
             pstmt.setInt(3,WorkFlowContext.SERVICE_CONFIG_ERROR);
@@ -4026,13 +5276,13 @@ errors, and it is called by UIGlobals.java
              }
              if ( pstmt != null )
              {
-                pstmt.close();
+                MonitorQuery.close(pstmt);
                 pstmt = null;
              }
 
 
-            sql = JDBCService.getNamedSQL(conn,"wfm_getWFSumInfo_s1");
-            pstmt = conn.prepareStatement(sql);
+            sql = namedSql.sql(conn, MonitorSQLRegistry.GET_WF_SUM_INFO_S1);
+            pstmt = MonitorQuery.prepare(conn, sql);
             pstmt.clearParameters();
             pstmt.setInt(1,WorkFlowContext.WF_INTERRUPT_MAN);
             pstmt.setInt(2,WorkFlowContext.WF_INTERRUPT_AUTO);
@@ -4050,12 +5300,12 @@ errors, and it is called by UIGlobals.java
              }
              if ( pstmt != null )
              {
-                pstmt.close();
+                MonitorQuery.close(pstmt);
                 pstmt = null;
              }
 
-            sql = JDBCService.getNamedSQL(conn,"wfm_getWFSumInfo_s2");
-            pstmt = conn.prepareStatement(sql);
+            sql = namedSql.sql(conn, MonitorSQLRegistry.GET_WF_SUM_INFO_S2);
+            pstmt = MonitorQuery.prepare(conn, sql);
             pstmt.clearParameters();
             pstmt.setInt(1,WorkFlowContext.WAITING);
             pstmt.setInt(2,PlatformConstants.UNINDEXED_COMPUTE_FLAG);
@@ -4072,13 +5322,13 @@ errors, and it is called by UIGlobals.java
              }
              if ( pstmt != null )
              {
-                pstmt.close();
+                MonitorQuery.close(pstmt);
                 pstmt = null;
              }
 
 
 	     //sql = JDBCService.getNamedSQL(conn,"wfm_getWFSumInfo_s2");
-            pstmt = conn.prepareStatement(sql);
+            pstmt = MonitorQuery.prepare(conn, sql);
             pstmt.clearParameters();
             pstmt.setInt(1,WorkFlowContext.WAITING_ON_IO);
             pstmt.setInt(2,PlatformConstants.UNINDEXED_COMPUTE_FLAG);
@@ -4095,13 +5345,13 @@ errors, and it is called by UIGlobals.java
              }
              if ( pstmt != null )
              {
-                pstmt.close();
+                MonitorQuery.close(pstmt);
                 pstmt = null;
              }
 
 
-            sql  = JDBCService.getNamedSQL(conn,"wfm_getWFSumInfo_s3");
-            pstmt = conn.prepareStatement(sql);
+            sql  = namedSql.sql(conn, MonitorSQLRegistry.GET_WF_SUM_INFO_S3);
+            pstmt = MonitorQuery.prepare(conn, sql);
             pstmt.clearParameters();
             pstmt.setInt(1,PlatformConstants.UNINDEXED_COMPUTE_FLAG);
             rs = pstmt.executeQuery();
@@ -4117,12 +5367,12 @@ errors, and it is called by UIGlobals.java
              }
              if ( pstmt != null )
              {
-                pstmt.close();
+                MonitorQuery.close(pstmt);
                 pstmt = null;
              }
 
-            sql  = JDBCService.getNamedSQL(conn,"wfm_getWFSumInfo_s4");
-            pstmt = conn.prepareStatement(sql);
+            sql  = namedSql.sql(conn, MonitorSQLRegistry.GET_WF_SUM_INFO_S4);
+            pstmt = MonitorQuery.prepare(conn, sql);
             pstmt.clearParameters();
             pstmt.setInt(1,WorkFlowContext.SUCCESS);
             pstmt.setInt(2,ActivityInfo.DONE);
@@ -4139,7 +5389,7 @@ errors, and it is called by UIGlobals.java
              }
              if ( pstmt != null )
              {
-                pstmt.close();
+                MonitorQuery.close(pstmt);
                 pstmt = null;
              }
 
@@ -4205,10 +5455,10 @@ errors, and it is called by UIGlobals.java
                        rs.close();
                        }
                   if (pstmt != null) {
-                       pstmt.close();
+                       MonitorQuery.close(pstmt);
                        }
                   if (!passedConn) {
-                       Conn.freeConnection(conn,"dbUIPool");
+                       freeConnection(conn,"dbUIPool");
                        }
                   }
          }
@@ -4285,10 +5535,135 @@ errors, and it is called by UIGlobals.java
                 WFGlobals.out.logException( WFGlobals.WORKFLOW , WFGlobals.WORKFLOW , "ERR_WorkflowMonitor_stopWF", e);
             }
         }
+        // the workflow now reads as HALTING instead of ACTIVE
+        if (successFlag) {
+            try {
+                inactiveWFs.markInactive(Long.parseLong(wfId));
+            } catch (NumberFormatException ne) {
+                // not a workflow id, nothing was stopped
+            }
+        }
+        invalidateState(wfId);
         return successFlag;
     }
 
+    /**
+     * Drops the cached state and status of a workflow that is about
+     * to change or has changed.
+     */
+    static void invalidateState(long workflowId) {
+        stateCache.remove(workflowId);
+        statusCache.remove(workflowId);
+    }
+
+    /**
+     * Gives a connection the monitor took back to the pool, after
+     * closing the statements it cached on it.
+     */
+    static void freeConnection(Connection conn) {
+        stmtCache.closeConnection(conn);
+        Conn.freeConnection(conn);
+    }
+
+    static void freeConnection(Connection conn, String pool) {
+        stmtCache.closeConnection(conn);
+        Conn.freeConnection(conn, pool);
+    }
+
+    /**
+     * Starts a change of the workflow by the monitor: drops its cached
+     * state and status and keeps them from being cached again until
+     * endStateWrite().
+     */
+    private static void beginStateWrite(long workflowId) {
+        stateCache.beginWrite(workflowId);
+        statusCache.beginWrite(workflowId);
+    }
+
+    /**
+     * Ends a change started with beginStateWrite().  A change made on
+     * a caller's connection outside auto-commit is only committed by
+     * the caller, so the caches keep off the workflow for another time
+     * to live.
+     */
+    private static void endStateWrite(long workflowId, Connection conn) {
+        boolean committed = true;
+        if (conn != null) {
+            try {
+                committed = conn.getAutoCommit();
+            } catch (SQLException sqe) {
+                committed = false;
+            }
+        }
+        stateCache.endWrite(workflowId, committed);
+        statusCache.endWrite(workflowId, committed);
+    }
+
+    private static void invalidateState(String workflowId) {
+        try {
+            invalidateState(Long.parseLong(workflowId));
+        } catch (NumberFormatException ne) {
+            // never cached
+        }
+    }
+
+    /**
+     * @return the hit, miss and eviction counts of the prepared
+     * statement cache, for diagnostics.
+     */
+    public static String getStatementCacheStatistics() {
+        return stmtCache.toString();
+    }
+
+    /**
+     * @return how many summary and search queries were run and how many
+     * callers shared a run instead, for diagnostics.
+     */
+    public static String getSingleFlightStatistics() {
+        return inFlight.toString();
+    }
+
+    /**
+     * The live workflow counts shared by all admin UI sessions.  They
+     * are taken by a background thread every stateSnapshotInterval
+     * (workflows) ms while someone reads them; check getAge() for how
+     * old they are.  Never waits for the counting.
+     *
+     * @return the latest snapshot, null until the first one is taken.
+     */
+    public static WorkFlowStateSnapshot getStateSnapshot() {
+        return snapshots.get();
+    }
+
+    /**
+     * @return the runner of the asynchronous monitor queries, for pages
+     * that start several queries at once.
+     */
+    public static WorkFlowMonitorAsync getAsync() {
+        return async;
+    }
+
+    /**
+     * Resolves the named SQL of the monitor again, and closes the
+     * statements prepared from the old SQL.  For use after the jdbc SQL
+     * properties have been changed.
+     */
+    public static void reloadNamedSQL() {
+        MonitorSQLRegistry.reload();
+        stmtCache.clear();
+    }
+
+    private static String namedSQL(MonitorSQLRegistry.Key key) {
+        return MonitorSQLRegistry.getDefault().sql(key);
+    }
 
+    /**
+     * @return the named SQL for the pool the connection comes from,
+     * which is not always dbPool.
+     */
+    private static String namedSQL(Connection conn, MonitorSQLRegistry.Key key) {
+        return MonitorSQLRegistry.forConnection(conn, key);
+    }
 
     private String signOpsCmd(String command) {
 
@@ -4418,35 +5793,77 @@ errors, and it is called by UIGlobals.java
    /**
      *  For the list of given BPs this method populates the status flag
      *
+     *  The ids are read in chunks of getStatusChunkSize (workflows), by
+     *  default as many as the database takes in one IN list.  Each
+     *  chunk is bound to an IN list padded to a bucket size, so the
+     *  statements are shared by all calls and kept open per connection.
+     *
+     *  The chunks are read on up to monitorParallelism (workflows)
+     *  connections at once.  <tt>conn</tt> is only used by the calling
+     *  thread, the other chunks are read on pooled connections.
+     *
      *  @param list List of workflow ids
      *  @param conn Database connecttion
      *
      *  @return HashMap Pair of workflow_id and status values
      */
     public HashMap getStatus(ArrayList list, Connection conn) {
-        //long st = System.currentTimeMillis();
-        int size = list.size();
-        int ctr = 1;
-        StringBuffer wfIdsList = new StringBuffer();
-        Iterator itr = list.iterator();
-
-        HashMap statusMap = new HashMap();
-
-        while(itr.hasNext()) {
-            if (ctr % 250 == 0) {
-                //System.out.println("Counter: "+ctr);
-                populateStatus(wfIdsList, conn, statusMap);
-                wfIdsList = new StringBuffer();
-            } else {
-                wfIdsList.append((String)itr.next());
-                wfIdsList.append(",");
-            }
+        return readStatuses(list, conn).toHashMap();
+    }
+
+    /**
+     *  getStatus(ArrayList, Connection) returning the statuses in a
+     *  LongIntMap, without a Long and an Integer per workflow.
+     */
+    public LongIntMap getStatusMap(ArrayList list, Connection conn) {
+        return readStatuses(list, conn);
+    }
 
-            ctr++;
+    /**
+     *  getStatus(ArrayList, Connection) for ids as primitive longs.
+     *
+     *  @return the status of each id, in the order of <tt>ids</tt>,
+     *  UNKNOWN for an id that was not found.
+     */
+    public int[] getStatus(long[] ids, Connection conn) {
+        LongList idList = new LongList(ids.length);
+        for (int i = 0; i < ids.length; i++) {
+            idList.add(ids[i]);
         }
+        LongIntMap found = readStatuses(idList.asLongList(), conn);
+        int[] statuses = new int[ids.length];
+        for (int i = 0; i < ids.length; i++) {
+            statuses[i] = found.get(ids[i], UNKNOWN);
+        }
+        return statuses;
+    }
+
+    private LongIntMap readStatuses(final List list, Connection conn) {
+        //long st = System.currentTimeMillis();
+        final int size = list.size();
+        final int chunk = (statusChunkSize > 0)
+            ? Math.min(statusChunkSize, inLists.getMaxInList())
+            : inLists.getMaxInList();
 
-        if (wfIdsList.length() > 0) {
-            populateStatus(wfIdsList, conn, statusMap);
+        final LongIntMap statusMap = new LongIntMap(size);
+
+        try {
+            fanOut.run(size, chunk, conn, new MonitorFanOut.Work() {
+                    public void run(int from, int to, Connection c)
+                        throws SQLException {
+                        // a cancelled query stops the run, not each chunk
+                        MonitorQuery.check();
+                        LongIntMap found = new LongIntMap(to - from);
+                        populateStatus(list.subList(from, to), c, found);
+                        synchronized (statusMap) {
+                            statusMap.putAll(found);
+                        }
+                    }
+                });
+        } catch (Exception e) {
+            // the chunks log their own SQL errors, the statuses read so
+            // far are returned as before
+            LogService.out.logException( WFGlobals.WORKFLOW , WFGlobals.WORKFLOW , "ERR_WorkFlowMonitor_populateStatus", e);
         }
 
         //long et = System.currentTimeMillis();
@@ -4456,47 +5873,54 @@ errors, and it is called by UIGlobals.java
     }
 
     /**
-     *  Process the comma separted list of BPs and get their statuses
+     *  Process a chunk of the BPs and get their statuses
      *
-     *  @param wfIdsList Comma separated BP id list
+     *  @param wfIds BP ids, as Strings or Longs
      *  @param conn Database connecttion
      *  @param statusMap WorkFlowId->Status Map
      */
-    private void populateStatus(StringBuffer wfIdsList, Connection conn,
-                                HashMap statusMap) {
-        Statement stmt   = null;
+    private void populateStatus(List wfIds, Connection conn,
+                                LongIntMap statusMap) {
+        PreparedStatement stmt   = null;
         ResultSet rs = null;
+        String stmtKey = null;
 
         try {
-            stmt = conn.createStatement();
-            String middleSql = wfIdsList.toString();
-            int len = middleSql.length();
-            middleSql = middleSql.substring(0, len-1);
-            if (middleSql.length() == 0) {
-                return;
-            }
-
-            String sql = GET_STATUS_SQL_START+middleSql+GET_STATUS_SQL_END;
+            StringBuffer sb = new StringBuffer(GET_STATUS_SQL_SELECT);
+            ArrayList binds = new ArrayList();
+            inLists.append(sb, "WORKFLOW_ID", wfIds, binds, 0);
+            String sql = sb.toString();
             //System.out.println("Processing Status SQL: "+sql);
 
-            rs = stmt.executeQuery(sql);
-            long prevWfId = -1;
+            if (binds.isEmpty()) {
+                // ids that are not numbers, written as literals
+                stmt = MonitorQuery.prepare(conn, sql);
+            } else {
+                // one statement per bucket size
+                stmtKey = "GET_STATUS_" + binds.size();
+                stmt = stmtCache.prepare(conn, stmtKey, sql);
+                for (int i = 0; i < binds.size(); i++) {
+                    stmt.setLong(i + 1, ((Long)binds.get(i)).longValue());
+                }
+            }
+
+            rs = stmt.executeQuery();
             long currentWfId;
             int status;
 
+            // the highest status code of its rows, as the CASE ordered
+            // by STATUS DESC used to give
             while (rs.next()) {
                 currentWfId = rs.getLong(1);
-                status = rs.getInt(2);
+                status = StatusSeverity.statusOf(rs.getInt(2));
 
-                //System.out.println("Current WFId: "+currentWfId+" Prev WFId: "+prevWfId);
-                if (currentWfId != prevWfId) {
-                    //System.out.println("WFId: "+currentWfId+" Status: "+status);
-                    statusMap.put(new Long(currentWfId), new Integer(status));
+                if (status > statusMap.get(currentWfId, Integer.MIN_VALUE)) {
+                    statusMap.put(currentWfId, status);
                 }
-
-                prevWfId = currentWfId;
             }
         } catch (SQLException sqle) {
+            stmtCache.invalidate(conn, stmtKey, stmt);
+            stmt = null;
 /*            LogService.out.logException("WorkFlowMonitor.populateStatus()", sqle);*/
             LogService.out.logException( WFGlobals.WORKFLOW , WFGlobals.WORKFLOW , "ERR_WorkFlowMonitor_populateStatus", sqle);
         } finally {
@@ -4512,7 +5936,11 @@ errors, and it is called by UIGlobals.java
 
             if (stmt != null) {
                 try {
-                    stmt.close();
+                    if (stmtKey != null) {
+                        stmtCache.release(conn, stmtKey, stmt);
+                    } else {
+                        MonitorQuery.close(stmt);
+                    }
                 } catch (SQLException sqle) {
 /*                    LogService.out.logException("WorkFlowMonitor.populateStatus()" +
                         "-> Error Closing Statement", sqle);*/
@@ -4529,10 +5957,90 @@ errors, and it is called by UIGlobals.java
         Timestamp deadlineStartTime, Timestamp deadlineEndTime,
         int maxKeys, WorkFlowManager wfmgr )
 
+      throws Exception {
+
+        return getStateAndStatusSql(states, statuses, workflowDefIds,
+                                    workflowIds, startTime, endTime,
+                                    deadlineStartTime, deadlineEndTime,
+                                    maxKeys, wfmgr, false, false, 0);
+      }
+
+    /**
+     * getStateAndStatusSql() for one page of a keyset paged search.
+     * The query only returns workflows below <tt>lastWorkflowId</tt>
+     * and is ordered by WORKFLOW_ID descending, so each page is a range
+     * of the WORKFLOW_ID index instead of a re-run of the whole search.
+     * The workflowDefIds and workflowIds filters are written with bind
+     * parameters, see InListBuckets.
+     *
+     * The bound and the order are written on the SUBQRY or WFC_VIEW
+     * derived table of the query, qualified by its alias, in place of
+     * the getStateAndStatus_ORDER_BY* SQL of the database.  The
+     * Informix form of the query has no derived table and cannot be
+     * paged this way: this method throws an SQLException for it, and
+     * getIdsByStateAndStatus() pages its results in memory instead.
+     *
+     * @param lastWorkflowId - the last WORKFLOW_ID of the previous
+     * page, FIRST_PAGE for the first one.
+     * @return the SQL in [0] and an <tt>ArrayList</tt> of the values
+     * to bind to its parameters, in order, in [1].  See
+     * bindStateAndStatusSql().
+     */
+    public static Object[] getStateAndStatusSql(int[] states, int[] statuses,
+        ArrayList workflowDefIds, ArrayList workflowIds,
+        Timestamp startTime, Timestamp endTime,
+        Timestamp deadlineStartTime, Timestamp deadlineEndTime,
+        int maxKeys, WorkFlowManager wfmgr, long lastWorkflowId )
+
+      throws Exception {
+
+        return getStateAndStatusSql(states, statuses, workflowDefIds,
+                                    workflowIds, startTime, endTime,
+                                    deadlineStartTime, deadlineEndTime,
+                                    maxKeys, wfmgr, true, true,
+                                    lastWorkflowId);
+      }
+
+    /**
+     * Sets the bind values of a getStateAndStatusSql() result on a
+     * statement prepared from its SQL.  Does nothing for the SQL of
+     * the unpaged overload, which has no parameters.
+     */
+    public static void bindStateAndStatusSql(PreparedStatement ps,
+                                             Object[] sqlAndBinds)
+      throws SQLException {
+
+        ArrayList binds = (ArrayList)sqlAndBinds[1];
+        if (binds == null) {
+          return;
+        }
+        for (int i = 0; i < binds.size(); i++) {
+          Object value = binds.get(i);
+          if (value instanceof Long) {
+            ps.setLong(i + 1, ((Long)value).longValue());
+          } else {
+            ps.setObject(i + 1, value);
+          }
+        }
+      }
+
+    private static Object[] getStateAndStatusSql(int[] states, int[] statuses,
+
+        ArrayList workflowDefIds, ArrayList workflowIds,
+        Timestamp startTime, Timestamp endTime,
+        Timestamp deadlineStartTime, Timestamp deadlineEndTime,
+        int maxKeys, WorkFlowManager wfmgr,
+        boolean useBinds, boolean keyset, long lastWorkflowId )
+
       throws Exception {
 
         //System.out.println("States: "+states+" Statuses: "+statuses+" workflowDefIds: "+workflowDefIds+" workflowIds: "+workflowIds+" startTime: "+startTime+" endTime: "+endTime+" maxKeys: "+maxKeys);
 
+        if (keyset && useInformixSyntax) {
+          // the Informix form has no derived table to page over
+          throw new SQLException("Keyset paging is not supported with the Informix syntax");
+        }
+
         boolean active = false;
         boolean active_waiting = false;
         boolean complete = false;
@@ -4624,7 +6132,7 @@ errors, and it is called by UIGlobals.java
         boolean badState = false;
         boolean badStatus = false;
         boolean onlyComplete = false;
-        String hint = null;
+        MonitorSQLRegistry.Key hint = null;
 
         if ( workflowDefIds != null && workflowDefIds.size() > 0) {
           hasWorkflowDefIds = true;
@@ -4658,6 +6166,7 @@ errors, and it is called by UIGlobals.java
 
         StringBuffer sb = new StringBuffer();
         boolean otherFilters = false;
+        ArrayList binds = useBinds ? new ArrayList() : null;
 
         sb.append(" SELECT ");
 
@@ -4666,60 +6175,60 @@ errors, and it is called by UIGlobals.java
           if(badStatus) {
 
             if(hasWorkflowDefIds) {
-              hint = "getStateAndStatus_HINT_ACTIVE_BADSTATUS_WFD";
+              hint = MonitorSQLRegistry.STATE_AND_STATUS_HINT_ACTIVE_BADSTATUS_WFD;
             } else {
-              hint = "getStateAndStatus_HINT_ACTIVE_BADSTATUS";
+              hint = MonitorSQLRegistry.STATE_AND_STATUS_HINT_ACTIVE_BADSTATUS;
             }
             sqlHint(sb, maxKeys, hint);
             if(orderByWorkFlowId) {
-              sb.append(JDBCService.getNamedSQL(dbPool, "getStateAndStatus_DEFAULT_BEGIN"));
+              sb.append(namedSQL(MonitorSQLRegistry.STATE_AND_STATUS_DEFAULT_BEGIN));
             } else {
-              sb.append(JDBCService.getNamedSQL(dbPool, "getStateAndStatus_DERIVED_BEGIN"));
+              sb.append(namedSQL(MonitorSQLRegistry.STATE_AND_STATUS_DERIVED_BEGIN));
             }
             sb.append(" ");
           sqlHint(sb, maxKeys, hint);
             sb.append(" ");
-            sb.append(JDBCService.getNamedSQL(dbPool, "getStateAndStatus_MAIN"));
+            sb.append(namedSQL(MonitorSQLRegistry.STATE_AND_STATUS_MAIN));
             sb.append(" ");
-            sb.append(JDBCService.getNamedSQL(dbPool, "getStateAndStatus_BADSTATUS_MIDDLE"));
+            sb.append(namedSQL(MonitorSQLRegistry.STATE_AND_STATUS_BADSTATUS_MIDDLE));
             sb.append(" ");
           }
           else if (badState) {
           if(hasWorkflowDefIds) {
-            hint = "getStateAndStatus_HINT_ACTIVE_WFD";
+            hint = MonitorSQLRegistry.STATE_AND_STATUS_HINT_ACTIVE_WFD;
           } else {
-            hint = "getStateAndStatus_HINT_ACTIVE";
+            hint = MonitorSQLRegistry.STATE_AND_STATUS_HINT_ACTIVE;
           }
           sqlHint(sb, maxKeys, hint);
             sb.append(" ");
             if(orderByWorkFlowId) {
-              sb.append(JDBCService.getNamedSQL(dbPool, "getStateAndStatus_DEFAULT_BEGIN"));
+              sb.append(namedSQL(MonitorSQLRegistry.STATE_AND_STATUS_DEFAULT_BEGIN));
             } else {
-              sb.append(JDBCService.getNamedSQL(dbPool, "getStateAndStatus_DERIVED_BEGIN"));
+              sb.append(namedSQL(MonitorSQLRegistry.STATE_AND_STATUS_DERIVED_BEGIN));
             }
             sb.append(" ");
           sqlHint(sb, maxKeys, hint);
             sb.append(" ");
-            sb.append(JDBCService.getNamedSQL(dbPool, "getStateAndStatus_MAIN"));
+            sb.append(namedSQL(MonitorSQLRegistry.STATE_AND_STATUS_MAIN));
             sb.append(" ");
-            sb.append(JDBCService.getNamedSQL(dbPool, "getStateAndStatus_DEFAULT_MIDDLE"));
+            sb.append(namedSQL(MonitorSQLRegistry.STATE_AND_STATUS_DEFAULT_MIDDLE));
             sb.append(" ");
           }
           else {
           if(hasWorkflowDefIds) {
-            hint = "getStateAndStatus_HINT_ACTIVE_WFD";
+            hint = MonitorSQLRegistry.STATE_AND_STATUS_HINT_ACTIVE_WFD;
           } else {
-            hint = "getStateAndStatus_HINT_ACTIVE";
+            hint = MonitorSQLRegistry.STATE_AND_STATUS_HINT_ACTIVE;
           }
           sqlHint(sb, maxKeys, hint);
             sb.append(" ");
-            sb.append(JDBCService.getNamedSQL(dbPool, "getStateAndStatus_DEFAULT_BEGIN"));
+            sb.append(namedSQL(MonitorSQLRegistry.STATE_AND_STATUS_DEFAULT_BEGIN));
             sb.append(" ");
             sqlHint(sb, maxKeys, hint);
             sb.append(" ");
-            sb.append(JDBCService.getNamedSQL(dbPool, "getStateAndStatus_MAIN"));
+            sb.append(namedSQL(MonitorSQLRegistry.STATE_AND_STATUS_MAIN));
             sb.append(" ");
-            sb.append(JDBCService.getNamedSQL(dbPool, "getStateAndStatus_DEFAULT_MIDDLE"));
+            sb.append(namedSQL(MonitorSQLRegistry.STATE_AND_STATUS_DEFAULT_MIDDLE));
             sb.append(" ");
           }
           otherFilters = true;
@@ -4728,19 +6237,19 @@ errors, and it is called by UIGlobals.java
         else if( complete && badState && badStatus ) {
 
           if(hasWorkflowDefIds) {
-            hint = "getStateAndStatus_HINT_COMPLETE_BADSTATE_BADSTATUS_WFD";
+            hint = MonitorSQLRegistry.STATE_AND_STATUS_HINT_COMPLETE_BADSTATE_BADSTATUS_WFD;
           } else {
-            hint = "getStateAndStatus_HINT_COMPLETE_BADSTATE_BADSTATUS";
+            hint = MonitorSQLRegistry.STATE_AND_STATUS_HINT_COMPLETE_BADSTATE_BADSTATUS;
           }
           sqlHint(sb, maxKeys, hint);
             sb.append(" ");
-            sb.append(JDBCService.getNamedSQL(dbPool, "getStateAndStatus_DEFAULT_BEGIN"));
+            sb.append(namedSQL(MonitorSQLRegistry.STATE_AND_STATUS_DEFAULT_BEGIN));
             sb.append(" ");
           sqlHint(sb, maxKeys, hint);
             sb.append(" ");
-          sb.append(JDBCService.getNamedSQL(dbPool, "getStateAndStatus_MAIN"));
+          sb.append(namedSQL(MonitorSQLRegistry.STATE_AND_STATUS_MAIN));
             sb.append(" ");
-          sb.append(JDBCService.getNamedSQL(dbPool, "getStateAndStatus_COMPLETE_BADSTATE_BADSTATUS_MIDDLE"));
+          sb.append(namedSQL(MonitorSQLRegistry.STATE_AND_STATUS_COMPLETE_BADSTATE_BADSTATUS_MIDDLE));
             sb.append(" ");
           setBadStateInClause(sb, waiting, waitingOnIO, interrupted_auto,
 			      interrupted_man, halted, terminated);
@@ -4751,11 +6260,11 @@ errors, and it is called by UIGlobals.java
           // query -- for sr 1344183
           if (noTime)
           {
-            sb.append(JDBCService.getNamedSQL(dbPool, "getStateAndStatus_COMPLETE_BADSTATE_BADSTATUS_MIDDLE_2_NOTIME"));
+            sb.append(namedSQL(MonitorSQLRegistry.STATE_AND_STATUS_COMPLETE_BADSTATE_BADSTATUS_MIDDLE_2_NOTIME));
           }
           else
           {
-            sb.append(JDBCService.getNamedSQL(dbPool, "getStateAndStatus_COMPLETE_BADSTATE_BADSTATUS_MIDDLE_2"));
+            sb.append(namedSQL(MonitorSQLRegistry.STATE_AND_STATUS_COMPLETE_BADSTATE_BADSTATUS_MIDDLE_2));
             otherFilters = true;
           }
 
@@ -4764,17 +6273,17 @@ errors, and it is called by UIGlobals.java
         else if( complete && !badState && badStatus ) {
 
           if(hasWorkflowDefIds) {
-            hint = "getStateAndStatus_HINT_COMPLETE_BADSTATUS_WFD";
+            hint = MonitorSQLRegistry.STATE_AND_STATUS_HINT_COMPLETE_BADSTATUS_WFD;
           } else {
-            hint = "getStateAndStatus_HINT_COMPLETE_BADSTATUS";
+            hint = MonitorSQLRegistry.STATE_AND_STATUS_HINT_COMPLETE_BADSTATUS;
           }
           sqlHint(sb, maxKeys, hint);
             sb.append(" ");
-            sb.append(JDBCService.getNamedSQL(dbPool, "getStateAndStatus_DEFAULT_BEGIN"));
+            sb.append(namedSQL(MonitorSQLRegistry.STATE_AND_STATUS_DEFAULT_BEGIN));
             sb.append(" ");
           sqlHint(sb, maxKeys, hint);
             sb.append(" ");
-          sb.append(JDBCService.getNamedSQL(dbPool, "getStateAndStatus_MAIN"));
+          sb.append(namedSQL(MonitorSQLRegistry.STATE_AND_STATUS_MAIN));
             sb.append(" ");
 
           //
@@ -4783,11 +6292,11 @@ errors, and it is called by UIGlobals.java
           //
           if (noTime)
           {
-            sb.append(JDBCService.getNamedSQL(dbPool, "getStateAndStatus_COMPLETE_BADSTATUS_MIDDLE_NOTIME"));
+            sb.append(namedSQL(MonitorSQLRegistry.STATE_AND_STATUS_COMPLETE_BADSTATUS_MIDDLE_NOTIME));
           }
           else
           {
-            sb.append(JDBCService.getNamedSQL(dbPool, "getStateAndStatus_COMPLETE_BADSTATUS_MIDDLE"));
+            sb.append(namedSQL(MonitorSQLRegistry.STATE_AND_STATUS_COMPLETE_BADSTATUS_MIDDLE));
             otherFilters = true;
           }
           sb.append(" ");
@@ -4795,25 +6304,25 @@ errors, and it is called by UIGlobals.java
         else if( complete && badState && !badStatus ) {
 
           if(hasWorkflowDefIds) {
-            hint = "getStateAndStatus_HINT_COMPLETE_BADSTATUS_WFD";
+            hint = MonitorSQLRegistry.STATE_AND_STATUS_HINT_COMPLETE_BADSTATUS_WFD;
           } else {
-            hint = "getStateAndStatus_HINT_COMPLETE_BADSTATE";
+            hint = MonitorSQLRegistry.STATE_AND_STATUS_HINT_COMPLETE_BADSTATE;
           }
           sqlHint(sb, maxKeys, hint);
             sb.append(" ");
-          sb.append(JDBCService.getNamedSQL(dbPool, "getStateAndStatus_DEFAULT_BEGIN"));
+          sb.append(namedSQL(MonitorSQLRegistry.STATE_AND_STATUS_DEFAULT_BEGIN));
             sb.append(" ");
           sqlHint(sb, maxKeys, hint);
             sb.append(" ");
-          sb.append(JDBCService.getNamedSQL(dbPool, "getStateAndStatus_MAIN"));
+          sb.append(namedSQL(MonitorSQLRegistry.STATE_AND_STATUS_MAIN));
             sb.append(" ");
           sb.append(" ");
-          sb.append(JDBCService.getNamedSQL(dbPool, "getStateAndStatus_COMPLETE_BADSTATE_MIDDLE"));
+          sb.append(namedSQL(MonitorSQLRegistry.STATE_AND_STATUS_COMPLETE_BADSTATE_MIDDLE));
             sb.append(" ");
           setBadStateInClause(sb, waiting, waitingOnIO, interrupted_auto,
 			      interrupted_man, halted, terminated);
             sb.append(" ");
-          sb.append(JDBCService.getNamedSQL(dbPool, "getStateAndStatus_COMPLETE_BADSTATE_MIDDLE_2"));
+          sb.append(namedSQL(MonitorSQLRegistry.STATE_AND_STATUS_COMPLETE_BADSTATE_MIDDLE_2));
             sb.append(" ");
 
           otherFilters = true;
@@ -4822,19 +6331,19 @@ errors, and it is called by UIGlobals.java
         else if( complete && !badState && !badStatus ) {
 
           if(hasWorkflowDefIds) {
-            hint = "getStateAndStatus_HINT_COMPLETE_WFD";
+            hint = MonitorSQLRegistry.STATE_AND_STATUS_HINT_COMPLETE_WFD;
           } else {
-            hint = "getStateAndStatus_HINT_COMPLETE";
+            hint = MonitorSQLRegistry.STATE_AND_STATUS_HINT_COMPLETE;
           }
           sqlHint(sb, maxKeys, hint);
             sb.append(" ");
-          sb.append(JDBCService.getNamedSQL(dbPool, "getStateAndStatus_DEFAULT_BEGIN"));
+          sb.append(namedSQL(MonitorSQLRegistry.STATE_AND_STATUS_DEFAULT_BEGIN));
             sb.append(" ");
           sqlHint(sb, maxKeys, hint);
             sb.append(" ");
-          sb.append(JDBCService.getNamedSQL(dbPool, "getStateAndStatus_MAIN"));
+          sb.append(namedSQL(MonitorSQLRegistry.STATE_AND_STATUS_MAIN));
             sb.append(" ");
-          sb.append(JDBCService.getNamedSQL(dbPool, "getStateAndStatus_COMPLETE_MIDDLE"));
+          sb.append(namedSQL(MonitorSQLRegistry.STATE_AND_STATUS_COMPLETE_MIDDLE));
             sb.append(" ");
           otherFilters = true;
 
@@ -4842,49 +6351,49 @@ errors, and it is called by UIGlobals.java
         else if( badState && badStatus ) {
 
           if(hasWorkflowDefIds) {
-            hint = "getStateAndStatus_HINT_BADSTATE_BADSTATUS_WFD";
+            hint = MonitorSQLRegistry.STATE_AND_STATUS_HINT_BADSTATE_BADSTATUS_WFD;
           } else {
-            hint = "getStateAndStatus_HINT_BADSTATE_BADSTATUS";
+            hint = MonitorSQLRegistry.STATE_AND_STATUS_HINT_BADSTATE_BADSTATUS;
           }
           sqlHint(sb, maxKeys, hint);
             sb.append(" ");
             if(orderByWorkFlowId) {
-              sb.append(JDBCService.getNamedSQL(dbPool, "getStateAndStatus_DEFAULT_BEGIN"));
+              sb.append(namedSQL(MonitorSQLRegistry.STATE_AND_STATUS_DEFAULT_BEGIN));
             } else {
-              sb.append(JDBCService.getNamedSQL(dbPool, "getStateAndStatus_DERIVED_BEGIN"));
+              sb.append(namedSQL(MonitorSQLRegistry.STATE_AND_STATUS_DERIVED_BEGIN));
             }
             sb.append(" ");
           sqlHint(sb, maxKeys, hint);
             sb.append(" ");
-          sb.append(JDBCService.getNamedSQL(dbPool, "getStateAndStatus_MAIN"));
+          sb.append(namedSQL(MonitorSQLRegistry.STATE_AND_STATUS_MAIN));
           sb.append(" ");
-          sb.append(JDBCService.getNamedSQL(dbPool, "getStateAndStatus_BADSTATE_BADSTATUS_MIDDLE"));
+          sb.append(namedSQL(MonitorSQLRegistry.STATE_AND_STATUS_BADSTATE_BADSTATUS_MIDDLE));
             sb.append(" ");
           setBadStateInClause(sb, waiting, waitingOnIO, interrupted_auto,
 			      interrupted_man, halted, terminated);
             sb.append(" ");
-          sb.append(JDBCService.getNamedSQL(dbPool, "getStateAndStatus_BADSTATE_BADSTATUS_MIDDLE_2"));
+          sb.append(namedSQL(MonitorSQLRegistry.STATE_AND_STATUS_BADSTATE_BADSTATUS_MIDDLE_2));
           sb.append(" ");
           otherFilters = true;
         }
         else if( !badState && badStatus ) {
 
           if(hasWorkflowDefIds) {
-            hint = "getStateAndStatus_HINT_BADSTATUS_WFD";
+            hint = MonitorSQLRegistry.STATE_AND_STATUS_HINT_BADSTATUS_WFD;
           } else {
-            hint = "getStateAndStatus_HINT_BADSTATUS";
+            hint = MonitorSQLRegistry.STATE_AND_STATUS_HINT_BADSTATUS;
           }
           sqlHint(sb, maxKeys, hint);
             sb.append(" ");
             if(orderByWorkFlowId) {
-              sb.append(JDBCService.getNamedSQL(dbPool, "getStateAndStatus_DEFAULT_BEGIN"));
+              sb.append(namedSQL(MonitorSQLRegistry.STATE_AND_STATUS_DEFAULT_BEGIN));
             } else {
-              sb.append(JDBCService.getNamedSQL(dbPool, "getStateAndStatus_DERIVED_BEGIN"));
+              sb.append(namedSQL(MonitorSQLRegistry.STATE_AND_STATUS_DERIVED_BEGIN));
             }
             sb.append(" ");
           sqlHint(sb, maxKeys, hint);
             sb.append(" ");
-          sb.append(JDBCService.getNamedSQL(dbPool, "getStateAndStatus_MAIN"));
+          sb.append(namedSQL(MonitorSQLRegistry.STATE_AND_STATUS_MAIN));
             sb.append(" ");
 
           // JAK for sr 1344183 if start time and end time are both null
@@ -4898,27 +6407,27 @@ errors, and it is called by UIGlobals.java
           else
           {
             sb.append(" ");
-            sb.append(JDBCService.getNamedSQL(dbPool, "getStateAndStatus_BADSTATUS_MIDDLE"));
+            sb.append(namedSQL(MonitorSQLRegistry.STATE_AND_STATUS_BADSTATUS_MIDDLE));
             otherFilters = true;
           }
         }
         else if( badState && !badStatus ) {
           if(hasWorkflowDefIds) {
-            hint = "getStateAndStatus_HINT_BADSTATE_WFD";
+            hint = MonitorSQLRegistry.STATE_AND_STATUS_HINT_BADSTATE_WFD;
           } else {
-            hint = "getStateAndStatus_HINT_BADSTATE";
+            hint = MonitorSQLRegistry.STATE_AND_STATUS_HINT_BADSTATE;
           }
           sqlHint(sb, maxKeys, hint);
             sb.append(" ");
             if(orderByWorkFlowId) {
-              sb.append(JDBCService.getNamedSQL(dbPool, "getStateAndStatus_DEFAULT_BEGIN"));
+              sb.append(namedSQL(MonitorSQLRegistry.STATE_AND_STATUS_DEFAULT_BEGIN));
             } else {
-              sb.append(JDBCService.getNamedSQL(dbPool, "getStateAndStatus_DERIVED_BEGIN"));
+              sb.append(namedSQL(MonitorSQLRegistry.STATE_AND_STATUS_DERIVED_BEGIN));
             }
             sb.append(" ");
           sqlHint(sb, maxKeys, hint);
             sb.append(" ");
-          sb.append(JDBCService.getNamedSQL(dbPool, "getStateAndStatus_MAIN"));
+          sb.append(namedSQL(MonitorSQLRegistry.STATE_AND_STATUS_MAIN));
             sb.append(" ");
 
           //
@@ -4933,29 +6442,39 @@ errors, and it is called by UIGlobals.java
           else
           {
             sb.append(" ");
-            sb.append(JDBCService.getNamedSQL(dbPool, "getStateAndStatus_BADSTATE_MIDDLE"));
+            sb.append(namedSQL(MonitorSQLRegistry.STATE_AND_STATUS_BADSTATE_MIDDLE));
             otherFilters = true;
           }
             sb.append(" ");
         }
         else {
           //Default
-          sb.append(JDBCService.getNamedSQL(dbPool, "getStateAndStatus_DEFAULT_BEGIN"));
+          sb.append(namedSQL(MonitorSQLRegistry.STATE_AND_STATUS_DEFAULT_BEGIN));
           if(hasWorkflowDefIds) {
-            hint = "getStateAndStatus_HINT_DEFAULT_WFD";
+            hint = MonitorSQLRegistry.STATE_AND_STATUS_HINT_DEFAULT_WFD;
           } else {
-            hint = "getStateAndStatus_HINT_DEFAULT";
+            hint = MonitorSQLRegistry.STATE_AND_STATUS_HINT_DEFAULT;
           }
           sqlHint(sb, maxKeys, hint);
             sb.append(" ");
-          sb.append(JDBCService.getNamedSQL(dbPool, "getStateAndStatus_MAIN"));
+          sb.append(namedSQL(MonitorSQLRegistry.STATE_AND_STATUS_MAIN));
           sb.append(" ");
-          sb.append(JDBCService.getNamedSQL(dbPool, "getStateAndStatus_DEFAULT_MIDDLE"));
+          sb.append(namedSQL(MonitorSQLRegistry.STATE_AND_STATUS_DEFAULT_MIDDLE));
             sb.append(" ");
           otherFilters = true;
         }
 
-        if(hasWorkflowDefIds) {
+        if(hasWorkflowDefIds && binds != null) {
+          if(otherFilters) {
+            sb.append(" AND ");
+          }
+          else {
+            sb.append(" WHERE ");
+            otherFilters = true;
+          }
+          inLists.append(sb, "WFD_ID", workflowDefIds, binds);
+        }
+        else if(hasWorkflowDefIds) {
 
           int wfDefSize = workflowDefIds.size();
           for(int i = 0; i < wfDefSize; i++) {
@@ -5059,7 +6578,7 @@ errors, and it is called by UIGlobals.java
             otherFilters = true;
           }
 
-          sb.append(JDBCService.getNamedSQL(dbPool, "getStateAndStatus_ARCHIVE_INFO_SUBSELECT"));
+          sb.append(namedSQL(MonitorSQLRegistry.STATE_AND_STATUS_ARCHIVE_INFO_SUBSELECT));
         }
 
         if(badStatus) {
@@ -5072,7 +6591,7 @@ errors, and it is called by UIGlobals.java
             otherFilters = true;
           }
 
-          sb.append(JDBCService.getNamedSQL(dbPool, "getStateAndStatus_BADSTATUS_END"));
+          sb.append(namedSQL(MonitorSQLRegistry.STATE_AND_STATUS_BADSTATUS_END));
 
         }
         else if(badState && !complete && !activeOrHalting) {
@@ -5089,7 +6608,17 @@ errors, and it is called by UIGlobals.java
         }
 
 
-        if ( workflowIds != null && workflowIds.size() > 0) {
+        if ( workflowIds != null && workflowIds.size() > 0 && binds != null) {
+          if(otherFilters) {
+            sb.append(" AND ");
+          }
+          else {
+            sb.append(" WHERE ");
+            otherFilters = true;
+          }
+          inLists.append(sb, "WORKFLOW_ID", workflowIds, binds);
+        }
+        else if ( workflowIds != null && workflowIds.size() > 0) {
           int wfSize = workflowIds.size();
           for(int i = 0; i < wfSize; i++) {
             if(i == 0) {
@@ -5115,19 +6644,23 @@ errors, and it is called by UIGlobals.java
 
         }
 
-
+        // the derived table the state and status filters apply to
+        String derived = null;
         if(!useInformixSyntax) {
           if((badState && !complete) || badStatus) {
             if(orderByWorkFlowId) {
-              sb.append(" ) SUBQRY ");
+              derived = "SUBQRY";
             }
             else {
-              sb.append(" ) WFC_VIEW ");
+              derived = "WFC_VIEW";
             }
           }
           else {
-            sb.append(" ) SUBQRY ");
+            derived = "SUBQRY";
           }
+          sb.append(" ) ");
+          sb.append(derived);
+          sb.append(" ");
 
         }
 
@@ -5137,24 +6670,46 @@ errors, and it is called by UIGlobals.java
 
         otherFilters = appendStateAndStatus(states, statuses, otherFilters, sb);
 
+        if (keyset) {
+          // on the derived table, by its own alias, whatever the
+          // columns of the getStateAndStatus_MAIN tables are called
+          if(otherFilters) {
+            sb.append(" AND ");
+          }
+          else {
+            sb.append(" WHERE ");
+            otherFilters = true;
+          }
+          sb.append(derived);
+          sb.append(".WORKFLOW_ID < ? ");
+          binds.add(new Long(lastWorkflowId));
+        }
+
 
         sb.append(" ");
 
-        if((badState && !complete) || badStatus) {
+        if (keyset) {
+          // the pages follow each other down the WORKFLOW_ID index
+          sb.append(" ORDER BY ");
+          sb.append(derived);
+          sb.append(".WORKFLOW_ID DESC ");
+        }
+        else if((badState && !complete) || badStatus) {
 
           if(orderByWorkFlowId) {
-            sb.append(JDBCService.getNamedSQL(dbPool, "getStateAndStatus_ORDER_BY_WFID"));
+            sb.append(namedSQL(MonitorSQLRegistry.STATE_AND_STATUS_ORDER_BY_WFID));
           } else {
-            sb.append(JDBCService.getNamedSQL(dbPool, "getStateAndStatus_ORDER_BY_DERIVED"));
+            sb.append(namedSQL(MonitorSQLRegistry.STATE_AND_STATUS_ORDER_BY_DERIVED));
           }
 
         }
         else {
-          sb.append(JDBCService.getNamedSQL(dbPool, "getStateAndStatus_ORDER_BY"));
+          sb.append(namedSQL(MonitorSQLRegistry.STATE_AND_STATUS_ORDER_BY));
         }
         sb.append(" ");
 
         ret[0] = sb.toString();
+        ret[1] = binds;
         return ret;
       }
 
@@ -5333,7 +6888,7 @@ errors, and it is called by UIGlobals.java
         appendWhereAndCondition(otherFilters, sb);
         otherFilters = true;
 
-        sb.append(JDBCService.getNamedSQL(dbPool, "getStateAndStatus_STATE_FILTER"));
+        sb.append(namedSQL(MonitorSQLRegistry.STATE_AND_STATUS_STATE_FILTER));
 
         appendStateList(states, sb);
       }
@@ -5342,7 +6897,7 @@ errors, and it is called by UIGlobals.java
         appendWhereAndCondition(otherFilters, sb);
         otherFilters = true;
 
-        sb.append(JDBCService.getNamedSQL(dbPool, "getStateAndStatus_STATUS_FILTER"));
+        sb.append(namedSQL(MonitorSQLRegistry.STATE_AND_STATUS_STATUS_FILTER));
 
         appendStatusList(statuses, sb);
       }
@@ -5356,36 +6911,129 @@ errors, and it is called by UIGlobals.java
     private static void appendLimitedMainQuery(
         int[] states, int[] statuses, StringBuffer sb) {
 
-      sb.append(JDBCService.getNamedSQL(dbPool, "getStateAndStatus_MAIN"));
+      sb.append(namedSQL(MonitorSQLRegistry.STATE_AND_STATUS_MAIN));
       if(useInformixSyntax) {
-        sb.append(JDBCService.getNamedSQL(dbPool, "getStateAndStatus_MAIN_2"));
+        sb.append(namedSQL(MonitorSQLRegistry.STATE_AND_STATUS_MAIN_2));
         appendStateAndStatus(states, statuses, sb);
-        sb.append(JDBCService.getNamedSQL(dbPool, "getStateAndStatus_MAIN_3"));
+        sb.append(namedSQL(MonitorSQLRegistry.STATE_AND_STATUS_MAIN_3));
       }
     }
 
     private static void appendMainQuery(StringBuffer sb) {
-      sb.append(JDBCService.getNamedSQL(dbPool, "getStateAndStatus_MAIN"));
+      sb.append(namedSQL(MonitorSQLRegistry.STATE_AND_STATUS_MAIN));
       if(useInformixSyntax) {
-        sb.append(JDBCService.getNamedSQL(dbPool, "getStateAndStatus_MAIN_3"));
+        sb.append(namedSQL(MonitorSQLRegistry.STATE_AND_STATUS_MAIN_3));
       }
     }
 */
 
     public ArrayList getIdsByStateAndStatus(int maxKeys,
                             int[] states, int[] statuses ) {
+      LongList ids = getIdsByStateAndStatusAsLongs(maxKeys, states, statuses);
+      return ids == null ? null : ids.toStringArrayList();
+    }
+
+    /**
+     * getIdsByStateAndStatus() returning the ids as primitive longs.
+     */
+    public LongList getIdsByStateAndStatusAsLongs(int maxKeys,
+                            int[] states, int[] statuses ) {
+      return getIdsByStateAndStatusAsLongs(maxKeys, states, statuses,
+                                           false, 0);
+    }
+
+    /**
+     * One page of getIdsByStateAndStatus(), in descending WORKFLOW_ID
+     * order.  Pass the last id of a page to get the next one; a page
+     * with fewer than <tt>maxKeys</tt> ids is the last.
+     *
+     * @param lastWorkflowId - the last id of the previous page,
+     * FIRST_PAGE for the first one.
+     */
+    public ArrayList getIdsByStateAndStatus(int maxKeys,
+                            int[] states, int[] statuses,
+                            long lastWorkflowId ) {
+      LongList ids = getIdsByStateAndStatusAsLongs(maxKeys, states, statuses,
+                                                   lastWorkflowId);
+      return ids == null ? null : ids.toStringArrayList();
+    }
+
+    /**
+     * getIdsByStateAndStatus(maxKeys, states, statuses, lastWorkflowId)
+     * returning the ids as primitive longs.
+     */
+    public LongList getIdsByStateAndStatusAsLongs(int maxKeys,
+                            int[] states, int[] statuses,
+                            long lastWorkflowId ) {
+      return getIdsByStateAndStatusAsLongs(maxKeys, states, statuses,
+                                           true, lastWorkflowId);
+    }
+
+    private LongList getIdsByStateAndStatusAsLongs(final int maxKeys,
+                            int[] states, int[] statuses,
+                            boolean keyset, long lastWorkflowId ) {
+
+      if (keyset && useInformixSyntax) {
+        return pageInMemory(getIdsByStateAndStatusAsLongs(-1, states, statuses,
+                                                          false, 0),
+                            maxKeys, lastWorkflowId);
+      }
+      try {
+        final Object[] sqlAndBinds = getStateAndStatusSql(states, statuses,
+                                          null, null, null, null,
+                                          null, null,
+                                          maxKeys, null,
+                                          keyset, keyset, lastWorkflowId);
+        // callers of the same search at the same time share one run
+        String key = "getIdsByStateAndStatus " + maxKeys + " " +
+          sqlAndBinds[0] + " " + sqlAndBinds[1];
+        return (LongList)inFlight.run(key, new Callable() {
+            public Object call() {
+              return readIdsByStateAndStatus(maxKeys, sqlAndBinds);
+            }
+          }, COPY_LONG_LIST);
+      }  catch (Exception e) {
+        String msg = myClassName + ".getIdsByStateAndStatus() caught Exception.";
+        WFGlobals.out.logException( WFGlobals.WORKFLOW , WFGlobals.WORKFLOW , "ERR_getIdsByStateAndStatus1" ,  new Object[]{ "" + myClassName }, e);
+        e.printStackTrace();
+        return null;
+      }
+    }
+
+    /**
+     * One keyset page cut from the whole result, for the Informix form
+     * of the query: the ids below <tt>lastWorkflowId</tt>, in
+     * descending order, up to <tt>maxKeys</tt> of them.
+     */
+    private static LongList pageInMemory(LongList all, int maxKeys,
+                                         long lastWorkflowId) {
+      if (all == null) {
+        return null;
+      }
+      all.sort();
+      LongList page = new LongList(maxKeys > 0 ? maxKeys : 16);
+      for (int i = all.size() - 1; i >= 0; i--) {
+        if (maxKeys != -1 && page.size() >= maxKeys) {
+          break;
+        }
+        if (all.get(i) < lastWorkflowId) {
+          page.add(all.get(i));
+        }
+      }
+      return page;
+    }
+
+    private LongList readIdsByStateAndStatus(int maxKeys,
+                            Object[] sqlAndBinds ) {
 
-      ArrayList idList = null;
+      LongList idList = null;
 
       Connection conn = null;
       ResultSet rs = null;
       PreparedStatement ps = null;
 
       try {
-        String sql = (String) getStateAndStatusSql(states, statuses,
-                                          null, null, null, null,
-                                          null, null,
-                                          maxKeys, null)[0];
+        String sql = (String) sqlAndBinds[0];
         //System.out.println(sql);
         if(WFGlobals.out.debug) {
           String msg = myClassName + ".getIdsByStateAndStatus() query " + sql;
@@ -5395,7 +7043,8 @@ errors, and it is called by UIGlobals.java
           WFGlobals.out.logDebug( WFGlobals.WORKFLOW , WFGlobals.WORKFLOW , "DEB_Size_maxBPsToDisplay1" ,  new Object[]{ "" + maxBPsToDisplay });
         }
         conn = Conn.getConnection();
-        ps = conn.prepareStatement(sql);
+        ps = MonitorQuery.prepare(conn, sql);
+        bindStateAndStatusSql(ps, sqlAndBinds);
 
         if(maxKeys != -1) {
           ps.setFetchSize(maxKeys);
@@ -5406,35 +7055,8 @@ errors, and it is called by UIGlobals.java
 
         rs = ps.executeQuery();
 
-        idList = new ArrayList();
-        TreeSet ts = new TreeSet();
-
-        long lastId = -1;
-        int lastState = -1;
-        int numFound = 0;
-	long wfId = -1;
-        while((maxKeys == -1 || numFound < maxKeys)
-                    && rs != null && rs.next() ) {
-
-          wfId = rs.getLong("WORKFLOW_ID");
-
-	  //System.out.println("wfId = "+wfId);
-          if( lastId != wfId && lastId != -1
-              && !ts.contains(new Long(lastId))) {
-
-            idList.add(Long.toString(lastId));
-            ts.add(new Long(lastId));
-            numFound++;
-          }
-          lastId = wfId;
-        }
-
-        if((maxKeys == -1 || numFound < maxKeys) && lastId != -1
-             && !ts.contains(new Long(lastId))) {
-
-          idList.add(Long.toString(lastId));
-          numFound++;
-        }
+        idList = new LongList(maxKeys > 0 ? maxKeys : 16);
+        readDistinctIds(rs, maxKeys, idList);
 
 
       }  catch(SQLException sqe) {
@@ -5454,7 +7076,7 @@ errors, and it is called by UIGlobals.java
           }
 
           if (ps != null) {
-            ps.close();
+            MonitorQuery.close(ps);
           }
         } catch (SQLException sqe) {
           String msg = myClassName +
@@ -5466,12 +7088,64 @@ errors, and it is called by UIGlobals.java
         }
 
         if (conn != null) {
-          Conn.freeConnection(conn);
+          freeConnection(conn);
         }
       }
       return idList;
     }
 
+    /**
+     * Adds the distinct WORKFLOW_IDs of the result set to
+     * <tt>idList</tt> in the order they are first read, up to
+     * <tt>maxKeys</tt> of them (-1 for all).
+     *
+     * The getStateAndStatus queries are ordered by WORKFLOW_ID, so
+     * the rows of a workflow follow each other and comparing each id
+     * with the one before is enough.  Only if the ids are found out of
+     * order (a dialect whose ORDER BY is not on the id) are they
+     * checked against a hash set of the ids read so far.
+     */
+    static void readDistinctIds(ResultSet rs, int maxKeys, LongList idList)
+        throws SQLException {
+
+        if (rs == null) {
+            return;
+        }
+        int idColumn = -1;
+        LongHashSet seen = null;
+        int direction = 0;
+        long lastId = 0;
+        boolean first = true;
+
+        while ((maxKeys == -1 || idList.size() < maxKeys) && rs.next()) {
+            if (idColumn == -1) {
+                idColumn = rs.findColumn("WORKFLOW_ID");
+            }
+            long wfId = rs.getLong(idColumn);
+            if (first) {
+                first = false;
+            } else if (wfId == lastId) {
+                continue;
+            } else if (seen == null) {
+                int d = (wfId > lastId) ? 1 : -1;
+                if (direction == 0) {
+                    direction = d;
+                } else if (d != direction) {
+                    // out of order, every id read so far is in idList
+                    seen = new LongHashSet(idList.size() * 2);
+                    for (int i = 0; i < idList.size(); i++) {
+                        seen.add(idList.get(i));
+                    }
+                }
+            }
+            lastId = wfId;
+            if (seen != null && !seen.add(wfId)) {
+                continue;
+            }
+            idList.add(wfId);
+        }
+    }
+
     public static int getPrecedenceOrder(int state) {
 
       int ret = UNKNOWN;
@@ -5586,6 +7260,17 @@ errors, and it is called by UIGlobals.java
 
     // Oracle only
     public static void sqlHint(StringBuffer sb, int maxKeys, String hint ) {
+        sqlHint(sb, maxKeys, MonitorSQLRegistry.forName(hint), hint);
+    }
+
+    private static void sqlHint(StringBuffer sb, int maxKeys,
+                                MonitorSQLRegistry.Key hint) {
+        sqlHint(sb, maxKeys, hint, hint.name);
+    }
+
+    // key is null for a hint that is not one of the monitor's
+    private static void sqlHint(StringBuffer sb, int maxKeys,
+                                MonitorSQLRegistry.Key key, String hint) {
         if(maxKeys != -1 ) {
            if(useOracle9iFirstRows) {
             sb.append(" /*+ ");
@@ -5594,7 +7279,8 @@ errors, and it is called by UIGlobals.java
             sb.append(") ");
             sb.append(" */ ");
            } else {
-            String h = JDBCService.getNamedSQL(dbPool, hint);
+            String h = (key != null) ? namedSQL(key) :
+                                       JDBCService.getNamedSQL(dbPool, hint);
             if(h != null) {
               sb.append(" ");
               sb.append(h);
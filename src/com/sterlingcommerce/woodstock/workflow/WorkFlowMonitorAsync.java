@@ -0,0 +1,227 @@
+package com.sterlingcommerce.woodstock.workflow;
+
+import java.sql.Connection;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+import com.sterlingcommerce.woodstock.util.frame.jdbc.Conn;
+
+/**
+ * Runs the WorkFlowMonitor queries of the admin UI on a bounded pool of
+ * its own, so a page can start its summary, list and status queries
+ * together and wait for the slowest instead of for each in turn.
+ *
+ * Each method returns a Future for the result of the WorkFlowMonitor
+ * method of the same name.  The queries run on pooled connections,
+ * never on one of the caller's.  get() waits up to a timeout; a query
+ * that is not done by then is cancelled.  Cancelling a query that has
+ * not started takes it off the queue.  Cancelling a running one cancels
+ * the statements it runs with Statement.cancel() and never interrupts
+ * its thread, so its connections go back to the pool in a good state.
+ * Cancelling a query another caller shares (see SingleFlight) fails
+ * that caller too.
+ *
+ * The pool has monitorAsyncThreads (workflows) threads and queues up to
+ * monitorAsyncQueueSize (workflows) queries.  When the queue is full a
+ * query runs in the calling thread, as it would have without the pool.
+ *
+ * Get the instance from WorkFlowMonitor.getAsync().
+ */
+public final class WorkFlowMonitorAsync {
+
+    private final int threads;
+    private final int queueSize;
+    private final long timeout;
+    private ThreadPoolExecutor executor = null;
+
+    WorkFlowMonitorAsync(int threads, int queueSize, long timeout) {
+        this.threads = Math.max(threads, 1);
+        this.queueSize = Math.max(queueSize, 1);
+        this.timeout = timeout;
+    }
+
+    /**
+     * @see WorkFlowMonitor#getWFSumInfo(Connection)
+     */
+    public Future getWFSumInfo() {
+        return submit(new Callable() {
+                public Object call() throws Exception {
+                    return new WorkFlowMonitor().getWFSumInfo(null);
+                }
+            });
+    }
+
+    /**
+     * @see WorkFlowMonitor#getIdsByStateAndStatus(int, int[], int[])
+     */
+    public Future getIdsByStateAndStatus(final int maxKeys,
+                                         final int[] states,
+                                         final int[] statuses) {
+        return submit(new Callable() {
+                public Object call() throws Exception {
+                    return new WorkFlowMonitor().getIdsByStateAndStatus(maxKeys,
+                                                                        states,
+                                                                        statuses);
+                }
+            });
+    }
+
+    /**
+     * @see WorkFlowMonitor#getIdsByStateAndStatus(int, int[], int[], long)
+     */
+    public Future getIdsByStateAndStatus(final int maxKeys,
+                                         final int[] states,
+                                         final int[] statuses,
+                                         final long lastWorkflowId) {
+        return submit(new Callable() {
+                public Object call() throws Exception {
+                    return new WorkFlowMonitor().getIdsByStateAndStatus(maxKeys,
+                                                                        states,
+                                                                        statuses,
+                                                                        lastWorkflowId);
+                }
+            });
+    }
+
+    /**
+     * @see WorkFlowMonitor#getAllIdsWithState(Connection)
+     */
+    public Future getAllIdsWithState() {
+        return submit(new Callable() {
+                public Object call() throws Exception {
+                    return new WorkFlowMonitor().getAllIdsWithState(null);
+                }
+            });
+    }
+
+    /**
+     * @see WorkFlowMonitor#getStatus(ArrayList, Connection)
+     */
+    public Future getStatus(ArrayList list) {
+        // the caller may change its list while the query waits
+        final ArrayList ids = new ArrayList(list);
+        return submit(new Callable() {
+                public Object call() throws Exception {
+                    Connection conn = Conn.getConnection();
+                    try {
+                        return new WorkFlowMonitor().getStatus(ids, conn);
+                    } finally {
+                        WorkFlowMonitor.freeConnection(conn);
+                    }
+                }
+            });
+    }
+
+    /**
+     * Waits up to monitorAsyncTimeout (workflows) ms for the result.
+     *
+     * @see #get(Future, long)
+     */
+    public Object get(Future future) throws Exception {
+        return get(future, timeout);
+    }
+
+    /**
+     * Waits up to <tt>timeoutMillis</tt> ms for the result of a query
+     * and cancels it if it is not done by then.
+     *
+     * @throws TimeoutException - the query was not done in time.
+     * @throws CancellationException - the query was cancelled.
+     * @throws Exception - the exception of the query.
+     */
+    public static Object get(Future future, long timeoutMillis)
+        throws Exception {
+        try {
+            return future.get(timeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException te) {
+            future.cancel(false);
+            throw te;
+        } catch (InterruptedException ie) {
+            future.cancel(false);
+            Thread.currentThread().interrupt();
+            throw ie;
+        } catch (ExecutionException ee) {
+            Throwable t = ee.getCause();
+            if (t instanceof Exception) {
+                throw (Exception)t;
+            }
+            if (t instanceof Error) {
+                throw (Error)t;
+            }
+            throw ee;
+        }
+    }
+
+    /**
+     * Cancels the queries that are not done, for a page that gives up
+     * on them.  Null entries are skipped.
+     */
+    public static void cancel(Future[] futures) {
+        for (int i = 0; i < futures.length; i++) {
+            if (futures[i] != null) {
+                futures[i].cancel(false);
+            }
+        }
+    }
+
+    private Future submit(Callable query) {
+        Query task = new Query(query);
+        getExecutor().execute(task);
+        return task;
+    }
+
+    /**
+     * A query that is cancelled through its statements.  Its thread is
+     * never interrupted, whatever cancel() is given.
+     */
+    private static final class Query extends FutureTask {
+        private final MonitorQuery statements;
+
+        Query(final Callable query) {
+            this(query, new MonitorQuery());
+        }
+
+        private Query(final Callable query, final MonitorQuery statements) {
+            super(new Callable() {
+                    public Object call() throws Exception {
+                        MonitorQuery before = MonitorQuery.enter(statements);
+                        try {
+                            return query.call();
+                        } finally {
+                            MonitorQuery.exit(before);
+                        }
+                    }
+                });
+            this.statements = statements;
+        }
+
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            if (!super.cancel(false)) {
+                return false;
+            }
+            statements.cancel();
+            return true;
+        }
+    }
+
+    private synchronized ThreadPoolExecutor getExecutor() {
+        if (executor == null) {
+            final AtomicInteger count = new AtomicInteger();
+            executor = new ThreadPoolExecutor(threads, threads,
+                                              60, TimeUnit.SECONDS,
+                                              new ArrayBlockingQueue(queueSize),
+                                              new ThreadFactory() {
+                    public Thread newThread(Runnable task) {
+                        Thread t = new Thread(task, "WorkFlowMonitor-async-" +
+                                              count.incrementAndGet());
+                        t.setDaemon(true);
+                        return t;
+                    }
+                },
+                new ThreadPoolExecutor.CallerRunsPolicy());
+            executor.allowCoreThreadTimeOut(true);
+        }
+        return executor;
+    }
+}
@@ -0,0 +1,208 @@
+package com.sterlingcommerce.woodstock.workflow;
+
+import java.util.*;
+
+/**
+ * A bounded, least recently used map from a workflow id to a resolved
+ * state or status code.  Entries older than the time to live are
+ * treated as missing, so a change made outside the WorkFlowMonitor is
+ * picked up after at most that long.  The WorkFlowMonitor removes an
+ * entry itself whenever it changes the workflow.
+ *
+ * A value read before such a remove must not be put back after it, so
+ * a caller takes a stamp() before it starts reading and passes it to
+ * put().  Every remove() bumps the generation of the cache and records
+ * it for the id; a put() with an older stamp than the id's last remove
+ * is dropped.  The last maxSize removes are recorded, a put() older
+ * than the ones forgotten is dropped too.
+ *
+ * A remove() before a change is not enough on its own: a reader that
+ * starts after it but before the change is committed reads the old
+ * value with a current stamp.  A change is therefore bracketed with
+ * beginWrite() and endWrite(), which both remove, and nothing is put
+ * for the workflow in between.  When the change is left to a
+ * transaction the caller commits later, nothing is put for another
+ * time to live after endWrite() either.
+ *
+ * A cache with a maximum size or time to live of 0 or less never
+ * holds an entry.
+ */
+final class WorkFlowStateCache {
+
+    /** Returned by get() when there is no live entry for the id. */
+    static final int MISS = Integer.MIN_VALUE;
+
+    private final int maxSize;
+    private final long timeToLive;
+    private final LinkedHashMap entries;
+    private final LinkedHashMap removed;
+    private long generation = 0;
+    private long forgotten = 0;
+    //workflow id -> Write, while it is being changed
+    private final HashMap writing = new HashMap();
+
+    private static final class Write {
+        int count;
+        long settles;
+    }
+
+    private static final class Entry {
+        final int value;
+        final long expires;
+
+        Entry(int value, long expires) {
+            this.value = value;
+            this.expires = expires;
+        }
+    }
+
+    WorkFlowStateCache(final int maxSize, long timeToLive) {
+        this.maxSize = maxSize;
+        this.timeToLive = timeToLive;
+        this.entries = new LinkedHashMap(16, 0.75f, true) {
+            protected boolean removeEldestEntry(Map.Entry eldest) {
+                return size() > maxSize;
+            }
+        };
+        this.removed = new LinkedHashMap() {
+            protected boolean removeEldestEntry(Map.Entry eldest) {
+                if (size() > maxSize) {
+                    forgotten = ((Long)eldest.getValue()).longValue();
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    boolean isEnabled() {
+        return maxSize > 0 && timeToLive > 0;
+    }
+
+    /**
+     * @return the cached code for the workflow, MISS if there is none
+     * or it has expired.
+     */
+    synchronized int get(long workflowId) {
+        if (!isEnabled()) {
+            return MISS;
+        }
+        Long key = new Long(workflowId);
+        Entry e = (Entry)entries.get(key);
+        if (e == null) {
+            return MISS;
+        }
+        if (e.expires < System.currentTimeMillis()) {
+            entries.remove(key);
+            return MISS;
+        }
+        return e.value;
+    }
+
+    /**
+     * @return the stamp to put() a value read from now on with.
+     */
+    synchronized long stamp() {
+        return generation;
+    }
+
+    /**
+     * @return false if the workflow was removed since <tt>stamp</tt>.
+     */
+    synchronized boolean isCurrent(long workflowId, long stamp) {
+        if (forgotten > stamp) {
+            return false;
+        }
+        if (!writing.isEmpty() && isWriting(new Long(workflowId))) {
+            return false;
+        }
+        Long g = (Long)removed.get(new Long(workflowId));
+        return g == null || g.longValue() <= stamp;
+    }
+
+    /**
+     * Caches a value read after stamp() returned <tt>stamp</tt>, unless
+     * the workflow has been removed since.
+     */
+    synchronized void put(long workflowId, int value, long stamp) {
+        if (!isEnabled() || !isCurrent(workflowId, stamp)) {
+            return;
+        }
+        entries.put(new Long(workflowId),
+                    new Entry(value, System.currentTimeMillis() + timeToLive));
+    }
+
+    synchronized void remove(long workflowId) {
+        if (!isEnabled()) {
+            return;
+        }
+        Long key = new Long(workflowId);
+        entries.remove(key);
+        removed.remove(key);
+        removed.put(key, new Long(++generation));
+    }
+
+    /**
+     * Removes the workflow before it is changed, and keeps it from
+     * being cached until endWrite().
+     */
+    synchronized void beginWrite(long workflowId) {
+        Long key = new Long(workflowId);
+        Write w = (Write)writing.get(key);
+        if (w == null) {
+            w = new Write();
+            writing.put(key, w);
+        }
+        w.count++;
+        remove(workflowId);
+    }
+
+    /**
+     * Removes the workflow again once it has been changed.
+     *
+     * @param committed - false if the change is only committed later,
+     * by the caller's transaction.
+     */
+    synchronized void endWrite(long workflowId, boolean committed) {
+        Long key = new Long(workflowId);
+        Write w = (Write)writing.get(key);
+        if (w != null) {
+            w.count--;
+            if (!committed) {
+                w.settles = System.currentTimeMillis() + timeToLive;
+            }
+            isWriting(key);
+        }
+        remove(workflowId);
+        if (writing.size() > maxSize) {
+            for (Iterator it = writing.keySet().iterator(); it.hasNext(); ) {
+                Write settled = (Write)writing.get(it.next());
+                if (settled.count <= 0 &&
+                    settled.settles <= System.currentTimeMillis()) {
+                    it.remove();
+                }
+            }
+        }
+    }
+
+    //forgets a write that is over
+    private boolean isWriting(Long key) {
+        Write w = (Write)writing.get(key);
+        if (w == null) {
+            return false;
+        }
+        if (w.count > 0 || w.settles > System.currentTimeMillis()) {
+            return true;
+        }
+        writing.remove(key);
+        return false;
+    }
+
+    synchronized void clear() {
+        entries.clear();
+    }
+
+    synchronized int size() {
+        return entries.size();
+    }
+}
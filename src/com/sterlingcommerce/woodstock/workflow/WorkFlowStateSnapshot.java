@@ -0,0 +1,103 @@
+package com.sterlingcommerce.woodstock.workflow;
+
+import java.util.*;
+
+/**
+ * The number of live workflows in each state at one point in time, as
+ * returned by WorkFlowMonitor.getStateSnapshot().  A snapshot does not
+ * change once taken, so every admin UI session can read the same one.
+ */
+public final class WorkFlowStateSnapshot {
+
+    private final long takenAt;
+    private final int[] states;
+    private final int[] counts;
+    private final List[] samples;
+
+    /**
+     * @param entries - the result of getAllIdsWithStateCounts().
+     * @param takenAt - when the counting started.
+     */
+    WorkFlowStateSnapshot(List entries, long takenAt) {
+        this.takenAt = takenAt;
+        int n = entries.size();
+        states = new int[n];
+        counts = new int[n];
+        samples = new List[n];
+        for (int i = 0; i < n; i++) {
+            Hashtable entry = (Hashtable)entries.get(i);
+            states[i] = ((Integer)entry.get("STATE")).intValue();
+            counts[i] = ((Integer)entry.get("COUNT")).intValue();
+            samples[i] = Collections.unmodifiableList(
+                new ArrayList((List)entry.get("IDS")));
+        }
+    }
+
+    /** @return when the counting started, in ms since the epoch. */
+    public long getTakenAt() {
+        return takenAt;
+    }
+
+    /** @return how old the counts are, in ms. */
+    public long getAge() {
+        return Math.max(System.currentTimeMillis() - takenAt, 0);
+    }
+
+    /** @return the number of workflows in <tt>state</tt>. */
+    public int getCount(int state) {
+        int i = indexOf(state);
+        return i < 0 ? 0 : counts[i];
+    }
+
+    /** @return the number of live workflows. */
+    public int getTotal() {
+        int total = 0;
+        for (int i = 0; i < counts.length; i++) {
+            total += counts[i];
+        }
+        return total;
+    }
+
+    /** @return a read-only sample of the ids in <tt>state</tt>. */
+    public List getSample(int state) {
+        int i = indexOf(state);
+        return i < 0 ? Collections.EMPTY_LIST : samples[i];
+    }
+
+    /**
+     * @return a copy of the counts in the form of
+     * WorkFlowMonitor.getAllIdsWithStateCounts(), free to change.
+     */
+    public ArrayList getStateCounts() {
+        ArrayList list = new ArrayList(states.length);
+        for (int i = 0; i < states.length; i++) {
+            Hashtable entry = new Hashtable();
+            entry.put("STATE", new Integer(states[i]));
+            entry.put("COUNT", new Integer(counts[i]));
+            entry.put("IDS", new ArrayList(samples[i]));
+            list.add(entry);
+        }
+        return list;
+    }
+
+    private int indexOf(int state) {
+        for (int i = 0; i < states.length; i++) {
+            if (states[i] == state) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    public String toString() {
+        StringBuffer sb = new StringBuffer("WorkFlowStateSnapshot[age=");
+        sb.append(getAge());
+        for (int i = 0; i < states.length; i++) {
+            sb.append(", ");
+            sb.append(states[i]);
+            sb.append('=');
+            sb.append(counts[i]);
+        }
+        return sb.append(']').toString();
+    }
+}
@@ -0,0 +1,15 @@
+package com.sterlingcommerce.woodstock.workflow;
+
+/**
+ * Receives the live workflows of WorkFlowMonitor.visitAllIdsWithState()
+ * one at a time, while the result set is being read.
+ */
+public interface WorkFlowStateVisitor {
+
+    /**
+     * @param workflowId - the Workflow instance.
+     * @param state - its state, one of the WorkFlowMonitor state codes.
+     * @return true to go on, false to stop reading.
+     */
+    boolean visit(long workflowId, int state);
+}